@@ -0,0 +1,87 @@
+package gg.xp;
+
+/**
+ * Concurrency limit which adapts to observed latency, in the style of a gradient limiter.
+ * <p>
+ * It keeps a short-term and a long-term moving average of request latency. While the short-term average stays
+ * within {@link #TOLERANCE} of the long-term one, the limit grows by about the square root of itself per sample.
+ * Once latency rises beyond that, the limit shrinks in proportion. The limit only grows while the route is
+ * actually busy (at least half the limit in use), so a quiet route does not end up with a huge limit.
+ */
+final class AdaptiveLimiter {
+
+	private static final double TOLERANCE = 1.5;
+	// Weight of each new sample in the short-term (~10 samples) and long-term (~500 samples) averages
+	private static final double SHORT_ALPHA = 2.0 / 11;
+	private static final double LONG_ALPHA = 2.0 / 501;
+	// How much of each new limit estimate is blended into the current limit
+	private static final double SMOOTHING = 0.2;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private double limit;
+	private int inFlight;
+	private double shortRtt;
+	private double longRtt;
+	private boolean hasSamples;
+
+	AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("Bad limits: initial %s, min %s, max %s".formatted(initialLimit, minLimit, maxLimit));
+		}
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * @return Whether there is room for another request. If so, it must be followed by {@link #release(long)}.
+	 */
+	synchronized boolean tryAcquire() {
+		if (inFlight >= (int) limit) {
+			return false;
+		}
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * @param latencyNanos How long the request took
+	 */
+	synchronized void release(long latencyNanos) {
+		int inFlightBefore = inFlight;
+		inFlight--;
+		sample(latencyNanos, inFlightBefore);
+	}
+
+	synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	private void sample(long latencyNanos, int inFlightBefore) {
+		if (!hasSamples) {
+			shortRtt = latencyNanos;
+			longRtt = latencyNanos;
+			hasSamples = true;
+			return;
+		}
+		shortRtt += (latencyNanos - shortRtt) * SHORT_ALPHA;
+		longRtt += (latencyNanos - longRtt) * LONG_ALPHA;
+		// After a long overload, the long-term average has crept up too. Pull it back down faster once latency
+		// recovers, so that the limit is not held down by it.
+		if (longRtt > shortRtt * 2) {
+			longRtt *= 0.95;
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+		double estimate = limit * gradient + Math.sqrt(limit);
+		if (estimate > limit && inFlightBefore < limit / 2) {
+			// Not busy enough to tell whether more would be fine
+			return;
+		}
+		limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + estimate * SMOOTHING));
+	}
+}
@@ -0,0 +1,34 @@
+package gg.xp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Non-blocking version of {@link Cache}.
+ *
+ * @see AsyncCacheAdapter
+ */
+public interface AsyncCache {
+
+	/**
+	 * Like {@link Cache#computeValueIfAbsent(UUID, Function)}, but with a getter which does not block. A hit
+	 * completes immediately, on the calling thread.
+	 */
+	CompletableFuture<@Nullable CacheValue> computeValueIfAbsentAsync(UUID key, Function<UUID, CompletableFuture<@Nullable String>> getter);
+
+	/**
+	 * @see Cache#getIfPresent(UUID)
+	 */
+	@Nullable CacheValue getIfPresent(UUID key);
+
+	/**
+	 * @see Cache#contains(UUID)
+	 */
+	boolean contains(UUID key);
+
+	void set(UUID key, @NotNull String value);
+}
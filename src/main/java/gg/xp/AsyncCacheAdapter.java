@@ -0,0 +1,95 @@
+package gg.xp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Presents a {@link Cache} as an {@link AsyncCache}.
+ * <p>
+ * Hits are answered straight from the cache. On a miss, the getter is started, and other callers asking for the same
+ * key while it runs are given the same future, like {@link CoalescingLoader} but without any thread waiting on it.
+ */
+public class AsyncCacheAdapter implements AsyncCache {
+
+	private final Cache cache;
+	private final Map<UUID, CompletableFuture<@Nullable CacheValue>> inFlight = new ConcurrentHashMap<>();
+
+	public AsyncCacheAdapter(Cache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public CompletableFuture<@Nullable CacheValue> computeValueIfAbsentAsync(UUID key, Function<UUID, CompletableFuture<@Nullable String>> getter) {
+		CacheValue current = cache.getIfPresent(key);
+		if (current != null) {
+			return CompletableFuture.completedFuture(current);
+		}
+		CompletableFuture<@Nullable CacheValue> ours = new CompletableFuture<>();
+		CompletableFuture<@Nullable CacheValue> theirs = inFlight.putIfAbsent(key, ours);
+		if (theirs != null) {
+			return theirs;
+		}
+		// The previous load may have finished between checking the cache and claiming the key. Checked without counting
+		// a second miss, which would skew the stats and the usage counts.
+		if (cache.contains(key)) {
+			CacheValue existing = cache.getIfPresent(key);
+			if (existing != null) {
+				inFlight.remove(key, ours);
+				ours.complete(existing);
+				return ours;
+			}
+		}
+		CompletableFuture<@Nullable String> load;
+		try {
+			load = getter.apply(key);
+		}
+		catch (Throwable t) {
+			load = CompletableFuture.failedFuture(t);
+		}
+		load.whenComplete((value, error) -> {
+			try {
+				if (error != null) {
+					inFlight.remove(key, ours);
+					ours.completeExceptionally(error);
+					return;
+				}
+				CacheValue stored = value == null ? null : cache.set(key, value);
+				inFlight.remove(key, ours);
+				ours.complete(stored);
+			}
+			catch (Throwable t) {
+				inFlight.remove(key, ours);
+				ours.completeExceptionally(t);
+			}
+		});
+		return ours;
+	}
+
+	@Override
+	public @Nullable CacheValue getIfPresent(UUID key) {
+		return cache.getIfPresent(key);
+	}
+
+	@Override
+	public boolean contains(UUID key) {
+		return cache.contains(key);
+	}
+
+	@Override
+	public void set(UUID key, @NotNull String value) {
+		cache.set(key, value);
+	}
+
+	/**
+	 * @return The number of loads currently in progress.
+	 */
+	public int inFlightCount() {
+		return inFlight.size();
+	}
+}
@@ -0,0 +1,17 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking version of {@link Database}.
+ *
+ * @see BlockingDatabaseAdapter
+ */
+public interface AsyncDatabase {
+	CompletableFuture<@Nullable String> getShortlinkAsync(UUID uuid);
+
+	CompletableFuture<Void> putShortLinkAsync(UUID uuid, String payload);
+}
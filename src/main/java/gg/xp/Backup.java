@@ -1,7 +1,10 @@
 package gg.xp;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import oracle.nosql.driver.values.StringValue;
+import oracle.nosql.driver.RateLimiter;
+import oracle.nosql.driver.util.SimpleRateLimiter;
+import oracle.nosql.driver.values.MapValue;
+import org.jetbrains.annotations.Nullable;
 import org.picocontainer.MutablePicoContainer;
 import org.picocontainer.PicoBuilder;
 import org.picocontainer.lifecycle.StartableLifecycleStrategy;
@@ -10,52 +13,274 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
+/**
+ * Backs up the shortlinks table into a directory of GZIP-compressed JSON-lines chunks, plus a
+ * {@link BackupManifest}.
+ * <p>
+ * The key space is split into partitions by linkuuid prefix, which are scanned in parallel under one shared read
+ * unit budget. If a backup is interrupted, running it again with the same output directory resumes each partition
+ * after the last chunk it finished.
+ * <p>
+ * An incremental backup only contains rows modified after the high-water mark of a previous backup. Use
+ * {@link BackupMerge} to consolidate a full backup and its incremental backups.
+ */
 public class Backup {
 	private static final Logger log = LoggerFactory.getLogger(Backup.class);
+	// Rows can become visible to a scan a little after their modification time, and clocks can differ
+	private static final long HIGH_WATER_MARGIN_MS = 5 * 60_000;
 
-	private final OracleNoSqlDb db;
+	private final RowScanner scanner;
+	private final ObjectMapper mapper;
+	private final int partitions;
+	private final int threads;
+	private final int chunkRows;
 
-	public Backup(OracleNoSqlDb db) {
-		this.db = db;
+	/**
+	 * Source of rows to back up.
+	 */
+	interface RowScanner {
+		/**
+		 * Stream every row with a linkuuid strictly between two bounds, in linkuuid order.
+		 *
+		 * @param modifiedSince If not null, only rows modified after this time (epoch millis)
+		 */
+		void scan(@Nullable String after, @Nullable String before, @Nullable Long modifiedSince, Consumer<MapValue> consumer);
+
+		long countRows();
+	}
+
+	public Backup(OracleNoSqlDb db, ObjectMapper mapper, Config config) {
+		this(oracleScanner(db, new SimpleRateLimiter(config.getOrDefault(Double.class, "backupReadUnitsPerSecond", 10.0))),
+				mapper,
+				config.getOrDefault(Integer.class, "backupPartitions", 16),
+				config.getOrDefault(Integer.class, "backupThreads", 4),
+				config.getOrDefault(Integer.class, "backupChunkRows", 10_000));
+	}
+
+	/**
+	 * @param scanner    Where to read rows from
+	 * @param mapper     For the manifest
+	 * @param partitions Number of key ranges to split the table into. Must be a power of 16.
+	 * @param threads    Number of partitions to back up at once
+	 * @param chunkRows  Rows per archive chunk
+	 */
+	Backup(RowScanner scanner, ObjectMapper mapper, int partitions, int threads, int chunkRows) {
+		int digits = Integer.numberOfTrailingZeros(partitions) / 4;
+		if (partitions < 1 || 1 << (digits * 4) != partitions) {
+			throw new IllegalArgumentException("Partition count must be a power of 16: " + partitions);
+		}
+		this.scanner = scanner;
+		this.mapper = mapper;
+		this.partitions = partitions;
+		this.threads = threads;
+		this.chunkRows = chunkRows;
+	}
+
+	private static RowScanner oracleScanner(OracleNoSqlDb db, RateLimiter rateLimiter) {
+		return new RowScanner() {
+			@Override
+			public void scan(@Nullable String after, @Nullable String before, @Nullable Long modifiedSince, Consumer<MapValue> consumer) {
+				db.iterateRange(after, before, modifiedSince, rateLimiter, consumer);
+			}
+
+			@Override
+			public long countRows() {
+				return db.countRows();
+			}
+		};
+	}
+
+	/**
+	 * Run a full backup into a directory, or resume the one already there.
+	 *
+	 * @return The finished manifest
+	 */
+	BackupManifest doBackup(Path outdir) {
+		return doBackup(outdir, null);
 	}
 
-	private void doBackup(File outdir) {
-		if (outdir.exists()) {
-			if (!outdir.isDirectory()) {
-				throw new IllegalArgumentException(outdir.getAbsolutePath() + " is not a directory");
+	/**
+	 * Run an incremental backup into a directory, or resume the one already there.
+	 *
+	 * @param previous A completed backup. Only rows modified after its high-water mark are backed up.
+	 * @return The finished manifest
+	 */
+	BackupManifest doIncrementalBackup(Path previous, Path outdir) {
+		BackupManifest previousManifest = BackupManifest.read(previous, mapper);
+		if (previousManifest == null || previousManifest.completedAt == null) {
+			throw new IllegalArgumentException(previous.toAbsolutePath() + " does not contain a completed backup");
+		}
+		return doBackup(outdir, previousManifest.highWaterMark);
+	}
+
+	private BackupManifest doBackup(Path outdir, @Nullable Long modifiedSince) {
+		try {
+			Files.createDirectories(outdir);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		BackupManifest manifest = BackupManifest.read(outdir, mapper);
+		if (manifest == null) {
+			manifest = new BackupManifest();
+			manifest.startedAt = System.currentTimeMillis();
+			manifest.highWaterMark = manifest.startedAt - HIGH_WATER_MARGIN_MS;
+			manifest.modifiedSince = modifiedSince;
+			// Counting is a full scan, so don't spend read units on it for an incremental backup
+			manifest.expectedRows = modifiedSince == null ? scanner.countRows() : -1;
+			manifest.partitions = splitKeySpace(partitions);
+			manifest.write(outdir, mapper);
+			if (modifiedSince == null) {
+				log.info("Starting backup. Row count: {}", manifest.expectedRows);
+			}
+			else {
+				log.info("Starting incremental backup of rows modified after {}", Instant.ofEpochMilli(modifiedSince));
 			}
 		}
+		else if (!Objects.equals(manifest.modifiedSince, modifiedSince)) {
+			throw new IllegalStateException(outdir.toAbsolutePath() + " contains a different kind of backup");
+		}
+		else if (manifest.completedAt != null) {
+			throw new IllegalStateException(outdir.toAbsolutePath() + " already contains a completed backup");
+		}
 		else {
-			boolean dirsMade = outdir.mkdirs();
-			if (!dirsMade) {
-				throw new IllegalStateException("Could not create directory " + outdir.getAbsolutePath());
+			long done = manifest.partitions.stream().filter(p -> p.done).count();
+			log.info("Resuming backup: {} of {} partitions done, {} rows so far", done, manifest.partitions.size(), manifest.totalRows());
+		}
+
+		List<Future<?>> futures = new ArrayList<>();
+		try (ExecutorService exec = Executors.newFixedThreadPool(threads, Thread.ofVirtual().name("backup-", 0).factory())) {
+			for (int i = 0; i < manifest.partitions.size(); i++) {
+				BackupManifest.Partition partition = manifest.partitions.get(i);
+				if (!partition.done) {
+					PartitionJob job = new PartitionJob(outdir, manifest, partition, i);
+					futures.add(exec.submit(job::run));
+				}
 			}
 		}
-		long rowCount = db.countRows();
-		log.info("Row count: {}", rowCount);
+		RuntimeException failure = null;
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException | InterruptedException e) {
+				if (e instanceof InterruptedException) {
+					Thread.currentThread().interrupt();
+				}
+				if (failure == null) {
+					failure = new RuntimeException("Backup incomplete, run it again to resume", e);
+				}
+				else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		synchronized (manifest) {
+			manifest.completedAt = System.currentTimeMillis();
+			manifest.write(outdir, mapper);
+		}
+		log.info("Backup completed. Total rows: {}, Expected rows: {}", manifest.totalRows(), manifest.expectedRows);
+		return manifest;
+	}
+
+	/**
+	 * Split UUID strings into ranges by their leading hex digits.
+	 */
+	static List<BackupManifest.Partition> splitKeySpace(int partitions) {
+		int digits = Integer.numberOfTrailingZeros(partitions) / 4;
+		List<BackupManifest.Partition> out = new ArrayList<>(partitions);
+		for (int i = 0; i < partitions; i++) {
+			BackupManifest.Partition partition = new BackupManifest.Partition();
+			// A bare prefix sorts before every UUID starting with it, so it works as an exclusive bound
+			partition.after = i == 0 ? null : prefix(i, digits);
+			partition.before = i == partitions - 1 ? null : prefix(i + 1, digits);
+			out.add(partition);
+		}
+		return out;
+	}
+
+	private static String prefix(int value, int digits) {
+		return HexFormat.of().toHexDigits(value).substring(8 - digits);
+	}
+
+	/**
+	 * Backs up one partition, one chunk at a time, checkpointing after each chunk.
+	 */
+	private final class PartitionJob implements Consumer<MapValue> {
+		private final Path outdir;
+		private final BackupManifest manifest;
+		private final BackupManifest.Partition partition;
+		private final int index;
+		private @Nullable BackupChunks.ChunkWriter writer;
+
+		private PartitionJob(Path outdir, BackupManifest manifest, BackupManifest.Partition partition, int index) {
+			this.outdir = outdir;
+			this.manifest = manifest;
+			this.partition = partition;
+			this.index = index;
+		}
 
-		Path outPath = outdir.toPath();
-		AtomicInteger counter = new AtomicInteger();
-		db.iterateAll((v) -> {
-			UUID uuid = UUID.fromString(v.get("linkuuid").getString());
-			Path out = outPath.resolve(uuid + ".json");
+		void run() {
+			String after = partition.lastKey != null ? partition.lastKey : partition.after;
 			try {
-				Files.writeString(out, v.toJson(), StandardCharsets.UTF_8);
-				counter.incrementAndGet();
-				// TODO: possibly redundant now that it has proper unit throttling
-				Thread.sleep(10);
+				scanner.scan(after, partition.before, manifest.modifiedSince, this);
 			}
-			catch (IOException | InterruptedException e) {
-				throw new RuntimeException(e);
+			catch (Throwable t) {
+				if (writer != null) {
+					writer.abandon();
+				}
+				throw t;
 			}
-		});
-		log.info("Backup completed. Total rows: {}, Expected rows: {}", counter.get(), rowCount);
+			if (writer != null) {
+				finishChunk();
+			}
+			synchronized (manifest) {
+				partition.done = true;
+				manifest.write(outdir, mapper);
+			}
+			log.info("Partition {} done", index);
+		}
+
+		@Override
+		public void accept(MapValue row) {
+			if (writer == null) {
+				// Chunks past the last checkpointed one are leftovers from an interrupted run, so overwrite them
+				String name = "part-%03d-%05d.jsonl.gz".formatted(index, partition.chunks.size());
+				writer = new BackupChunks.ChunkWriter(outdir.resolve(name));
+			}
+			writer.write(row.get("linkuuid").getString(), row.toJson());
+			if (writer.rows >= chunkRows) {
+				finishChunk();
+			}
+		}
+
+		private void finishChunk() {
+			BackupChunks.ChunkWriter finished = writer;
+			writer = null;
+			BackupManifest.Chunk chunk = finished.finish();
+			synchronized (manifest) {
+				partition.chunks.add(chunk);
+				partition.lastKey = finished.lastKey;
+				manifest.write(outdir, mapper);
+			}
+		}
 	}
 
 	public static void main(String[] args) {
@@ -72,7 +297,12 @@ public class Backup {
 		pico.addComponent(new ObjectMapper());
 		try {
 			Backup backup = pico.getComponent(Backup.class);
-			backup.doBackup(new File("backup"));
+			if (args.length == 3 && args[0].equals("--incremental")) {
+				backup.doIncrementalBackup(new File(args[1]).toPath(), new File(args[2]).toPath());
+			}
+			else {
+				backup.doBackup(new File(args.length > 0 ? args[0] : "backup").toPath());
+			}
 			log.info("Backup complete");
 			System.exit(0);
 		}
@@ -0,0 +1,151 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reading and writing backup archive chunks: GZIP-compressed files with one JSON row per line.
+ */
+final class BackupChunks {
+
+	private static final Logger log = LoggerFactory.getLogger(BackupChunks.class);
+
+	private BackupChunks() {
+	}
+
+	/**
+	 * Stream the rows of a chunk, checking its row count and SHA-256 against the manifest.
+	 *
+	 * @throws IllegalStateException if the chunk does not match the manifest. Rows read before that point have
+	 *                               already been passed to the consumer.
+	 */
+	static void read(Path dir, BackupManifest.Chunk chunk, Consumer<String> consumer) {
+		MessageDigest sha = sha256();
+		long rows = 0;
+		try (InputStream file = Files.newInputStream(dir.resolve(chunk.file));
+		     DigestInputStream hashed = new DigestInputStream(file, sha);
+		     BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(hashed, 65536), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				consumer.accept(line);
+				rows++;
+			}
+			// Hash any trailing bytes the GZIP stream did not need
+			hashed.transferTo(OutputStream.nullOutputStream());
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		String actual = HexFormat.of().formatHex(sha.digest());
+		if (!actual.equals(chunk.sha256)) {
+			throw new IllegalStateException("Checksum mismatch in %s: expected %s, got %s".formatted(chunk.file, chunk.sha256, actual));
+		}
+		if (rows != chunk.rows) {
+			throw new IllegalStateException("Row count mismatch in %s: expected %s, got %s".formatted(chunk.file, chunk.rows, rows));
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes one GZIP-compressed JSON-lines chunk, and hashes it on the way.
+	 */
+	static final class ChunkWriter {
+		private final Path path;
+		private final FileOutputStream file;
+		private final MessageDigest sha;
+		private final DigestOutputStream hashed;
+		private final GZIPOutputStream gzip;
+		private final Writer out;
+		long rows;
+		@Nullable String lastKey;
+
+		ChunkWriter(Path path) {
+			this.path = path;
+			this.sha = sha256();
+			try {
+				this.file = new FileOutputStream(path.toFile());
+				this.hashed = new DigestOutputStream(new BufferedOutputStream(file, 65536), sha);
+				this.gzip = new GZIPOutputStream(hashed, 65536);
+				this.out = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		void write(String key, String json) {
+			try {
+				out.write(json);
+				out.write('\n');
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			rows++;
+			lastKey = key;
+		}
+
+		BackupManifest.Chunk finish() {
+			try {
+				out.flush();
+				gzip.finish();
+				hashed.flush();
+				// So that the checkpoint never points at data which could still be lost
+				file.getFD().sync();
+				out.close();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			BackupManifest.Chunk chunk = new BackupManifest.Chunk();
+			chunk.file = path.getFileName().toString();
+			chunk.rows = rows;
+			chunk.sha256 = HexFormat.of().formatHex(sha.digest());
+			return chunk;
+		}
+
+		/**
+		 * Close without finishing. The partial file is overwritten when the backup is resumed.
+		 */
+		void abandon() {
+			try {
+				file.close();
+			}
+			catch (IOException e) {
+				log.warn("Error closing {}", path, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package gg.xp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes a backup: which key ranges it covers, and which archive chunks hold each range.
+ * <p>
+ * It is rewritten after every finished chunk, so it doubles as the checkpoint for resuming an interrupted backup.
+ * {@link #completedAt} is only set once every partition is done.
+ * <p>
+ * An incremental backup has {@link #modifiedSince} set, and only contains rows modified after that. The next
+ * incremental backup should start from this backup's {@link #highWaterMark}.
+ */
+final class BackupManifest {
+
+	static final String FILE_NAME = "manifest.json";
+
+	public int version = 1;
+	public long startedAt;
+	public @Nullable Long completedAt;
+	// Rows in the table when the backup started, or -1 if not counted
+	public long expectedRows;
+	// Epoch millis. Null for a full backup.
+	public @Nullable Long modifiedSince;
+	// Epoch millis. Rows modified after this might be missing, so the next incremental backup starts from here.
+	public long highWaterMark;
+	public List<Partition> partitions = new ArrayList<>();
+
+	/**
+	 * A range of linkuuids, backed up in linkuuid order.
+	 */
+	public static final class Partition {
+		// Exclusive bounds, null for unbounded
+		public @Nullable String after;
+		public @Nullable String before;
+		// Last linkuuid in a finished chunk. Resuming continues after this.
+		public @Nullable String lastKey;
+		public boolean done;
+		public List<Chunk> chunks = new ArrayList<>();
+	}
+
+	/**
+	 * One archive file: GZIP-compressed, one JSON row per line.
+	 */
+	public static final class Chunk {
+		public String file;
+		public long rows;
+		// Of the compressed file
+		public String sha256;
+	}
+
+	long totalRows() {
+		return partitions.stream().flatMap(p -> p.chunks.stream()).mapToLong(c -> c.rows).sum();
+	}
+
+	static @Nullable BackupManifest read(Path dir, ObjectMapper mapper) {
+		Path path = dir.resolve(FILE_NAME);
+		if (!Files.exists(path)) {
+			return null;
+		}
+		try {
+			return mapper.readValue(path.toFile(), BackupManifest.class);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Atomically replace the manifest in a directory.
+	 */
+	synchronized void write(Path dir, ObjectMapper mapper) {
+		Path temp = dir.resolve(FILE_NAME + ".tmp");
+		try {
+			mapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), this);
+			Files.move(temp, dir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package gg.xp;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Consolidates a backup and the incremental backups taken after it into one backup.
+ * <p>
+ * Rows which appear in more than one input are only kept once, from the newest input. All inputs must have been taken
+ * with the same partition layout.
+ * <p>
+ * Usage: {@code BackupMerge <outdir> <oldest backup> [<newer backup>...]}
+ */
+public final class BackupMerge {
+
+	private static final Logger log = LoggerFactory.getLogger(BackupMerge.class);
+
+	private final ObjectMapper mapper;
+	private final int chunkRows;
+
+	BackupMerge(ObjectMapper mapper, int chunkRows) {
+		this.mapper = mapper;
+		this.chunkRows = chunkRows;
+	}
+
+	/**
+	 * @param inputs Completed backups, oldest first. Each one after the first must be an incremental backup which
+	 *               starts at or before the high-water mark of the one before it.
+	 * @param outdir Empty directory for the merged backup
+	 * @return The merged manifest
+	 */
+	BackupManifest merge(List<Path> inputs, Path outdir) {
+		if (inputs.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to merge");
+		}
+		List<BackupManifest> manifests = new ArrayList<>();
+		for (Path input : inputs) {
+			BackupManifest manifest = BackupManifest.read(input, mapper);
+			if (manifest == null || manifest.completedAt == null) {
+				throw new IllegalArgumentException(input.toAbsolutePath() + " does not contain a completed backup");
+			}
+			if (!manifests.isEmpty()) {
+				BackupManifest previous = manifests.getLast();
+				if (manifest.modifiedSince == null || manifest.modifiedSince > previous.highWaterMark) {
+					throw new IllegalArgumentException("Rows could be missing between %s and the backup before it".formatted(input.toAbsolutePath()));
+				}
+				if (!sameLayout(previous, manifest)) {
+					throw new IllegalArgumentException(input.toAbsolutePath() + " has a different partition layout");
+				}
+			}
+			manifests.add(manifest);
+		}
+		try {
+			Files.createDirectories(outdir);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (BackupManifest.read(outdir, mapper) != null) {
+			throw new IllegalStateException(outdir.toAbsolutePath() + " already contains a backup");
+		}
+
+		BackupManifest merged = new BackupManifest();
+		merged.startedAt = manifests.getFirst().startedAt;
+		merged.modifiedSince = manifests.getFirst().modifiedSince;
+		merged.highWaterMark = manifests.getLast().highWaterMark;
+		int partitionCount = manifests.getFirst().partitions.size();
+		for (int p = 0; p < partitionCount; p++) {
+			merged.partitions.add(mergePartition(inputs, manifests, p, outdir));
+		}
+		merged.expectedRows = merged.totalRows();
+		merged.completedAt = System.currentTimeMillis();
+		merged.write(outdir, mapper);
+		log.info("Merged {} backups into {} rows", inputs.size(), merged.totalRows());
+		return merged;
+	}
+
+	private BackupManifest.Partition mergePartition(List<Path> inputs, List<BackupManifest> manifests, int index, Path outdir) {
+		BackupManifest.Partition out = new BackupManifest.Partition();
+		out.after = manifests.getFirst().partitions.get(index).after;
+		out.before = manifests.getFirst().partitions.get(index).before;
+		// linkuuid => hash column, to spot rows which changed between backups
+		UuidIndex seen = new UuidIndex(1024);
+		PartitionWriter writer = new PartitionWriter(outdir, out, index);
+		// Newest first, so that the newest copy of a row is the one kept
+		for (int i = inputs.size() - 1; i >= 0; i--) {
+			Path input = inputs.get(i);
+			for (BackupManifest.Chunk chunk : manifests.get(i).partitions.get(index).chunks) {
+				BackupChunks.read(input, chunk, line -> {
+					JsonNode row = parse(line);
+					UUID uuid = UUID.fromString(row.get("linkuuid").asText());
+					long hash = row.path("hash").asLong(-1);
+					long previous = seen.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+					if (previous == UuidIndex.NOT_FOUND) {
+						seen.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), hash);
+						writer.write(uuid.toString(), line);
+					}
+					else if (previous != hash) {
+						log.warn("{} differs between backups, keeping the newest", uuid);
+					}
+				});
+			}
+		}
+		writer.finish();
+		out.done = true;
+		return out;
+	}
+
+	private JsonNode parse(String line) {
+		try {
+			return mapper.readTree(line);
+		}
+		catch (JsonProcessingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean sameLayout(BackupManifest a, BackupManifest b) {
+		if (a.partitions.size() != b.partitions.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.partitions.size(); i++) {
+			if (!Objects.equals(a.partitions.get(i).after, b.partitions.get(i).after)
+					|| !Objects.equals(a.partitions.get(i).before, b.partitions.get(i).before)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private final class PartitionWriter {
+		private final Path outdir;
+		private final BackupManifest.Partition partition;
+		private final int index;
+		private @Nullable BackupChunks.ChunkWriter current;
+
+		private PartitionWriter(Path outdir, BackupManifest.Partition partition, int index) {
+			this.outdir = outdir;
+			this.partition = partition;
+			this.index = index;
+		}
+
+		void write(String key, String line) {
+			if (current == null) {
+				current = new BackupChunks.ChunkWriter(outdir.resolve("part-%03d-%05d.jsonl.gz".formatted(index, partition.chunks.size())));
+			}
+			current.write(key, line);
+			if (current.rows >= chunkRows) {
+				finish();
+			}
+		}
+
+		void finish() {
+			if (current != null) {
+				partition.chunks.add(current.finish());
+				current = null;
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			log.error("Usage: BackupMerge <outdir> <oldest backup> [<newer backup>...]");
+			System.exit(1);
+		}
+		Config config = new Config();
+		List<Path> inputs = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			inputs.add(new File(args[i]).toPath());
+		}
+		try {
+			new BackupMerge(new ObjectMapper(), config.getOrDefault(Integer.class, "backupChunkRows", 10_000))
+					.merge(inputs, new File(args[0]).toPath());
+			System.exit(0);
+		}
+		catch (Throwable t) {
+			log.error("Merge failure", t);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Presents a blocking {@link Database} as an {@link AsyncDatabase}, by running each call on an executor (virtual
+ * threads by default). A {@link ConcurrencyLimiter} caps how many calls are outstanding at once, so that a slow
+ * database builds up a bounded queue here instead of an unbounded pile of threads.
+ */
+public class BlockingDatabaseAdapter implements AsyncDatabase {
+
+	private final Database db;
+	private final Executor executor;
+	private final ConcurrencyLimiter limiter;
+
+	public BlockingDatabaseAdapter(Database db, Config config) {
+		this(db,
+				command -> Thread.ofVirtual().start(command),
+				new ConcurrencyLimiter(
+						config.getOrDefault(Integer.class, "dbMaxConcurrency", 64),
+						config.getOrDefault(Integer.class, "dbMaxQueued", 1024)));
+	}
+
+	public BlockingDatabaseAdapter(Database db, Executor executor, ConcurrencyLimiter limiter) {
+		this.db = db;
+		this.executor = executor;
+		this.limiter = limiter;
+	}
+
+	@Override
+	public CompletableFuture<@Nullable String> getShortlinkAsync(UUID uuid) {
+		return limiter.submit(() -> CompletableFuture.supplyAsync(() -> db.getShortlink(uuid), executor));
+	}
+
+	@Override
+	public CompletableFuture<Void> putShortLinkAsync(UUID uuid, String payload) {
+		return limiter.submit(() -> CompletableFuture.runAsync(() -> db.putShortLink(uuid, payload), executor));
+	}
+
+	public ConcurrencyLimiter getLimiter() {
+		return limiter;
+	}
+}
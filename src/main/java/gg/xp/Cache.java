@@ -3,6 +3,7 @@ package gg.xp;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
 import java.util.UUID;
 import java.util.function.Function;
 
@@ -10,7 +11,32 @@ public interface Cache {
 
 	@Nullable String computeIfAbsent(UUID key, Function<UUID, @Nullable String> getter);
 
-	void set(UUID key, @NotNull String value);
+	/**
+	 * Like {@link #computeIfAbsent(UUID, Function)}, but returns the value in its stored form, so that callers can
+	 * use the compressed bytes directly instead of having them decompressed.
+	 */
+	@Nullable CacheValue computeValueIfAbsent(UUID key, Function<UUID, @Nullable String> getter);
+
+	/**
+	 * @return The value in its stored form, or null if it is not cached. Never loads anything.
+	 */
+	@Nullable CacheValue getIfPresent(UUID key);
+
+	/**
+	 * @return Whether the key is cached. Unlike {@link #getIfPresent(UUID)}, this does not count as a use of it.
+	 */
+	boolean contains(UUID key);
+
+	/**
+	 * @return The value in the form it was stored in, so that callers can use it without another lookup.
+	 */
+	CacheValue set(UUID key, @NotNull String value);
 
 	int cacheSize();
+
+	/**
+	 * @return Up to {@code limit} cached keys, most used first, going by whatever usage counts the cache keeps. Does
+	 * not count as a use of any of them.
+	 */
+	List<UUID> hottestKeys(int limit);
 }
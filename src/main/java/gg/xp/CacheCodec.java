@@ -0,0 +1,48 @@
+package gg.xp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A way of compressing cache entries. Each compressed {@link CacheValue} remembers which codec it was compressed
+ * with.
+ */
+abstract class CacheCodec {
+
+	private final LongAdder decodeCount = new LongAdder();
+	private final LongAdder decodeNanos = new LongAdder();
+	private final LongAdder decodedBytes = new LongAdder();
+
+	/**
+	 * @return Short name, for logging.
+	 */
+	abstract String name();
+
+	abstract byte[] encode(byte[] raw);
+
+	protected abstract byte[] doDecode(byte[] encoded);
+
+	final byte[] decode(byte[] encoded) {
+		long start = System.nanoTime();
+		byte[] out = doDecode(encoded);
+		decodeNanos.add(System.nanoTime() - start);
+		decodedBytes.add(out.length);
+		decodeCount.increment();
+		return out;
+	}
+
+	/**
+	 * @return How long decoding has taken on average so far, in nanoseconds per output byte, or NaN if nothing has
+	 * been decoded yet.
+	 */
+	double decodeNanosPerByte() {
+		long bytes = decodedBytes.sum();
+		if (bytes == 0) {
+			return Double.NaN;
+		}
+		return (double) decodeNanos.sum() / bytes;
+	}
+
+	long decodeCount() {
+		return decodeCount.sum();
+	}
+}
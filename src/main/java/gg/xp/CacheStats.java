@@ -0,0 +1,17 @@
+package gg.xp;
+
+/**
+ * Counters kept by a cache, for metrics.
+ */
+public interface CacheStats {
+	long hitCount();
+
+	long missCount();
+
+	long evictionCount();
+
+	/**
+	 * @return Approximate total size of the stored (usually compressed) values, in bytes
+	 */
+	long storedBytes();
+}
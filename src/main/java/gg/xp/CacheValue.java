@@ -0,0 +1,164 @@
+package gg.xp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A cached payload. Stored compressed if that is worthwhile, otherwise stored as-is. An uncompressed value keeps its
+ * UTF-8 form once it has been needed, so that it is not encoded again for every response.
+ * <p>
+ * Compressed values remember which {@link CacheCodec} compressed them. If that was GZIP, the compressed form is a
+ * complete GZIP stream, so it can be sent as-is to clients which accept {@code Content-Encoding: gzip}.
+ */
+public final class CacheValue {
+
+	private final byte[] compressed;
+	private final CacheCodec codec;
+	// An uncompressed value has at least one of these, and the other is filled in the first time it is needed
+	private volatile String uncompressed;
+	private volatile byte[] uncompressedUtf8;
+	private final int size;
+
+	/**
+	 * Compress a value with GZIP right away.
+	 */
+	CacheValue(String value) {
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		CacheValue out = CodecSelector.gzipOnly().compress(utf8);
+		if (out != null) {
+			this.compressed = out.compressed;
+			this.codec = out.codec;
+			this.size = compressed.length;
+		}
+		else {
+			this.compressed = null;
+			this.codec = null;
+			this.uncompressed = value;
+			this.uncompressedUtf8 = utf8;
+			this.size = value.length();
+		}
+	}
+
+	CacheValue(byte[] compressed, CacheCodec codec) {
+		this.compressed = compressed;
+		this.codec = codec;
+		this.size = compressed.length;
+	}
+
+	private CacheValue(String uncompressed, byte[] uncompressedUtf8, int size) {
+		this.compressed = null;
+		this.codec = null;
+		this.uncompressed = uncompressed;
+		this.uncompressedUtf8 = uncompressedUtf8;
+		this.size = size;
+	}
+
+	/**
+	 * Wrap a value without compressing it yet. Use {@link #compress()} later to get the compressed form.
+	 */
+	static CacheValue uncompressed(String value) {
+		return new CacheValue(value, null, value.length());
+	}
+
+	/**
+	 * Wrap a value which is already UTF-8 encoded, without compressing it yet. The array must not be modified
+	 * afterwards.
+	 */
+	static CacheValue uncompressed(byte[] utf8) {
+		return new CacheValue(null, utf8, utf8.length);
+	}
+
+	/**
+	 * @return A GZIP-compressed copy of this value, or this value itself if it is already compressed or if compressing
+	 * it is not worth it.
+	 */
+	CacheValue compress() {
+		return compress(CodecSelector.gzipOnly());
+	}
+
+	/**
+	 * @return A copy of this value compressed with whichever codec the selector picks, or this value itself if it is
+	 * already compressed or if compressing it is not worth it.
+	 */
+	CacheValue compress(CodecSelector selector) {
+		if (compressed != null) {
+			return this;
+		}
+		// Don't keep the encoded form, since this value is about to be replaced
+		byte[] utf8 = uncompressedUtf8;
+		CacheValue out = selector.compress(utf8 != null ? utf8 : uncompressed.getBytes(StandardCharsets.UTF_8));
+		return out == null ? this : out;
+	}
+
+	public String getValue() {
+		if (compressed != null) {
+			return new String(codec.decode(compressed), StandardCharsets.UTF_8);
+		}
+		String value = uncompressed;
+		if (value == null) {
+			uncompressed = value = new String(uncompressedUtf8, StandardCharsets.UTF_8);
+		}
+		return value;
+	}
+
+	/**
+	 * @return This value as UTF-8. If it is stored uncompressed, the encoded form is kept, so do not modify it.
+	 */
+	public byte[] getUtf8() {
+		if (compressed != null) {
+			return codec.decode(compressed);
+		}
+		byte[] utf8 = uncompressedUtf8;
+		if (utf8 == null) {
+			uncompressedUtf8 = utf8 = uncompressed.getBytes(StandardCharsets.UTF_8);
+		}
+		return utf8;
+	}
+
+	/**
+	 * @return Whether this value is stored compressed, with any codec.
+	 */
+	public boolean isCompressed() {
+		return compressed != null;
+	}
+
+	/**
+	 * @return Whether this value is stored GZIP-compressed, i.e. whether {@link #getCompressed()} can be sent to
+	 * clients as-is.
+	 */
+	public boolean isGzipped() {
+		return codec == GzipCodec.INSTANCE;
+	}
+
+	/**
+	 * @return The compressed form of this value. Do not modify the returned array.
+	 * @throws IllegalStateException if this value is not stored compressed
+	 */
+	public byte[] getCompressed() {
+		if (compressed == null) {
+			throw new IllegalStateException("Value is not compressed");
+		}
+		return compressed;
+	}
+
+	/**
+	 * @return The codec this value was compressed with, or null if it is not stored compressed.
+	 */
+	CacheCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return Approximate size of the stored form of this value, in bytes.
+	 */
+	int size() {
+		return size;
+	}
+
+	static byte[] compressStringToBytes(String inStr) {
+		return GzipCodec.INSTANCE.encode(inStr.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static String uncompressBytesToString(byte[] compressed) {
+		return new String(GzipCodec.INSTANCE.decode(compressed), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,290 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps a restart from starting with an empty cache.
+ * <p>
+ * Every so often, and at shutdown, the cache's hottest keys are written to a small snapshot file (just the UUIDs, most
+ * used first). At startup, those keys are fetched from the database in the background, at most
+ * {@code cacheWarmupParallelism} at a time and no faster than {@code cacheWarmupRate} per second, so that warming up
+ * does not crowd out real traffic. The server takes requests the whole time, and {@link #isReady()} says whether the
+ * warm-up is done.
+ * <p>
+ * Disabled unless {@code cacheSnapshotFile} is set.
+ */
+public class CacheWarmer implements Startable {
+
+	private static final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+	private static final int MAGIC = 0x58474853;
+	private static final long SHUTDOWN_WAIT_MS = 5_000;
+
+	private final Cache cache;
+	private final AsyncDatabase db;
+	private final @Nullable Path snapshotFile;
+	private final int maxKeys;
+	private final long snapshotIntervalMs;
+	private final int ratePerSecond;
+	private final Semaphore permits;
+	private final int parallelism;
+	private final AtomicInteger loaded = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final Thread warmer;
+	private final Thread snapshotter;
+	private volatile int total;
+	private volatile boolean ready;
+	private volatile boolean stop;
+
+	public CacheWarmer(Cache cache, AsyncDatabase db, Config config) {
+		this(cache, db,
+				toPath(config.getOrDefault(String.class, "cacheSnapshotFile", null)),
+				config.getOrDefault(Integer.class, "cacheSnapshotKeys", 10_000),
+				config.getOrDefault(Integer.class, "cacheSnapshotIntervalSeconds", 300) * 1000L,
+				config.getOrDefault(Integer.class, "cacheWarmupRate", 200),
+				config.getOrDefault(Integer.class, "cacheWarmupParallelism", 16));
+	}
+
+	/**
+	 * @param snapshotFile       Where to keep the snapshot, or null to disable warming up entirely
+	 * @param maxKeys            How many keys to snapshot
+	 * @param snapshotIntervalMs How often to take a snapshot
+	 * @param ratePerSecond      Maximum number of links to start fetching per second during warm-up
+	 * @param parallelism        Maximum number of fetches in progress at once during warm-up
+	 */
+	public CacheWarmer(Cache cache, AsyncDatabase db, @Nullable Path snapshotFile, int maxKeys, long snapshotIntervalMs, int ratePerSecond, int parallelism) {
+		this.cache = cache;
+		this.db = db;
+		this.snapshotFile = snapshotFile;
+		this.maxKeys = maxKeys;
+		this.snapshotIntervalMs = snapshotIntervalMs;
+		this.ratePerSecond = ratePerSecond;
+		this.parallelism = parallelism;
+		this.permits = new Semaphore(parallelism);
+		this.warmer = Thread.ofVirtual().name("cache-warmer").unstarted(this::warmUp);
+		this.snapshotter = Thread.ofVirtual().name("cache-snapshot").unstarted(this::snapshotLoop);
+		this.ready = snapshotFile == null;
+	}
+
+	private static @Nullable Path toPath(@Nullable String path) {
+		return path == null ? null : Path.of(path);
+	}
+
+	@Override
+	public void start() {
+		if (snapshotFile == null) {
+			return;
+		}
+		warmer.start();
+		snapshotter.start();
+	}
+
+	@Override
+	public void stop() {
+		if (snapshotFile == null) {
+			return;
+		}
+		stop = true;
+		warmer.interrupt();
+		snapshotter.interrupt();
+		try {
+			warmer.join(SHUTDOWN_WAIT_MS);
+			snapshotter.join(SHUTDOWN_WAIT_MS);
+		}
+		catch (InterruptedException e) {
+			log.error("Interrupted while stopping cache warmer", e);
+		}
+		// Only if the warm-up got to finish, since otherwise the cache has not seen enough traffic to know what is hot,
+		// and the old snapshot is a better guess
+		if (ready) {
+			snapshot();
+		}
+	}
+
+	/**
+	 * @return Whether the warm-up is finished, or was never needed.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return Human-readable warm-up progress, for the health check.
+	 */
+	public String getStatus() {
+		if (snapshotFile == null) {
+			return "disabled";
+		}
+		String progress = "%s/%s loaded, %s failed".formatted(loaded.get(), total, failed.get());
+		return ready ? "done (%s)".formatted(progress) : "warming (%s)".formatted(progress);
+	}
+
+	private void warmUp() {
+		try {
+			List<UUID> keys = readSnapshot();
+			total = keys.size();
+			if (keys.isEmpty()) {
+				log.info("No cache snapshot to warm up from");
+				return;
+			}
+			log.info("Warming up cache with {} links", keys.size());
+			long start = System.nanoTime();
+			long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, ratePerSecond);
+			long next = start;
+			for (UUID key : keys) {
+				if (stop) {
+					return;
+				}
+				if (cache.contains(key)) {
+					// Already fetched by a real request
+					loaded.incrementAndGet();
+					continue;
+				}
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				next = Math.max(next, System.nanoTime() - interval) + interval;
+				permits.acquire();
+				fetch(key);
+			}
+			// Wait for the last fetches to finish
+			permits.acquire(parallelism);
+			permits.release(parallelism);
+			log.info("Cache warm-up done in {}ms: {} loaded, {} failed",
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), loaded.get(), failed.get());
+		}
+		catch (InterruptedException e) {
+			log.info("Cache warm-up interrupted");
+		}
+		catch (Throwable t) {
+			log.error("Cache warm-up failed", t);
+		}
+		finally {
+			ready = !stop;
+		}
+	}
+
+	private void fetch(UUID key) {
+		try {
+			db.getShortlinkAsync(key).whenComplete((value, error) -> {
+				try {
+					if (error != null) {
+						failed.incrementAndGet();
+						log.warn("Could not warm up {}: {}", key, error.toString());
+					}
+					else if (value == null) {
+						// Gone from the database since the snapshot was taken
+						failed.incrementAndGet();
+					}
+					else {
+						if (!cache.contains(key)) {
+							cache.set(key, value);
+						}
+						loaded.incrementAndGet();
+					}
+				}
+				finally {
+					permits.release();
+				}
+			});
+		}
+		catch (Throwable t) {
+			permits.release();
+			failed.incrementAndGet();
+			log.warn("Could not warm up {}: {}", key, t.toString());
+		}
+	}
+
+	private void snapshotLoop() {
+		while (!stop) {
+			try {
+				Thread.sleep(snapshotIntervalMs);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			// Same reason as in stop()
+			if (ready) {
+				snapshot();
+			}
+		}
+	}
+
+	/**
+	 * Write the cache's hottest keys to the snapshot file, replacing the old one.
+	 */
+	void snapshot() {
+		if (snapshotFile == null) {
+			return;
+		}
+		List<UUID> keys = cache.hottestKeys(maxKeys);
+		Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+		try {
+			Path parent = snapshotFile.toAbsolutePath().getParent();
+			if (parent != null) {
+				Files.createDirectories(parent);
+			}
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(keys.size());
+				for (UUID key : keys) {
+					out.writeLong(key.getMostSignificantBits());
+					out.writeLong(key.getLeastSignificantBits());
+				}
+			}
+			Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log.info("Saved {} hot keys to {}", keys.size(), snapshotFile);
+		}
+		catch (IOException e) {
+			log.error("Error saving cache snapshot to {}", snapshotFile, e);
+		}
+	}
+
+	/**
+	 * @return The keys in the snapshot file, most used first, or nothing if there is no usable snapshot.
+	 */
+	List<UUID> readSnapshot() {
+		if (snapshotFile == null) {
+			return List.of();
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+			if (in.readInt() != MAGIC) {
+				log.warn("Ignoring {}, not a cache snapshot", snapshotFile);
+				return List.of();
+			}
+			int count = Math.min(in.readInt(), maxKeys);
+			List<UUID> keys = new ArrayList<>(Math.max(0, count));
+			for (int i = 0; i < count; i++) {
+				keys.add(new UUID(in.readLong(), in.readLong()));
+			}
+			return keys;
+		}
+		catch (NoSuchFileException e) {
+			return List.of();
+		}
+		catch (IOException e) {
+			log.warn("Ignoring unreadable cache snapshot {}", snapshotFile, e);
+			return List.of();
+		}
+	}
+}
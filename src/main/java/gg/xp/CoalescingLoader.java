@@ -0,0 +1,76 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Makes sure only one load per key is in progress at a time. Callers which ask for a key that is already being
+ * loaded wait for that load instead of starting their own.
+ * <p>
+ * No lock is held while loading, so a slow load only blocks callers asking for that same key.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+final class CoalescingLoader<K, V> {
+
+	private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Load a value, or wait for an in-progress load of the same key.
+	 * <p>
+	 * The loader should store its result somewhere visible (e.g. the cache map) before returning, and should check
+	 * that place first, since a caller can miss the in-flight entry just after the previous load finished.
+	 *
+	 * @param key    The key
+	 * @param loader The loader. Exceptions are propagated to every caller waiting on that load.
+	 * @return The loaded value
+	 */
+	@Nullable V load(K key, Function<K, @Nullable V> loader) {
+		CompletableFuture<V> ours = new CompletableFuture<>();
+		CompletableFuture<V> theirs = inFlight.putIfAbsent(key, ours);
+		if (theirs != null) {
+			return await(theirs);
+		}
+		try {
+			V value = loader.apply(key);
+			ours.complete(value);
+			return value;
+		}
+		catch (Throwable t) {
+			ours.completeExceptionally(t);
+			throw t;
+		}
+		finally {
+			inFlight.remove(key, ours);
+		}
+	}
+
+	/**
+	 * @return The number of loads currently in progress.
+	 */
+	int inFlightCount() {
+		return inFlight.size();
+	}
+
+	private static <V> V await(CompletableFuture<V> future) {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException re) {
+				throw re;
+			}
+			if (cause instanceof Error err) {
+				throw err;
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package gg.xp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Picks how to compress each cache entry.
+ * <p>
+ * GZIP is the default, since GZIP entries can be served to most clients without decompressing them at all. Once
+ * enough payloads have been seen to train a dictionary, each entry is also tried with the {@link DictionaryCodec},
+ * which is used instead if it is meaningfully smaller, and if its measured decoding speed isn't much worse than
+ * GZIP's.
+ */
+public final class CodecSelector {
+
+	private static final Logger log = LoggerFactory.getLogger(CodecSelector.class);
+	private static final float WORST_COMPRESS_RATIO = 0.80f;
+	// Dictionary output must be at least this much smaller than GZIP to give up on serving GZIP directly
+	private static final float MIN_GAIN_OVER_GZIP = 0.15f;
+	// ...and must not be this much slower to decode
+	private static final double MAX_DECODE_SLOWDOWN = 2.0;
+	private static final CodecSelector GZIP_ONLY = new CodecSelector(0);
+
+	private final int samplesNeeded;
+	private final List<String> samples;
+	private volatile DictionaryCodec dictionary;
+
+	private CodecSelector(int samplesNeeded) {
+		this.samplesNeeded = samplesNeeded;
+		this.samples = new ArrayList<>(samplesNeeded);
+	}
+
+	/**
+	 * @return A selector which only ever uses GZIP.
+	 */
+	public static CodecSelector gzipOnly() {
+		return GZIP_ONLY;
+	}
+
+	/**
+	 * @param samplesNeeded Train a dictionary once this many payloads have been seen
+	 * @return A selector which also uses a dictionary, trained from the first payloads it sees.
+	 */
+	public static CodecSelector withDictionary(int samplesNeeded) {
+		return new CodecSelector(samplesNeeded);
+	}
+
+	/**
+	 * Train a dictionary right away from the given samples, e.g. payloads sampled from the database.
+	 */
+	public void train(Collection<String> samples) {
+		if (this == GZIP_ONLY) {
+			throw new UnsupportedOperationException("This selector only uses GZIP");
+		}
+		byte[] dict = DictionaryTrainer.train(samples, DictionaryTrainer.MAX_DICTIONARY_BYTES);
+		if (dict.length == 0) {
+			log.warn("Samples had nothing in common, not using a dictionary");
+			return;
+		}
+		dictionary = new DictionaryCodec(dict);
+		log.info("Trained {} byte compression dictionary from {} samples", dict.length, samples.size());
+	}
+
+	/**
+	 * @return Whether a dictionary is in use yet.
+	 */
+	public boolean hasDictionary() {
+		return dictionary != null;
+	}
+
+	/**
+	 * Compress a value with whichever codec works best for it.
+	 *
+	 * @return The compressed value, or null if compressing it is not worth it.
+	 */
+	CacheValue compress(String value) {
+		return compress(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Like {@link #compress(String)}, for a value which is already UTF-8 encoded.
+	 */
+	CacheValue compress(byte[] raw) {
+		sample(raw);
+		CacheCodec codec = GzipCodec.INSTANCE;
+		byte[] encoded = GzipCodec.INSTANCE.encode(raw);
+		DictionaryCodec dict = dictionary;
+		if (dict != null && decodeSpeedAcceptable(dict)) {
+			byte[] dictEncoded = dict.encode(raw);
+			if (dictEncoded.length < encoded.length * (1 - MIN_GAIN_OVER_GZIP)) {
+				codec = dict;
+				encoded = dictEncoded;
+			}
+		}
+		// Only compress if actually worth it
+		if (encoded.length < (raw.length * WORST_COMPRESS_RATIO)) {
+			return new CacheValue(encoded, codec);
+		}
+		return null;
+	}
+
+	private static boolean decodeSpeedAcceptable(DictionaryCodec dict) {
+		double dictSpeed = dict.decodeNanosPerByte();
+		double gzipSpeed = GzipCodec.INSTANCE.decodeNanosPerByte();
+		// Not enough data to say otherwise
+		if (Double.isNaN(dictSpeed) || Double.isNaN(gzipSpeed) || dict.decodeCount() < 100) {
+			return true;
+		}
+		return dictSpeed <= gzipSpeed * MAX_DECODE_SLOWDOWN;
+	}
+
+	private void sample(byte[] raw) {
+		if (samplesNeeded == 0 || dictionary != null) {
+			return;
+		}
+		List<String> toTrain = null;
+		synchronized (samples) {
+			if (samples.size() < samplesNeeded) {
+				samples.add(new String(raw, StandardCharsets.UTF_8));
+				if (samples.size() == samplesNeeded) {
+					toTrain = new ArrayList<>(samples);
+					samples.clear();
+				}
+			}
+		}
+		if (toTrain != null) {
+			train(toTrain);
+		}
+	}
+}
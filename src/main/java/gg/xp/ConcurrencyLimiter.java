@@ -0,0 +1,102 @@
+package gg.xp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Caps the number of asynchronous operations in flight at once. Operations over the cap wait in a bounded queue,
+ * without blocking any thread, and are started as earlier ones complete. Once the queue is full too, new operations
+ * fail immediately with {@link RejectedExecutionException}.
+ */
+public final class ConcurrencyLimiter {
+
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final Queue<Runnable> queue = new ArrayDeque<>();
+	private final LongAdder rejected = new LongAdder();
+	private int inFlight;
+
+	/**
+	 * @param maxConcurrent Maximum operations in flight
+	 * @param maxQueued     Maximum operations waiting to start
+	 */
+	public ConcurrencyLimiter(int maxConcurrent, int maxQueued) {
+		if (maxConcurrent < 1 || maxQueued < 0) {
+			throw new IllegalArgumentException("Bad limits: %s concurrent, %s queued".formatted(maxConcurrent, maxQueued));
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Start an operation now, or once there is room.
+	 *
+	 * @param operation Starts the operation. Must not block.
+	 * @return Completes with the operation's result, or exceptionally if it was rejected or failed
+	 */
+	public <X> CompletableFuture<X> submit(Supplier<CompletableFuture<X>> operation) {
+		CompletableFuture<X> result = new CompletableFuture<>();
+		Runnable start = () -> run(operation, result);
+		synchronized (this) {
+			if (inFlight >= maxConcurrent) {
+				if (queue.size() >= maxQueued) {
+					rejected.increment();
+					return CompletableFuture.failedFuture(new RejectedExecutionException("Too many operations in flight"));
+				}
+				queue.add(start);
+				return result;
+			}
+			inFlight++;
+		}
+		start.run();
+		return result;
+	}
+
+	private <X> void run(Supplier<CompletableFuture<X>> operation, CompletableFuture<X> result) {
+		CompletableFuture<X> future;
+		try {
+			future = operation.get();
+		}
+		catch (Throwable t) {
+			future = CompletableFuture.failedFuture(t);
+		}
+		future.whenComplete((value, error) -> {
+			release();
+			if (error != null) {
+				result.completeExceptionally(error);
+			}
+			else {
+				result.complete(value);
+			}
+		});
+	}
+
+	private void release() {
+		Runnable next;
+		synchronized (this) {
+			next = queue.poll();
+			if (next == null) {
+				inFlight--;
+				return;
+			}
+			// The permit passes straight to the next operation
+		}
+		next.run();
+	}
+
+	public synchronized int inFlightCount() {
+		return inFlight;
+	}
+
+	public synchronized int queuedCount() {
+		return queue.size();
+	}
+
+	public long rejectedCount() {
+		return rejected.sum();
+	}
+}
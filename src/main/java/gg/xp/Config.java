@@ -22,6 +22,22 @@ public class Config {
 	}
 
 	public <X> X getRequired(Class<X> type, String key) {
+		String effectiveValue = lookup(key);
+		if (effectiveValue == null) {
+			throw new RuntimeException("Property not found: " + key);
+		}
+		return mapper.convertValue(effectiveValue, type);
+	}
+
+	public <X> X getOrDefault(Class<X> type, String key, X defaultValue) {
+		String effectiveValue = lookup(key);
+		if (effectiveValue == null) {
+			return defaultValue;
+		}
+		return mapper.convertValue(effectiveValue, type);
+	}
+
+	private static String lookup(String key) {
 		String effectiveValue = System.getenv(key);
 		if (effectiveValue == null) {
 			effectiveValue = System.getProperty(key);
@@ -29,9 +45,6 @@ public class Config {
 		if (effectiveValue == null) {
 			effectiveValue = customProps.getProperty(key);
 		}
-		if (effectiveValue == null) {
-			throw new RuntimeException("Property not found: " + key);
-		}
-		return mapper.convertValue(effectiveValue, type);
+		return effectiveValue;
 	}
 }
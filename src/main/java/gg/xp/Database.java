@@ -2,10 +2,21 @@ package gg.xp;
 
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Map;
 import java.util.UUID;
 
 public interface Database {
 	@Nullable String getShortlink(UUID uuid);
 
 	void putShortLink(UUID uuid, String payload);
+
+	/**
+	 * Write several shortlinks. If this throws, some of them may have been written anyway. Writing the same UUID and
+	 * payload again is harmless, so the whole batch can simply be retried.
+	 *
+	 * @param payloads UUID to payload
+	 */
+	default void putShortLinks(Map<UUID, String> payloads) {
+		payloads.forEach(this::putShortLink);
+	}
 }
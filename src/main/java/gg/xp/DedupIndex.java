@@ -0,0 +1,55 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Local index of recently stored payloads, keyed by a SHA-256 digest of their canonical JSON form (see
+ * {@link gg.xp.util.JsonUtils#scan(byte[])}), so that sharing the exact same sheet again with {@code ?reuse} can reuse
+ * the existing link instead of storing another copy.
+ * <p>
+ * Bounded, least recently used entries are dropped first. A size of 0 disables deduplication.
+ */
+public class DedupIndex {
+
+	private final int maxEntries;
+	private final Map<ByteBuffer, UUID> index;
+
+	public DedupIndex(Config config) {
+		this(config.getOrDefault(Integer.class, "dedupeIndexSize", 100_000));
+	}
+
+	public DedupIndex(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.index = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, UUID> eldest) {
+				return size() > DedupIndex.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return The link previously stored with this digest, if known.
+	 */
+	public synchronized @Nullable UUID get(byte[] digest) {
+		return index.get(ByteBuffer.wrap(digest));
+	}
+
+	/**
+	 * Record that a payload with this digest has been stored under this link.
+	 */
+	public synchronized void put(byte[] digest, UUID uuid) {
+		if (maxEntries > 0) {
+			index.put(ByteBuffer.wrap(digest), uuid);
+		}
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+}
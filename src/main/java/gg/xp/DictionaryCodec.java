@@ -0,0 +1,77 @@
+package gg.xp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate with a preset dictionary. Since gear sheets share most of their keys and many of their values, priming
+ * the compressor with a dictionary of those compresses small payloads much better than plain GZIP, which has to
+ * learn them from scratch for every entry.
+ * <p>
+ * The output can only be decoded with the same dictionary, so unlike {@link GzipCodec} it can't be sent to clients
+ * directly.
+ */
+final class DictionaryCodec extends CacheCodec {
+
+	private final byte[] dictionary;
+
+	DictionaryCodec(byte[] dictionary) {
+		this.dictionary = dictionary.clone();
+	}
+
+	@Override
+	String name() {
+		return "dictionary";
+	}
+
+	int dictionarySize() {
+		return dictionary.length;
+	}
+
+	@Override
+	byte[] encode(byte[] raw) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setDictionary(dictionary);
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 16);
+			byte[] buffer = new byte[4096];
+			while (!deflater.finished()) {
+				int len = deflater.deflate(buffer);
+				out.write(buffer, 0, len);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	protected byte[] doDecode(byte[] encoded) {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setDictionary(dictionary);
+			inflater.setInput(encoded);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 4);
+			byte[] buffer = new byte[4096];
+			while (!inflater.finished()) {
+				int len = inflater.inflate(buffer);
+				if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalStateException("Truncated or corrupt dictionary-compressed value");
+				}
+				out.write(buffer, 0, len);
+			}
+			return out.toByteArray();
+		}
+		catch (DataFormatException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package gg.xp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a preset dictionary for {@link DictionaryCodec} out of sample JSON payloads.
+ * <p>
+ * Picks out field names and field/value fragments (e.g. {@code "id":40172}) which show up in many different samples,
+ * and packs the most valuable ones into the dictionary. Deflate can reach back further more cheaply for closer
+ * matches, so the most valuable fragments go at the end.
+ */
+final class DictionaryTrainer {
+
+	// Deflate can't look back further than its 32K window
+	static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+
+	private static final String JSON_STRING = "\"(?:[^\"\\\\]|\\\\.){0,60}\"";
+	private static final Pattern FIELD = Pattern.compile(
+			JSON_STRING + ":(?:" + JSON_STRING + "|-?\\d+(?:\\.\\d+)?(?:[eE][+-]?\\d+)?|true|false|null|\\{|\\[)?");
+
+	private DictionaryTrainer() {
+	}
+
+	/**
+	 * @param samples  Sample payloads
+	 * @param maxBytes Maximum dictionary size
+	 * @return The dictionary. May be empty if the samples have nothing in common.
+	 */
+	static byte[] train(Collection<String> samples, int maxBytes) {
+		maxBytes = Math.min(maxBytes, MAX_DICTIONARY_BYTES);
+		// How many samples each fragment appears in
+		Map<String, Integer> docFrequency = new HashMap<>();
+		for (String sample : samples) {
+			Set<String> seen = new HashSet<>();
+			Matcher matcher = FIELD.matcher(sample);
+			while (matcher.find()) {
+				String fragment = matcher.group();
+				seen.add(fragment);
+				int colon = fragment.indexOf("\":");
+				if (colon > 0 && colon + 2 < fragment.length()) {
+					// Also count the field name by itself, since the value varies more often than the name
+					seen.add(fragment.substring(0, colon + 2));
+				}
+			}
+			for (String fragment : seen) {
+				docFrequency.merge(fragment, 1, Integer::sum);
+			}
+		}
+		int minFrequency = Math.max(2, samples.size() / 20);
+		List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+		for (Map.Entry<String, Integer> entry : docFrequency.entrySet()) {
+			if (entry.getValue() >= minFrequency) {
+				candidates.add(entry);
+			}
+		}
+		// Most valuable first: saves the most bytes across all samples
+		candidates.sort((a, b) -> Long.compare(score(b), score(a)));
+		List<byte[]> chosen = new ArrayList<>();
+		int total = 0;
+		for (Map.Entry<String, Integer> candidate : candidates) {
+			byte[] bytes = candidate.getKey().getBytes(StandardCharsets.UTF_8);
+			if (total + bytes.length > maxBytes) {
+				continue;
+			}
+			chosen.add(bytes);
+			total += bytes.length;
+		}
+		// Least valuable first, so the most valuable end up closest to the data
+		ByteArrayOutputStream out = new ByteArrayOutputStream(total);
+		for (int i = chosen.size() - 1; i >= 0; i--) {
+			out.writeBytes(chosen.get(i));
+		}
+		return out.toByteArray();
+	}
+
+	private static long score(Map.Entry<String, Integer> entry) {
+		return (long) entry.getKey().length() * entry.getValue();
+	}
+}
@@ -0,0 +1,116 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Database wrapper which keeps a copy of every link it reads or writes in a {@link SegmentFileStore} on local disk,
+ * and reads from there first.
+ * <p>
+ * Unlike the in-memory cache, the disk cache survives restarts, so a restarted node does not have to fetch every
+ * popular link from the real database again. Errors from the disk cache are logged, and the real database is used
+ * instead.
+ */
+public class DiskCacheDatabase implements Database, Startable {
+
+	private static final Logger log = LoggerFactory.getLogger(DiskCacheDatabase.class);
+	private static final int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	private final Database delegate;
+	private final SegmentFileStore store;
+
+	public DiskCacheDatabase(Database delegate, Config config) {
+		this(delegate,
+				config.getRequired(File.class, "diskCacheDir").toPath(),
+				config.getOrDefault(Long.class, "diskCacheMaxBytes", 1024L * 1024 * 1024));
+	}
+
+	/**
+	 * @param delegate The real database
+	 * @param dir      Directory for the cache files
+	 * @param maxBytes Approximate maximum size of the cache files
+	 */
+	public DiskCacheDatabase(Database delegate, Path dir, long maxBytes) {
+		this.delegate = delegate;
+		int segmentSize = (int) Math.min(MAX_SEGMENT_BYTES, Math.max(64 * 1024, maxBytes / 4));
+		this.store = new SegmentFileStore(dir, segmentSize, maxBytes);
+	}
+
+	@Override
+	public void start() {
+		if (delegate instanceof Startable startable) {
+			startable.start();
+		}
+		store.open();
+	}
+
+	@Override
+	public void stop() {
+		store.close();
+		if (delegate instanceof Startable startable) {
+			startable.stop();
+		}
+	}
+
+	@Override
+	public @Nullable String getShortlink(UUID uuid) {
+		try {
+			String cached = store.get(uuid);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		catch (Throwable t) {
+			log.error("Error reading {} from disk cache", uuid, t);
+		}
+		String payload = delegate.getShortlink(uuid);
+		if (payload != null) {
+			store(uuid, payload);
+		}
+		return payload;
+	}
+
+	@Override
+	public void putShortLink(UUID uuid, String payload) {
+		delegate.putShortLink(uuid, payload);
+		store(uuid, payload);
+	}
+
+	@Override
+	public void putShortLinks(Map<UUID, String> payloads) {
+		delegate.putShortLinks(payloads);
+		payloads.forEach(this::store);
+	}
+
+	public long hitCount() {
+		return store.hitCount();
+	}
+
+	public long missCount() {
+		return store.missCount();
+	}
+
+	public long evictionCount() {
+		return store.evictionCount();
+	}
+
+	public int cachedCount() {
+		return store.size();
+	}
+
+	private void store(UUID uuid, String payload) {
+		try {
+			store.put(uuid, payload);
+		}
+		catch (Throwable t) {
+			log.error("Error writing {} to disk cache", uuid, t);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package gg.xp;
+
+/**
+ * Count-min sketch of 4-bit counters, used to estimate how often a key has been seen recently.
+ * <p>
+ * Each long in the table holds sixteen counters. Once the number of increments reaches the sample size, every
+ * counter is halved, so that old popularity decays instead of pinning entries forever.
+ * <p>
+ * Not thread safe. Concurrent increments can lose updates, which is fine, since approximate is good enough.
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L,
+			0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L
+	};
+	private static final long RESET_MASK = 0x7777_7777_7777_7777L;
+	private static final long ONE_MASK = 0x1111_1111_1111_1111L;
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int size;
+
+	FrequencySketch(int expectedEntries) {
+		int capacity = Integer.highestOneBit(Math.max(16, Math.min(expectedEntries, 1 << 26)) - 1) << 1;
+		this.table = new long[capacity];
+		this.tableMask = capacity - 1;
+		this.sampleSize = 10 * capacity;
+	}
+
+	/**
+	 * @param hashCode Hash code of the key
+	 * @return Estimated frequency of the key, from 0 to 15
+	 */
+	int frequency(int hashCode) {
+		int hash = spread(hashCode);
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Record an occurrence of a key.
+	 *
+	 * @param hashCode Hash code of the key
+	 */
+	void increment(int hashCode) {
+		int hash = spread(hashCode);
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && ++size >= sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int index, int counter) {
+		int offset = counter << 2;
+		long mask = 0xfL << offset;
+		if ((table[index] & mask) != mask) {
+			table[index] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	private void reset() {
+		int oddCounters = 0;
+		for (int i = 0; i < table.length; i++) {
+			oddCounters += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size - (oddCounters >>> 2)) >>> 1;
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
@@ -2,14 +2,21 @@ package gg.xp;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gg.xp.handlers.Healthcheck;
+import gg.xp.handlers.PeerCacheEndpoint;
+import gg.xp.handlers.PrometheusMetrics;
 import gg.xp.handlers.Share;
+import gg.xp.handlers.SharePages;
 import gg.xp.handlers.Shortlink;
+import gg.xp.handlers.ShortlinkBatch;
 import org.picocontainer.MutablePicoContainer;
 import org.picocontainer.PicoBuilder;
 import org.picocontainer.lifecycle.StartableLifecycleStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
+import java.util.List;
+
 public class GearPlanServerMain {
 
 	private static final Logger log = LoggerFactory.getLogger(GearPlanServerMain.class);
@@ -23,15 +30,31 @@ public class GearPlanServerMain {
 				.build();
 		Config config = new Config();
 		pico.addComponent(config);
+		Metrics metrics = new Metrics();
+		pico.addComponent(metrics);
 		pico.addComponent(Server.class);
-		pico.addComponent(new GzipCacheImpl(5000, 10_000));
-		pico.addComponent(OracleNoSqlDb.class);
+		pico.addComponent(buildCache(config));
+		pico.addComponent(CacheWarmer.class);
 		pico.addComponent(Healthcheck.class);
+		pico.addComponent(PrometheusMetrics.class);
 		pico.addComponent(Stats.class);
+		pico.addComponent(DedupIndex.class);
+		pico.addComponent(SharePages.class);
+		if (config.getOrDefault(String.class, "peers", null) != null) {
+			log.info("Peer cache enabled");
+			pico.addComponent(PeerCache.class);
+			pico.addComponent(PeerCacheEndpoint.class);
+		}
+		else {
+			pico.addComponent(AsyncCacheAdapter.class);
+		}
+		pico.addComponent(BlockingDatabaseAdapter.class);
 		pico.addComponent(Shortlink.class);
+		pico.addComponent(ShortlinkBatch.class);
 		pico.addComponent(Share.class);
 		pico.addComponent(new ObjectMapper());
 		try {
+			pico.addComponent(buildDatabase(config, metrics));
 			pico.getComponents();
 			pico.start();
 		}
@@ -40,4 +63,48 @@ public class GearPlanServerMain {
 			System.exit(1);
 		}
 	}
+
+	private static Cache buildCache(Config config) {
+		long cacheMaxBytes = config.getOrDefault(Long.class, "cacheMaxBytes", 64L * 1024 * 1024);
+		int dictionarySamples = config.getOrDefault(Integer.class, "compressionDictionarySamples", 200);
+		CodecSelector codecs = dictionarySamples > 0 ? CodecSelector.withDictionary(dictionarySamples) : CodecSelector.gzipOnly();
+		TinyLfuCacheImpl cache = new TinyLfuCacheImpl(cacheMaxBytes, command -> Thread.ofVirtual().start(command), codecs);
+		long offHeapBytes = config.getOrDefault(Long.class, "offHeapCacheBytes", 0L);
+		if (offHeapBytes > 0) {
+			log.info("Off-heap cache tier enabled");
+			return new TieredCache(cache, new OffHeapCacheTier(offHeapBytes));
+		}
+		return cache;
+	}
+
+	private static Database buildDatabase(Config config, Metrics metrics) {
+		String type = config.getOrDefault(String.class, "database", "oracle");
+		Database db = switch (type) {
+			case "oracle" -> new OracleNoSqlDb(config, metrics);
+			case "local" -> {
+				log.info("Using local database");
+				yield new LocalDatabase(config);
+			}
+			default -> throw new IllegalArgumentException("Unknown database type: " + type);
+		};
+		String replicaDir = config.getOrDefault(String.class, "localReplicaDir", null);
+		if (replicaDir != null) {
+			log.info("Local replica enabled");
+			// The replica can always be refilled from the real database, so it does not need to sync every write
+			LocalDatabase replica = new LocalDatabase(Path.of(replicaDir), LocalDatabase.DEFAULT_SEGMENT_BYTES, false);
+			db = new TieredDatabase(List.of(replica, db),
+					command -> Thread.ofVirtual().start(command),
+					config.getOrDefault(Double.class, "hedgePercentile", 0.95),
+					config.getOrDefault(Long.class, "minHedgeDelayMs", 20L));
+		}
+		if (config.getOrDefault(Boolean.class, "writeBehind", false)) {
+			log.info("Write-behind enabled");
+			db = new WriteBehindDatabase(db, config);
+		}
+		if (config.getOrDefault(String.class, "diskCacheDir", null) != null) {
+			log.info("Disk cache enabled");
+			db = new DiskCacheDatabase(db, config);
+		}
+		return db;
+	}
 }
\ No newline at end of file
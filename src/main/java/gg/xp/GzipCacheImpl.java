@@ -1,54 +1,65 @@
 package gg.xp;
 
-import org.apache.commons.lang3.mutable.MutableObject;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.picocontainer.Startable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.time.Instant;
-import java.util.IntSummaryStatistics;
-import java.util.LongSummaryStatistics;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Function;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
-public class GzipCacheImpl implements Cache, Startable {
+/**
+ * Cache which is pruned periodically, dropping entries which are used less often or less recently than average.
+ * <p>
+ * Entries are indexed by the two longs of their UUID in open-addressing tables (see {@link UuidIndex}), split into
+ * stripes which each have their own lock. Use counts and last use times are kept in primitive arrays next to the
+ * values, so a cache hit does not allocate anything.
+ */
+public class GzipCacheImpl implements Cache, CacheStats, Startable {
 
 	private static final Logger log = LoggerFactory.getLogger(GzipCacheImpl.class);
-	private final Map<UUID, CacheEntry> map = new ConcurrentHashMap<>();
-	private static final float WORST_COMPRESS_RATIO = 0.80f;
+	private static final int STRIPES = 16;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final long originNanos = System.nanoTime();
+	private final CoalescingLoader<UUID, CacheValue> loader = new CoalescingLoader<>();
+	private final Executor compressionExecutor;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
 	private boolean stop;
 	private final Thread pruner;
 
 
 	public GzipCacheImpl(int maxCacheSize, int wakeupInterval) {
+		this(maxCacheSize, wakeupInterval, Runnable::run);
+	}
+
+	/**
+	 * @param maxCacheSize        Prune the cache when it has more than this many entries
+	 * @param wakeupInterval      How often to check whether the cache needs pruning, in milliseconds
+	 * @param compressionExecutor Where to compress newly added entries. Entries are served uncompressed until then.
+	 */
+	public GzipCacheImpl(int maxCacheSize, int wakeupInterval, Executor compressionExecutor) {
+		this.compressionExecutor = compressionExecutor;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
 		pruner = Thread.ofVirtual().unstarted(() -> {
 			while (!stop) {
 				try {
-					int sizeBefore = map.size();
+					int sizeBefore = cacheSize();
 					if (sizeBefore > maxCacheSize) {
 						log.info("Pruning cache");
-						IntSummaryStatistics lfuStats = map.values().stream().mapToInt(e -> e.usedCount).summaryStatistics();
-						LongSummaryStatistics lruStats = map.values().stream().mapToLong(CacheEntry::lastUsed).filter(l -> l > 0).summaryStatistics();
-						long lruCutoff = (long) lruStats.getAverage();
-						int lfuCutoff = (int) lfuStats.getAverage();
-						map.entrySet().removeIf(e -> {
-							CacheEntry val = e.getValue();
-							long lastUsed = val.lastUsed();
-							return (lastUsed > 0 && lastUsed < lruCutoff) || val.usedCount < lfuCutoff;
-						});
-						int sizeAfter = map.size();
+						prune();
+						int sizeAfter = cacheSize();
 						log.info("Pruning cache pruned ({} => {})", sizeBefore, sizeAfter);
 					}
 				}
@@ -78,119 +89,335 @@ public class GzipCacheImpl implements Cache, Startable {
 		pruner.interrupt();
 	}
 
-	private static final class CacheEntry {
-		// it's okay if these lose some updates due to concurrency. Approximate is good enough.
-		int usedCount;
-		Instant lastUsed;
-		final byte[] compressed;
-		final String uncompressed;
+	/**
+	 * One stripe of the cache. The index maps a key to a slot, and everything else about that entry lives at that
+	 * slot in the parallel arrays.
+	 */
+	private static final class Stripe {
+		private static final int INITIAL_SLOTS = 16;
+		final StampedLock lock = new StampedLock();
+		final UuidIndex index = new UuidIndex(INITIAL_SLOTS);
+		long[] msbs = new long[INITIAL_SLOTS];
+		long[] lsbs = new long[INITIAL_SLOTS];
+		// null means the slot is free. Starts out uncompressed, and is replaced with the compressed version once that
+		// is ready.
+		CacheValue[] values = new CacheValue[INITIAL_SLOTS];
+		// Updated under the read lock, so it's okay if these lose some updates. Approximate is good enough.
+		int[] usedCounts = new int[INITIAL_SLOTS];
+		long[] lastUsed = new long[INITIAL_SLOTS];
+		int[] freeSlots = new int[INITIAL_SLOTS];
+		int freeCount;
+		// Slots at or above this have never been used
+		int highWater;
+		// Total size of the values
+		long storedBytes;
 
-		private CacheEntry(String value) {
-			byte[] compressed = compressStringToBytes(value);
-			// Only compress if actually worth it
-			if (compressed.length < (value.length() * WORST_COMPRESS_RATIO)) {
-				this.compressed = compressed;
-				this.uncompressed = null;
+		// Must hold the write lock
+		int put(long msb, long lsb, CacheValue value, long tick) {
+			long existing = index.get(msb, lsb);
+			int slot;
+			if (existing != UuidIndex.NOT_FOUND) {
+				slot = (int) existing;
+				storedBytes -= values[slot].size();
 			}
 			else {
-				this.compressed = null;
-				this.uncompressed = value;
+				slot = allocateSlot();
+				msbs[slot] = msb;
+				lsbs[slot] = lsb;
+				index.put(msb, lsb, slot);
 			}
-			update();
+			values[slot] = value;
+			storedBytes += value.size();
+			usedCounts[slot] = 1;
+			lastUsed[slot] = tick;
+			return slot;
 		}
 
-		private void update() {
-			usedCount++;
-			lastUsed = Instant.now();
+		// Must hold the write lock
+		void remove(int slot) {
+			index.remove(msbs[slot], lsbs[slot]);
+			storedBytes -= values[slot].size();
+			values[slot] = null;
+			freeSlots[freeCount++] = slot;
 		}
 
-		private String getValue() {
-			if (uncompressed != null) {
-				return uncompressed;
-			}
-			else {
-				return uncompressBytesToString(this.compressed);
-			}
+		// Must hold the write lock
+		void clear() {
+			index.clear();
+			Arrays.fill(values, null);
+			freeCount = 0;
+			highWater = 0;
+			storedBytes = 0;
 		}
 
-		private int size() {
-			if (uncompressed != null) {
-				return uncompressed.length();
+		private int allocateSlot() {
+			if (freeCount > 0) {
+				return freeSlots[--freeCount];
 			}
-			else {
-				return this.compressed.length;
+			if (highWater == values.length) {
+				int newLength = values.length * 2;
+				msbs = Arrays.copyOf(msbs, newLength);
+				lsbs = Arrays.copyOf(lsbs, newLength);
+				values = Arrays.copyOf(values, newLength);
+				usedCounts = Arrays.copyOf(usedCounts, newLength);
+				lastUsed = Arrays.copyOf(lastUsed, newLength);
+				freeSlots = Arrays.copyOf(freeSlots, newLength);
 			}
+			return highWater++;
 		}
+	}
+
+	@Override
+	public @Nullable String computeIfAbsent(UUID key, Function<UUID, @Nullable String> getter) {
+		CacheValue value = computeValueIfAbsent(key, getter);
+		return value == null ? null : value.getValue();
+	}
 
-		private long lastUsed() {
-			Instant lu = lastUsed;
-			if (lu == null) {
-				return 0;
+	@Override
+	public @Nullable CacheValue computeValueIfAbsent(UUID key, Function<UUID, @Nullable String> getter) {
+		CacheValue current = getIfPresent(key.getMostSignificantBits(), key.getLeastSignificantBits());
+		if (current != null) {
+			hits.increment();
+			return current;
+		}
+		misses.increment();
+		// The actual fetch happens outside any locks, so it only blocks requests for this same key
+		return loader.load(key, uuid -> {
+			CacheValue existing = getIfPresent(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+			if (existing != null) {
+				return existing;
 			}
-			else {
-				return lu.toEpochMilli();
+			String newValue = getter.apply(uuid);
+			if (newValue == null) {
+				return null;
 			}
-		}
+			return put(uuid, newValue);
+		});
 	}
 
-	private static byte[] compressStringToBytes(String inStr) {
-		byte[] inBytes = inStr.getBytes(StandardCharsets.UTF_8);
-		byte[] outBytes;
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		try (OutputStream gzip = new GZIPOutputStream(baos)) {
-			gzip.write(inBytes);
+	@Override
+	public @Nullable CacheValue getIfPresent(UUID key) {
+		CacheValue value = getIfPresent(key.getMostSignificantBits(), key.getLeastSignificantBits());
+		if (value == null) {
+			misses.increment();
 		}
-		catch (IOException e) {
-			throw new RuntimeException(e);
+		else {
+			hits.increment();
 		}
-		outBytes = baos.toByteArray();
-		return outBytes;
+		return value;
 	}
 
-	private static String uncompressBytesToString(byte[] compressed) {
-		ByteArrayInputStream bais = new ByteArrayInputStream(compressed);
-		try (InputStream gzip = new GZIPInputStream(bais)) {
-			return new String(gzip.readAllBytes(), StandardCharsets.UTF_8);
+	@Override
+	public boolean contains(UUID key) {
+		long msb = key.getMostSignificantBits();
+		long lsb = key.getLeastSignificantBits();
+		Stripe stripe = stripeFor(msb, lsb);
+		long stamp = stripe.lock.readLock();
+		try {
+			return stripe.index.get(msb, lsb) != UuidIndex.NOT_FOUND;
 		}
-		catch (IOException e) {
-			throw new RuntimeException(e);
+		finally {
+			stripe.lock.unlockRead(stamp);
 		}
 	}
 
 	@Override
-	public @Nullable String computeIfAbsent(UUID key, Function<UUID, @Nullable String> getter) {
-		MutableObject<String> out = new MutableObject<>();
-		map.compute(key, (uuid, current) -> {
-			if (current == null) {
-				String newValue = getter.apply(uuid);
-				// This avoids having to re-compress
-				if (newValue == null) {
-					return null;
+	public CacheValue set(UUID key, @NotNull String value) {
+		return put(key, value);
+	}
+
+	@Override
+	public int cacheSize() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+				size += stripe.index.size();
+			}
+			finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public List<UUID> hottestKeys(int limit) {
+		record Used(UUID key, int count, long lastUsed) {
+		}
+		List<Used> used = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+				for (int i = 0; i < stripe.highWater; i++) {
+					if (stripe.values[i] != null) {
+						used.add(new Used(new UUID(stripe.msbs[i], stripe.lsbs[i]), stripe.usedCounts[i], stripe.lastUsed[i]));
+					}
 				}
-				out.setValue(newValue);
-				// TODO: look into ways of having this not block the request
-				return new CacheEntry(newValue);
 			}
-			else {
-				current.update();
-				out.setValue(current.getValue());
-				return current;
+			finally {
+				stripe.lock.unlockRead(stamp);
 			}
-		});
-		return out.getValue();
+		}
+		used.sort(Comparator.comparingInt(Used::count).thenComparingLong(Used::lastUsed).reversed());
+		return used.stream().limit(limit).map(Used::key).toList();
 	}
 
 	@Override
-	public void set(UUID key, @NotNull String value) {
-		map.put(key, new CacheEntry(value));
+	public long hitCount() {
+		return hits.sum();
 	}
 
 	@Override
-	public int cacheSize() {
-		return map.size();
+	public long missCount() {
+		return misses.sum();
+	}
+
+	@Override
+	public long evictionCount() {
+		return evictions.sum();
+	}
+
+	@Override
+	public long storedBytes() {
+		long total = 0;
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+				total += stripe.storedBytes;
+			}
+			finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		return total;
 	}
 
 	void clear() {
-		map.clear();
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.writeLock();
+			try {
+				stripe.clear();
+			}
+			finally {
+				stripe.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	private @Nullable CacheValue getIfPresent(long msb, long lsb) {
+		Stripe stripe = stripeFor(msb, lsb);
+		long stamp = stripe.lock.readLock();
+		try {
+			long slot = stripe.index.get(msb, lsb);
+			if (slot == UuidIndex.NOT_FOUND) {
+				return null;
+			}
+			int i = (int) slot;
+			stripe.usedCounts[i]++;
+			stripe.lastUsed[i] = tick();
+			return stripe.values[i];
+		}
+		finally {
+			stripe.lock.unlockRead(stamp);
+		}
+	}
+
+	private CacheValue put(UUID key, String value) {
+		long msb = key.getMostSignificantBits();
+		long lsb = key.getLeastSignificantBits();
+		Stripe stripe = stripeFor(msb, lsb);
+		CacheValue cacheValue = CacheValue.uncompressed(value);
+		int slot;
+		long stamp = stripe.lock.writeLock();
+		try {
+			slot = stripe.put(msb, lsb, cacheValue, tick());
+		}
+		finally {
+			stripe.lock.unlockWrite(stamp);
+		}
+		compressLater(stripe, slot, cacheValue);
+		return cacheValue;
+	}
+
+	private void compressLater(Stripe stripe, int slot, CacheValue uncompressed) {
+		compressionExecutor.execute(() -> {
+			try {
+				CacheValue compressed = uncompressed.compress();
+				if (compressed == uncompressed) {
+					return;
+				}
+				long stamp = stripe.lock.writeLock();
+				try {
+					// The entry may have been replaced or pruned in the meantime
+					if (stripe.values[slot] == uncompressed) {
+						stripe.values[slot] = compressed;
+						stripe.storedBytes += compressed.size() - uncompressed.size();
+					}
+				}
+				finally {
+					stripe.lock.unlockWrite(stamp);
+				}
+			}
+			catch (Throwable t) {
+				log.error("Error compressing cache entry", t);
+			}
+		});
+	}
+
+	/**
+	 * Drop everything which was used less often than average, or less recently than average.
+	 */
+	private void prune() {
+		long count = 0;
+		long usedSum = 0;
+		double lastUsedSum = 0;
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+				for (int i = 0; i < stripe.highWater; i++) {
+					if (stripe.values[i] != null) {
+						count++;
+						usedSum += stripe.usedCounts[i];
+						lastUsedSum += stripe.lastUsed[i];
+					}
+				}
+			}
+			finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+		int lfuCutoff = (int) (usedSum / count);
+		long lruCutoff = (long) (lastUsedSum / count);
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.writeLock();
+			try {
+				for (int i = 0; i < stripe.highWater; i++) {
+					if (stripe.values[i] != null && (stripe.lastUsed[i] < lruCutoff || stripe.usedCounts[i] < lfuCutoff)) {
+						stripe.remove(i);
+						evictions.increment();
+					}
+				}
+			}
+			finally {
+				stripe.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	private Stripe stripeFor(long msb, long lsb) {
+		// Use the high bits, since the index within the stripe uses the low bits of a similar hash
+		long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 60)];
+	}
+
+	/**
+	 * @return Milliseconds since this cache was created, plus one, so that it is never zero.
+	 */
+	private long tick() {
+		return (System.nanoTime() - originNanos) / 1_000_000 + 1;
 	}
 }
@@ -0,0 +1,49 @@
+package gg.xp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Plain GZIP. The output is a complete GZIP stream, so it can be sent as-is to clients which accept
+ * {@code Content-Encoding: gzip}.
+ */
+final class GzipCodec extends CacheCodec {
+
+	static final GzipCodec INSTANCE = new GzipCodec();
+
+	private GzipCodec() {
+	}
+
+	@Override
+	String name() {
+		return "gzip";
+	}
+
+	@Override
+	byte[] encode(byte[] raw) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (OutputStream gzip = new GZIPOutputStream(baos)) {
+			gzip.write(raw);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return baos.toByteArray();
+	}
+
+	@Override
+	protected byte[] doDecode(byte[] encoded) {
+		ByteArrayInputStream bais = new ByteArrayInputStream(encoded);
+		try (InputStream gzip = new GZIPInputStream(bais)) {
+			return gzip.readAllBytes();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
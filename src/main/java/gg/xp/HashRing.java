@@ -0,0 +1,68 @@
+package gg.xp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Consistent hash ring, mapping each UUID to one of a set of nodes.
+ * <p>
+ * Every node gets many points on the ring, so keys are spread evenly, and adding or removing a node only moves the keys
+ * nearest to its points. The ring depends only on the set of node names, so every process given the same names agrees
+ * on who owns what.
+ */
+final class HashRing {
+
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+
+	/**
+	 * @param nodes         Node names
+	 * @param pointsPerNode How many points each node gets on the ring
+	 */
+	HashRing(Collection<String> nodes, int pointsPerNode) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("No nodes");
+		}
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		// Sorted, so that the rare colliding point goes to the same node no matter what order the nodes were given in
+		for (String node : new TreeSet<>(nodes)) {
+			for (int i = 0; i < pointsPerNode; i++) {
+				byte[] digest = sha.digest((node + '#' + i).getBytes(StandardCharsets.UTF_8));
+				ring.putIfAbsent(ByteBuffer.wrap(digest).getLong(), node);
+			}
+		}
+	}
+
+	/**
+	 * @return The node which owns this key
+	 */
+	String ownerOf(UUID key) {
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+		return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+	}
+
+	/**
+	 * Random UUIDs are already well spread, but mix the bits anyway in case some are not.
+	 */
+	private static long hash(UUID key) {
+		long h = key.getMostSignificantBits() ^ Long.rotateLeft(key.getLeastSignificantBits(), 32);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,134 @@
+package gg.xp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with log-linear buckets, in the style of HdrHistogram: each power of two of microseconds is split
+ * into {@link #SUB_BUCKETS} equal buckets, so any recorded value is known to within 25%.
+ * <p>
+ * Every bucket is a {@link LongAdder}, so recording never takes a lock and threads recording at the same time do not
+ * contend on one counter. Reads are not atomic with respect to concurrent recording, which is fine for metrics.
+ */
+public final class Histogram {
+
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// Values are clamped to below 2^MAX_POWER microseconds (about 19 hours)
+	private static final int MAX_POWER = 36;
+	private static final int BUCKETS = (MAX_POWER - 1) * SUB_BUCKETS;
+	// Range of cumulative buckets to export, as powers of two of microseconds (64us to 33s)
+	private static final int EXPORT_MIN_POWER = 6;
+	private static final int EXPORT_MAX_POWER = 25;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder sumNanos = new LongAdder();
+
+	public Histogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		counts[indexFor(Math.max(0, nanos) / 1000)].increment();
+		sumNanos.add(Math.max(0, nanos));
+	}
+
+	public long count() {
+		long total = 0;
+		for (LongAdder count : counts) {
+			total += count.sum();
+		}
+		return total;
+	}
+
+	public long sumNanos() {
+		return sumNanos.sum();
+	}
+
+	/**
+	 * @param percentile Between 0 and 1
+	 * @return The upper bound of the bucket containing that percentile, in nanoseconds, or 0 if nothing has been
+	 * recorded.
+	 */
+	public long valueAtPercentile(double percentile) {
+		long[] snapshot = snapshot();
+		long total = 0;
+		for (long count : snapshot) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(total * percentile));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return upperBoundMicros(i) * 1000;
+			}
+		}
+		return upperBoundMicros(BUCKETS - 1) * 1000;
+	}
+
+	/**
+	 * Append this histogram in Prometheus text format, in seconds. Only the {@code _bucket}, {@code _sum} and
+	 * {@code _count} lines are written, not the HELP and TYPE lines.
+	 *
+	 * @param name   Metric name
+	 * @param labels Labels for every line, e.g. {@code route="/foo/"}, or empty
+	 */
+	public void writePrometheus(StringBuilder out, String name, String labels) {
+		long[] snapshot = snapshot();
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		long cumulative = 0;
+		int next = 0;
+		for (int power = EXPORT_MIN_POWER; power <= EXPORT_MAX_POWER; power++) {
+			// Buckets below this index only hold values below 2^power microseconds
+			int end = (power - 1) * SUB_BUCKETS;
+			for (; next < end; next++) {
+				cumulative += snapshot[next];
+			}
+			out.append(name).append("_bucket{").append(prefix).append("le=\"").append((1L << power) / 1e6).append("\"} ").append(cumulative).append('\n');
+		}
+		long total = cumulative;
+		for (; next < snapshot.length; next++) {
+			total += snapshot[next];
+		}
+		out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(total).append('\n');
+		String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.append(name).append("_sum").append(braced).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+		out.append(name).append("_count").append(braced).append(' ').append(total).append('\n');
+	}
+
+	private long[] snapshot() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts[i].sum();
+		}
+		return snapshot;
+	}
+
+	static int indexFor(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int power = 63 - Long.numberOfLeadingZeros(micros);
+		if (power >= MAX_POWER) {
+			return BUCKETS - 1;
+		}
+		return (power - SUB_BITS + 1) * SUB_BUCKETS + (int) ((micros >>> (power - SUB_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return The smallest value, in microseconds, which is too big for a bucket
+	 */
+	static long upperBoundMicros(int index) {
+		if (index < SUB_BUCKETS) {
+			return index + 1;
+		}
+		int power = index / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub + 1) << (power - SUB_BITS);
+	}
+}
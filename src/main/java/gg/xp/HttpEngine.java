@@ -0,0 +1,30 @@
+package gg.xp;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The HTTP transport underneath {@link Server}. Handlers are plain {@link HttpHandler}s whichever engine is in use, so
+ * engines can be swapped with the {@code httpEngine} setting without touching them.
+ */
+public interface HttpEngine {
+
+	/**
+	 * Register a handler for every request whose path starts with this one. The longest matching path wins.
+	 */
+	HttpContext createContext(String path, HttpHandler handler);
+
+	void start();
+
+	/**
+	 * Stop accepting connections, and wait up to this long for requests in progress to finish.
+	 */
+	void stop(int delaySeconds);
+
+	/**
+	 * @return The address actually being listened on, e.g. to find out the port if it was 0.
+	 */
+	InetSocketAddress getAddress();
+}
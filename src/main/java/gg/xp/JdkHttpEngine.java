@@ -0,0 +1,42 @@
+package gg.xp;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * Engine using the JDK's built-in {@link HttpServer}.
+ */
+final class JdkHttpEngine implements HttpEngine {
+
+	private final HttpServer server;
+
+	JdkHttpEngine(InetSocketAddress address, int backlog, Executor executor) throws IOException {
+		server = HttpServer.create(address, backlog);
+		server.setExecutor(executor);
+	}
+
+	@Override
+	public HttpContext createContext(String path, HttpHandler handler) {
+		return server.createContext(path, handler);
+	}
+
+	@Override
+	public void start() {
+		server.start();
+	}
+
+	@Override
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+}
@@ -0,0 +1,63 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.picocontainer.Startable;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Database which keeps everything on local disk, for single-node deployments, load tests and benchmarks which should
+ * not need a real database.
+ * <p>
+ * Links are appended to memory-mapped segment files ({@link SegmentFileStore}), and found through an in-memory index
+ * which is rebuilt from the segments on startup. Nothing is ever evicted. By default, each write is forced to disk
+ * before it is acknowledged, and a torn write from a crash is detected by its checksum and ignored.
+ */
+public class LocalDatabase implements Database, Startable {
+
+	static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	private final SegmentFileStore store;
+
+	public LocalDatabase(Config config) {
+		this(config.getRequired(File.class, "localDbDir").toPath(),
+				config.getOrDefault(Integer.class, "localDbSegmentBytes", DEFAULT_SEGMENT_BYTES),
+				config.getOrDefault(Boolean.class, "localDbSync", true));
+	}
+
+	/**
+	 * @param dir          Directory for the data files
+	 * @param segmentBytes Size of each data file. Also limits the size of a single (compressed) link.
+	 * @param sync         Force each write to disk before returning. Without this, a crash of the process loses
+	 *                     nothing, but a crash of the machine can lose recent writes.
+	 */
+	public LocalDatabase(Path dir, int segmentBytes, boolean sync) {
+		this.store = new SegmentFileStore(dir, segmentBytes, Long.MAX_VALUE, sync);
+	}
+
+	@Override
+	public void start() {
+		store.open();
+	}
+
+	@Override
+	public void stop() {
+		store.close();
+	}
+
+	@Override
+	public @Nullable String getShortlink(UUID uuid) {
+		return store.get(uuid);
+	}
+
+	@Override
+	public void putShortLink(UUID uuid, String payload) {
+		store.put(uuid, payload);
+	}
+
+	public int size() {
+		return store.size();
+	}
+}
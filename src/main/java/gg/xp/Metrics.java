@@ -0,0 +1,84 @@
+package gg.xp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of everything exposed on {@code /metrics}, written out in Prometheus text format.
+ * <p>
+ * Latencies are recorded into {@link Histogram}s, one per route and status, and one per database operation. Counters
+ * and gauges are read from suppliers when the metrics are written, so the components they come from keep their own
+ * counts, without having to know about this class.
+ */
+public class Metrics {
+
+	private static final String REQUEST_LATENCY = "http_request_duration_seconds";
+	private static final String DB_LATENCY = "db_request_duration_seconds";
+
+	private record Sampled(String type, String help, DoubleSupplier value) {
+	}
+
+	// Labels => histogram
+	private final Map<String, Histogram> requestLatency = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> dbLatency = new ConcurrentHashMap<>();
+	private final Map<String, Sampled> sampled = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @return The histogram for requests to a route which were answered with a status
+	 */
+	public Histogram requestLatency(String route, int status) {
+		return requestLatency.computeIfAbsent("route=\"%s\",status=\"%s\"".formatted(escape(route), status), k -> new Histogram());
+	}
+
+	/**
+	 * @return The histogram for one kind of database call, e.g. "get"
+	 */
+	public Histogram dbLatency(String operation) {
+		return dbLatency.computeIfAbsent("operation=\"%s\"".formatted(escape(operation)), k -> new Histogram());
+	}
+
+	/**
+	 * Register a value which only ever goes up. Registering the same name again replaces it.
+	 */
+	public void registerCounter(String name, String help, DoubleSupplier value) {
+		sampled.put(name, new Sampled("counter", help, value));
+	}
+
+	/**
+	 * Register a value which can go up and down. Registering the same name again replaces it.
+	 */
+	public void registerGauge(String name, String help, DoubleSupplier value) {
+		sampled.put(name, new Sampled("gauge", help, value));
+	}
+
+	/**
+	 * @return Everything, in Prometheus text exposition format
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder(4096);
+		writeHistograms(out, REQUEST_LATENCY, "HTTP request latency by route and status", requestLatency);
+		writeHistograms(out, DB_LATENCY, "Database call latency by operation", dbLatency);
+		sampled.forEach((name, metric) -> {
+			out.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(metric.type).append('\n');
+			out.append(name).append(' ').append(metric.value.getAsDouble()).append('\n');
+		});
+		return out.toString();
+	}
+
+	private static void writeHistograms(StringBuilder out, String name, String help, Map<String, Histogram> histograms) {
+		if (histograms.isEmpty()) {
+			return;
+		}
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" histogram\n");
+		new TreeMap<>(histograms).forEach((labels, histogram) -> histogram.writePrometheus(out, name, labels));
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,657 @@
+package gg.xp;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.Headers;
+import gg.xp.util.BufferPool;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP/1.1 engine built directly on NIO, for when the JDK's {@code HttpServer} is the bottleneck.
+ * <p>
+ * One event loop thread accepts connections and reads requests from all of them. Each complete request is handed to
+ * the executor (normally a new virtual thread), which runs the handler and writes the response itself. Connections
+ * are kept alive between requests. Pipelined requests are answered one at a time, in order: while a request is being
+ * handled, nothing more is read from its connection, and the next request is taken from what has already been read
+ * once the response is done.
+ * <p>
+ * Request bodies are read in full before the handler runs, up to {@code maxBodyBytes}. A connection has
+ * {@code idleTimeoutSeconds} from when it is opened, or from the end of its last response, to send a whole request.
+ * It is closed if it doesn't, whether it is idle or just sending very slowly.
+ */
+final class NioHttpEngine implements HttpEngine {
+
+	private static final Logger log = LoggerFactory.getLogger(NioHttpEngine.class);
+
+	private static final int MAX_HEADER_BYTES = 16 * 1024;
+	private static final int INITIAL_READ_BYTES = 4 * 1024;
+	// Allows for chunk framing on top of the body
+	private static final int FRAMING_SLACK_BYTES = 16 * 1024;
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final Executor executor;
+	private final int maxConnections;
+	private final int maxBodyBytes;
+	private final long idleTimeoutNanos;
+	private final List<NioHttpExchange.Context> contexts = new CopyOnWriteArrayList<>();
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	// Response buffers, only held while a response is being written
+	final BufferPool responseBuffers = new BufferPool(256, 16 * 1024);
+	private final LongAdder rejectedConnections = new LongAdder();
+	private final Thread loop;
+	private volatile boolean running;
+	private volatile String date = formatDate();
+
+	/**
+	 * @param maxConnections     Further connections are closed as soon as they are accepted
+	 * @param maxBodyBytes       Larger request bodies are answered with a 413
+	 * @param idleTimeoutSeconds Close connections which have not sent a whole request for this long
+	 * @param executor           Runs handlers. Handlers block while writing responses, so this should start a new
+	 *                           (virtual) thread for each.
+	 */
+	NioHttpEngine(InetSocketAddress address, int backlog, int maxConnections, int maxBodyBytes, int idleTimeoutSeconds, Executor executor) throws IOException {
+		this.executor = executor;
+		this.maxConnections = maxConnections;
+		this.maxBodyBytes = maxBodyBytes;
+		this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(address, backlog);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		this.loop = Thread.ofPlatform().name("http-event-loop").daemon(true).unstarted(this::run);
+	}
+
+	@Override
+	public HttpContext createContext(String path, HttpHandler handler) {
+		NioHttpExchange.Context context = new NioHttpExchange.Context(path, handler);
+		contexts.removeIf(existing -> existing.getPath().equals(path));
+		contexts.add(context);
+		return context;
+	}
+
+	@Override
+	public void start() {
+		running = true;
+		loop.start();
+	}
+
+	@Override
+	public void stop(int delaySeconds) {
+		running = false;
+		try {
+			serverChannel.close();
+		}
+		catch (IOException e) {
+			log.warn("Error closing server socket", e);
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delaySeconds);
+		while (System.nanoTime() < deadline && connections.stream().anyMatch(c -> c.busy)) {
+			try {
+				Thread.sleep(10);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		connections.forEach(Connection::close);
+		selector.wakeup();
+		try {
+			loop.join(TimeUnit.SECONDS.toMillis(1));
+			selector.close();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException e) {
+			log.warn("Error closing selector", e);
+		}
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		try {
+			return (InetSocketAddress) serverChannel.getLocalAddress();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	int getConnectionCount() {
+		return connections.size();
+	}
+
+	long getRejectedConnectionCount() {
+		return rejectedConnections.sum();
+	}
+
+	String date() {
+		return date;
+	}
+
+	private void run() {
+		long lastSweep = System.nanoTime();
+		while (running) {
+			try {
+				selector.select(1000);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isWritable()) {
+							connection.onWritable();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+					}
+					catch (CancelledKeyException ignored) {
+						connection.close();
+					}
+					catch (IOException e) {
+						log.debug("Connection error", e);
+						connection.close();
+					}
+				}
+				long now = System.nanoTime();
+				if (now - lastSweep > TimeUnit.SECONDS.toNanos(1)) {
+					lastSweep = now;
+					date = formatDate();
+					closeIdle(now);
+				}
+			}
+			catch (ClosedSelectorException e) {
+				break;
+			}
+			catch (Throwable t) {
+				log.error("Error in event loop", t);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			if (connections.size() >= maxConnections) {
+				rejectedConnections.increment();
+				log.warn("Too many connections ({}), rejecting", maxConnections);
+				channel.close();
+				continue;
+			}
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			connections.add(connection);
+		}
+	}
+
+	private void closeIdle(long now) {
+		for (Connection connection : connections) {
+			if (!connection.busy && now - connection.waitingSince > idleTimeoutNanos) {
+				connection.close();
+			}
+		}
+	}
+
+	private static String formatDate() {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+	}
+
+	private @Nullable NioHttpExchange.Context findContext(String path) {
+		NioHttpExchange.Context best = null;
+		for (NioHttpExchange.Context context : contexts) {
+			if (path.startsWith(context.getPath()) && (best == null || context.getPath().length() > best.getPath().length())) {
+				best = context;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A request which can't be handled, to be answered with this status before closing the connection.
+	 */
+	private static final class HttpError extends Exception {
+		@Serial
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		HttpError(int status, String message) {
+			super(message, null, false, false);
+			this.status = status;
+		}
+	}
+
+	record Request(String method, URI uri, boolean http11, Headers headers, byte[] body) {
+	}
+
+	final class Connection {
+		final SocketChannel channel;
+		SelectionKey key;
+		// Owned by the event loop while reading, and by the handler thread while busy. Bytes read so far are in
+		// [0, position).
+		private ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BYTES);
+		private final Semaphore writable = new Semaphore(0);
+		private final AtomicBoolean closed = new AtomicBoolean();
+		volatile boolean busy;
+		// When the connection started waiting for the current request. Not moved by reads, so a client can't keep
+		// the connection open by trickling in one byte at a time.
+		volatile long waitingSince = System.nanoTime();
+		private boolean continueSent;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		NioHttpEngine engine() {
+			return NioHttpEngine.this;
+		}
+
+		void onReadable() throws IOException {
+			if (busy) {
+				return;
+			}
+			if (!in.hasRemaining()) {
+				try {
+					grow();
+				}
+				catch (HttpError e) {
+					writeError(e.status);
+					close();
+					return;
+				}
+			}
+			int read = channel.read(in);
+			if (read < 0) {
+				close();
+				return;
+			}
+			Request request = nextRequest();
+			if (request != null) {
+				busy = true;
+				key.interestOps(0);
+				executor.execute(() -> serve(request));
+			}
+		}
+
+		void onWritable() {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			writable.release();
+		}
+
+		/**
+		 * Parse the next complete request from what has been read so far, and remove it from the buffer.
+		 *
+		 * @return The request, or null if more needs to be read first. If the request is bad, it is answered
+		 * right away, the connection is closed, and null is returned.
+		 */
+		private @Nullable Request nextRequest() throws IOException {
+			try {
+				return parse();
+			}
+			catch (HttpError e) {
+				log.info("Bad request from {}: {}", channel.getRemoteAddress(), e.getMessage());
+				writeError(e.status);
+				close();
+				return null;
+			}
+			catch (RuntimeException e) {
+				// Shouldn't happen, but if it does, don't leave the connection around to fail the same way on every read
+				log.warn("Could not parse request from {}", channel.getRemoteAddress(), e);
+				writeError(400);
+				close();
+				return null;
+			}
+		}
+
+		private void grow() throws HttpError {
+			int max = MAX_HEADER_BYTES + maxBodyBytes + FRAMING_SLACK_BYTES;
+			if (in.capacity() >= max) {
+				throw new HttpError(413, "Request too large");
+			}
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(max, in.capacity() * 2));
+			in.flip();
+			bigger.put(in);
+			in = bigger;
+		}
+
+		private @Nullable Request parse() throws HttpError, IOException {
+			byte[] data = in.array();
+			int length = in.position();
+			int start = 0;
+			// Blank lines before a request are allowed
+			while (start + 1 < length && data[start] == '\r' && data[start + 1] == '\n') {
+				start += 2;
+			}
+			int headerEnd = indexOf(data, start, length, "\r\n\r\n");
+			if (headerEnd < 0) {
+				if (length - start > MAX_HEADER_BYTES) {
+					throw new HttpError(431, "Headers too large");
+				}
+				return null;
+			}
+			String[] lines = new String(data, start, headerEnd - start, StandardCharsets.ISO_8859_1).split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3) {
+				throw new HttpError(400, "Bad request line");
+			}
+			boolean http11 = switch (requestLine[2]) {
+				case "HTTP/1.1" -> true;
+				case "HTTP/1.0" -> false;
+				default -> throw new HttpError(505, "Unsupported version " + requestLine[2]);
+			};
+			URI uri;
+			try {
+				uri = new URI(requestLine[1]);
+			}
+			catch (Exception e) {
+				throw new HttpError(400, "Bad request target");
+			}
+			Headers headers = new Headers();
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0) {
+					throw new HttpError(400, "Bad header line");
+				}
+				headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+			}
+			int bodyStart = headerEnd + 4;
+			byte[] body;
+			int end;
+			String transferEncoding = headers.getFirst("Transfer-Encoding");
+			String contentLength = headers.getFirst("Content-Length");
+			if (transferEncoding != null) {
+				if (!transferEncoding.equalsIgnoreCase("chunked")) {
+					throw new HttpError(501, "Unsupported transfer encoding " + transferEncoding);
+				}
+				ChunkedBody chunked = parseChunked(data, bodyStart, length);
+				if (chunked == null) {
+					sendContinueIfExpected(headers);
+					return null;
+				}
+				body = chunked.body;
+				end = chunked.end;
+			}
+			else if (contentLength != null) {
+				long bodyLength;
+				try {
+					bodyLength = Long.parseLong(contentLength);
+				}
+				catch (NumberFormatException e) {
+					throw new HttpError(400, "Bad Content-Length");
+				}
+				if (bodyLength < 0) {
+					throw new HttpError(400, "Bad Content-Length");
+				}
+				if (bodyLength > maxBodyBytes) {
+					throw new HttpError(413, "Body too large: " + bodyLength);
+				}
+				if (length - bodyStart < bodyLength) {
+					sendContinueIfExpected(headers);
+					return null;
+				}
+				end = bodyStart + (int) bodyLength;
+				body = new byte[(int) bodyLength];
+				System.arraycopy(data, bodyStart, body, 0, body.length);
+			}
+			else {
+				body = new byte[0];
+				end = bodyStart;
+			}
+			// Keep whatever follows (pipelined requests) at the start of the buffer
+			in.flip();
+			in.position(end);
+			if (in.remaining() == 0 && in.capacity() > INITIAL_READ_BYTES) {
+				in = ByteBuffer.allocate(INITIAL_READ_BYTES);
+			}
+			else {
+				in.compact();
+			}
+			continueSent = false;
+			return new Request(requestLine[0], uri, http11, headers, body);
+		}
+
+		private void sendContinueIfExpected(Headers headers) throws IOException {
+			if (!continueSent && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+				continueSent = true;
+				channel.write(ByteBuffer.wrap(CONTINUE));
+			}
+		}
+
+		private record ChunkedBody(byte[] body, int end) {
+		}
+
+		private @Nullable ChunkedBody parseChunked(byte[] data, int start, int length) throws HttpError {
+			int position = start;
+			long total = 0;
+			// First pass only finds the size, since the body may not be complete yet
+			while (true) {
+				int lineEnd = indexOf(data, position, length, "\r\n");
+				if (lineEnd < 0) {
+					return null;
+				}
+				int size = chunkSize(new String(data, position, lineEnd - position, StandardCharsets.ISO_8859_1));
+				position = lineEnd + 2;
+				if (size == 0) {
+					break;
+				}
+				// Checked before adding, and in longs, so that a huge chunk size can't overflow anything
+				if (size > maxBodyBytes - total) {
+					throw new HttpError(413, "Body too large");
+				}
+				total += size;
+				if (length - position < (long) size + 2) {
+					return null;
+				}
+				position += size + 2;
+			}
+			// Trailers, which are ignored, up to an empty line
+			while (true) {
+				int lineEnd = indexOf(data, position, length, "\r\n");
+				if (lineEnd < 0) {
+					return null;
+				}
+				boolean empty = lineEnd == position;
+				position = lineEnd + 2;
+				if (empty) {
+					break;
+				}
+			}
+			byte[] body = new byte[(int) total];
+			int copied = 0;
+			int chunk = start;
+			while (copied < total) {
+				int lineEnd = indexOf(data, chunk, length, "\r\n");
+				int size = chunkSize(new String(data, chunk, lineEnd - chunk, StandardCharsets.ISO_8859_1));
+				System.arraycopy(data, lineEnd + 2, body, copied, size);
+				copied += size;
+				chunk = lineEnd + 2 + size + 2;
+			}
+			return new ChunkedBody(body, position);
+		}
+
+		private static int chunkSize(String line) throws HttpError {
+			int semicolon = line.indexOf(';');
+			String hex = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+			try {
+				int size = Integer.parseInt(hex, 16);
+				if (size < 0) {
+					throw new HttpError(400, "Bad chunk size");
+				}
+				return size;
+			}
+			catch (NumberFormatException e) {
+				throw new HttpError(400, "Bad chunk size");
+			}
+		}
+
+		private void writeError(int status) {
+			String response = "HTTP/1.1 %d %s\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".formatted(status, NioHttpExchange.reason(status));
+			try {
+				// Best effort, the connection is about to be closed anyway
+				channel.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+			}
+			catch (IOException ignored) {
+			}
+		}
+
+		/**
+		 * Handle requests on this connection until there isn't another complete one already read, then go back to
+		 * reading.
+		 */
+		private void serve(Request first) {
+			Request request = first;
+			try {
+				while (request != null) {
+					boolean keepAlive = handle(request);
+					waitingSince = System.nanoTime();
+					if (!keepAlive || !running) {
+						close();
+						return;
+					}
+					request = nextRequest();
+				}
+				if (!closed.get()) {
+					busy = false;
+					key.interestOps(SelectionKey.OP_READ);
+					selector.wakeup();
+				}
+			}
+			catch (Throwable t) {
+				log.debug("Connection error", t);
+				close();
+			}
+		}
+
+		/**
+		 * @return Whether the connection can be used for another request
+		 */
+		private boolean handle(Request request) throws IOException {
+			NioHttpExchange.Context context = findContext(request.uri().getPath() == null ? "/" : request.uri().getPath());
+			NioHttpExchange exchange = new NioHttpExchange(this, request, context);
+			if (context == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return exchange.finish();
+			}
+			try {
+				context.getHandler().handle(exchange);
+			}
+			catch (Throwable t) {
+				log.error("Error in handler for {}", request.uri(), t);
+				if (!exchange.headersSent()) {
+					exchange.getResponseHeaders().set("Connection", "close");
+					exchange.sendResponseHeaders(500, -1);
+				}
+				exchange.abort();
+			}
+			return exchange.finish();
+		}
+
+		/**
+		 * Write all of these buffers, waiting for the connection to be writable as needed. Only call this from the
+		 * handler thread.
+		 */
+		void write(ByteBuffer... buffers) throws IOException {
+			long remaining = 0;
+			for (ByteBuffer buffer : buffers) {
+				remaining += buffer.remaining();
+			}
+			while (remaining > 0) {
+				long written = channel.write(buffers);
+				remaining -= written;
+				if (remaining > 0 && written == 0) {
+					awaitWritable();
+				}
+			}
+		}
+
+		private void awaitWritable() throws IOException {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			selector.wakeup();
+			try {
+				if (!writable.tryAcquire(idleTimeoutNanos, TimeUnit.NANOSECONDS)) {
+					throw new IOException("Timed out writing response");
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			if (closed.get()) {
+				throw new IOException("Connection closed");
+			}
+		}
+
+		void close() {
+			if (closed.compareAndSet(false, true)) {
+				connections.remove(this);
+				if (key != null) {
+					key.cancel();
+				}
+				try {
+					channel.close();
+				}
+				catch (IOException ignored) {
+				}
+				// Wake up a handler waiting to write
+				writable.release();
+			}
+		}
+	}
+
+	private static int indexOf(byte[] data, int from, int to, String pattern) {
+		outer:
+		for (int i = from; i <= to - pattern.length(); i++) {
+			for (int j = 0; j < pattern.length(); j++) {
+				if (data[i + j] != pattern.charAt(j)) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
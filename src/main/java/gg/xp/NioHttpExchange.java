@@ -0,0 +1,560 @@
+package gg.xp;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One request and response on a {@link NioHttpEngine} connection, behaving like the JDK's own exchanges as far as
+ * handlers can tell: {@code sendResponseHeaders} with a length of -1 means no body, 0 means a chunked body of unknown
+ * length, and anything else is the exact length of the body.
+ */
+final class NioHttpExchange extends HttpExchange {
+
+	private final NioHttpEngine.Connection connection;
+	private final NioHttpEngine.Request request;
+	private final @Nullable Context context;
+	private final Headers responseHeaders = new Headers();
+	private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+	private InputStream requestBody;
+	private OutputStream responseBody = new NotSentStream();
+	private @Nullable BodyStream body;
+	private int responseCode = -1;
+	private boolean closeConnection;
+
+	NioHttpExchange(NioHttpEngine.Connection connection, NioHttpEngine.Request request, @Nullable Context context) {
+		this.connection = connection;
+		this.request = request;
+		this.context = context;
+		this.requestBody = new ByteArrayInputStream(request.body());
+		this.closeConnection = !wantsKeepAlive(request);
+	}
+
+	private static boolean wantsKeepAlive(NioHttpEngine.Request request) {
+		List<String> values = request.headers().get("Connection");
+		boolean close = false;
+		boolean keepAlive = false;
+		if (values != null) {
+			for (String value : values) {
+				for (String token : value.split(",")) {
+					close |= token.trim().equalsIgnoreCase("close");
+					keepAlive |= token.trim().equalsIgnoreCase("keep-alive");
+				}
+			}
+		}
+		return request.http11() ? !close : keepAlive;
+	}
+
+	boolean headersSent() {
+		return body != null;
+	}
+
+	/**
+	 * Something went wrong part way through the response, so the connection can't be reused.
+	 */
+	void abort() {
+		closeConnection = true;
+	}
+
+	/**
+	 * Finish the response, if the handler did not.
+	 *
+	 * @return Whether the connection can be used for another request
+	 */
+	boolean finish() throws IOException {
+		if (body == null) {
+			// Handler never responded
+			closeConnection = true;
+			sendResponseHeaders(500, -1);
+		}
+		if (!body.closed) {
+			body.close();
+		}
+		return !closeConnection && body.complete();
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return request.headers();
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI() {
+		return request.uri();
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return request.method();
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return context;
+	}
+
+	@Override
+	public void close() {
+		try {
+			requestBody.close();
+			if (body == null) {
+				closeConnection = true;
+				sendResponseHeaders(500, -1);
+			}
+			responseBody.close();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public InputStream getRequestBody() {
+		return requestBody;
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return responseBody;
+	}
+
+	@Override
+	public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+		if (body != null) {
+			throw new IOException("Response headers already sent");
+		}
+		boolean head = request.method().equals("HEAD");
+		boolean noBody = responseLength == -1 || rCode < 200 || rCode == 204 || rCode == 304;
+		if (responseHeaders.containsKey("Connection") && "close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+			closeConnection = true;
+		}
+		StringBuilder out = new StringBuilder(256);
+		out.append("HTTP/1.1 ").append(rCode).append(' ').append(reason(rCode)).append("\r\n");
+		out.append("Date: ").append(connection.engine().date()).append("\r\n");
+		if (noBody) {
+			if (rCode >= 200 && rCode != 204 && rCode != 304) {
+				out.append("Content-Length: 0\r\n");
+			}
+		}
+		else if (responseLength > 0) {
+			out.append("Content-Length: ").append(responseLength).append("\r\n");
+		}
+		else if (!head) {
+			out.append("Transfer-Encoding: chunked\r\n");
+		}
+		else {
+			// Length is not known, so the connection can't be reused safely
+			closeConnection = true;
+		}
+		responseHeaders.remove("Connection");
+		responseHeaders.remove("Content-Length");
+		responseHeaders.remove("Transfer-Encoding");
+		responseHeaders.forEach((name, values) -> {
+			for (String value : values) {
+				out.append(name).append(": ").append(value).append("\r\n");
+			}
+		});
+		if (closeConnection) {
+			out.append("Connection: close\r\n");
+		}
+		else if (!request.http11()) {
+			out.append("Connection: keep-alive\r\n");
+		}
+		out.append("\r\n");
+		byte[] headerBytes = out.toString().getBytes(StandardCharsets.ISO_8859_1);
+		responseCode = rCode;
+		if (noBody || head) {
+			body = new EmptyBody(headerBytes);
+			// Nothing else to wait for
+			body.close();
+		}
+		else if (responseLength > 0) {
+			body = new FixedLengthBody(headerBytes, responseLength);
+		}
+		else {
+			body = new ChunkedBody(headerBytes);
+		}
+		responseBody = body;
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		try {
+			return (InetSocketAddress) connection.channel.getRemoteAddress();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		try {
+			return (InetSocketAddress) connection.channel.getLocalAddress();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public String getProtocol() {
+		return request.http11() ? "HTTP/1.1" : "HTTP/1.0";
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		if (value == null) {
+			attributes.remove(name);
+		}
+		else {
+			attributes.put(name, value);
+		}
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) {
+		if (i != null) {
+			requestBody = i;
+		}
+		if (o != null) {
+			responseBody = o;
+		}
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return null;
+	}
+
+	static String reason(int status) {
+		return switch (status) {
+			case 100 -> "Continue";
+			case 200 -> "OK";
+			case 201 -> "Created";
+			case 204 -> "No Content";
+			case 301 -> "Moved Permanently";
+			case 302 -> "Found";
+			case 304 -> "Not Modified";
+			case 400 -> "Bad Request";
+			case 404 -> "Not Found";
+			case 405 -> "Method Not Allowed";
+			case 411 -> "Length Required";
+			case 413 -> "Content Too Large";
+			case 429 -> "Too Many Requests";
+			case 431 -> "Request Header Fields Too Large";
+			case 500 -> "Internal Server Error";
+			case 501 -> "Not Implemented";
+			case 503 -> "Service Unavailable";
+			case 505 -> "HTTP Version Not Supported";
+			default -> "";
+		};
+	}
+
+	private static final class NotSentStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			throw new IOException("Response headers not sent yet");
+		}
+	}
+
+	/**
+	 * Response body, written through a pooled buffer which also holds the headers until the first flush, so that
+	 * small responses go out in one write.
+	 */
+	private abstract class BodyStream extends OutputStream {
+		private byte[] buffer;
+		protected ByteBuffer out;
+		boolean closed;
+
+		BodyStream(byte[] headerBytes) {
+			buffer = connection.engine().responseBuffers.acquire(16 * 1024);
+			out = ByteBuffer.wrap(buffer);
+			if (headerBytes.length > out.capacity()) {
+				out = ByteBuffer.allocate(headerBytes.length);
+			}
+			out.put(headerBytes);
+		}
+
+		/**
+		 * @return Whether the whole body was written, so that the connection is still usable
+		 */
+		abstract boolean complete();
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+		}
+
+		void flushBuffer(ByteBuffer... extra) throws IOException {
+			out.flip();
+			ByteBuffer[] all = new ByteBuffer[extra.length + 1];
+			all[0] = out;
+			System.arraycopy(extra, 0, all, 1, extra.length);
+			connection.write(all);
+			out.clear();
+		}
+
+		void release() {
+			if (buffer != null) {
+				connection.engine().responseBuffers.release(buffer);
+				buffer = null;
+			}
+		}
+
+		void checkOpen() throws IOException {
+			if (closed) {
+				throw new IOException("Response body already closed");
+			}
+		}
+	}
+
+	private final class EmptyBody extends BodyStream {
+		EmptyBody(byte[] headerBytes) {
+			super(headerBytes);
+		}
+
+		@Override
+		boolean complete() {
+			return true;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			// Discarded, as for a HEAD request
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					flushBuffer();
+				}
+				finally {
+					release();
+				}
+			}
+		}
+	}
+
+	private final class FixedLengthBody extends BodyStream {
+		private long remaining;
+
+		FixedLengthBody(byte[] headerBytes, long length) {
+			super(headerBytes);
+			this.remaining = length;
+		}
+
+		@Override
+		boolean complete() {
+			return remaining == 0;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkOpen();
+			if (len > remaining) {
+				throw new IOException("Too many bytes for the response length");
+			}
+			remaining -= len;
+			if (len > out.remaining()) {
+				// Write straight from the caller's array, along with whatever is buffered
+				flushBuffer(ByteBuffer.wrap(b, off, len));
+			}
+			else {
+				out.put(b, off, len);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					flushBuffer();
+				}
+				finally {
+					release();
+				}
+				if (remaining > 0) {
+					// The client is still waiting for the rest, so this connection can't be reused
+					abort();
+				}
+			}
+		}
+	}
+
+	private final class ChunkedBody extends BodyStream {
+		private static final byte[] CRLF = {'\r', '\n'};
+		private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		// Start of the current chunk's data in the buffer, after the headers if they are still there
+		private int chunkStart;
+
+		ChunkedBody(byte[] headerBytes) {
+			super(headerBytes);
+			chunkStart = out.position();
+		}
+
+		@Override
+		boolean complete() {
+			return closed;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkOpen();
+			if (len == 0) {
+				return;
+			}
+			if (len > out.remaining()) {
+				flushChunk(ByteBuffer.wrap(b, off, len));
+			}
+			else {
+				out.put(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			checkOpen();
+			flushChunk();
+		}
+
+		private void flushChunk(ByteBuffer... extra) throws IOException {
+			int size = out.position() - chunkStart;
+			for (ByteBuffer buffer : extra) {
+				size += buffer.remaining();
+			}
+			if (size == 0) {
+				flushBuffer();
+			}
+			else {
+				// The chunk size goes in front of the buffered data, so split the buffer around it
+				ByteBuffer headers = out.duplicate().flip().limit(chunkStart);
+				ByteBuffer data = out.duplicate().flip().position(chunkStart);
+				List<ByteBuffer> all = new ArrayList<>(extra.length + 4);
+				all.add(headers);
+				all.add(ByteBuffer.wrap((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+				all.add(data);
+				all.addAll(List.of(extra));
+				all.add(ByteBuffer.wrap(CRLF));
+				connection.write(all.toArray(ByteBuffer[]::new));
+				out.clear();
+			}
+			chunkStart = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				try {
+					flushChunk();
+					connection.write(ByteBuffer.wrap(LAST_CHUNK));
+					closed = true;
+				}
+				finally {
+					release();
+				}
+			}
+		}
+	}
+
+	static final class Context extends HttpContext {
+		private final String path;
+		private HttpHandler handler;
+		private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+		private final List<Filter> filters = new ArrayList<>();
+		private Authenticator authenticator;
+
+		Context(String path, HttpHandler handler) {
+			this.path = path;
+			this.handler = handler;
+		}
+
+		@Override
+		public HttpHandler getHandler() {
+			return handler;
+		}
+
+		@Override
+		public void setHandler(HttpHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public String getPath() {
+			return path;
+		}
+
+		@Override
+		public HttpServer getServer() {
+			// Not running on an HttpServer
+			return null;
+		}
+
+		@Override
+		public Map<String, Object> getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * Filters are not supported, anything added here is ignored.
+		 */
+		@Override
+		public List<Filter> getFilters() {
+			return filters;
+		}
+
+		@Override
+		public Authenticator setAuthenticator(Authenticator auth) {
+			Authenticator previous = authenticator;
+			authenticator = auth;
+			return previous;
+		}
+
+		@Override
+		public Authenticator getAuthenticator() {
+			return authenticator;
+		}
+	}
+}
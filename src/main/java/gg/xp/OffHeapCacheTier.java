@@ -0,0 +1,222 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Second-level cache which keeps stored values in direct (off-heap) memory, so that it can be much bigger than the
+ * on-heap cache without adding to GC work.
+ * <p>
+ * Memory is split into fixed-size segments which are filled one after another. When all of them are full, the oldest
+ * segment is wiped and reused, evicting everything in it. This is FIFO rather than LRU, but the on-heap tier in
+ * front of it already keeps the popular entries.
+ * <p>
+ * Each record is: UUID (two longs), length (int), codec tag (byte), then the stored bytes. The index maps a UUID to
+ * the segment and offset of its record.
+ */
+public class OffHeapCacheTier {
+
+	private static final Logger log = LoggerFactory.getLogger(OffHeapCacheTier.class);
+	private static final int HEADER_BYTES = 8 + 8 + 4 + 1;
+	private static final int MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+	private static final byte TAG_UNCOMPRESSED = 0;
+
+	private final int segmentSize;
+	private final ByteBuffer[] segments;
+	private final int[] segmentUsed;
+	// Tag - 1 => codec. Codecs are never removed, so tags stay valid.
+	private final List<CacheCodec> codecs = new ArrayList<>();
+	private final UuidIndex index = new UuidIndex(1024);
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	// Guarded by the write lock
+	private int currentSegment;
+	private long evictions;
+
+	public OffHeapCacheTier(long capacityBytes) {
+		int segmentCount = (int) Math.max(2, Math.min(Integer.MAX_VALUE, (capacityBytes + MAX_SEGMENT_BYTES - 1) / MAX_SEGMENT_BYTES));
+		this.segmentSize = (int) Math.min(MAX_SEGMENT_BYTES, capacityBytes / segmentCount);
+		this.segments = new ByteBuffer[segmentCount];
+		this.segmentUsed = new int[segmentCount];
+		log.info("Off-heap cache: {} segments of {} bytes", segmentCount, segmentSize);
+	}
+
+	/**
+	 * @return The stored value, or null if not present.
+	 */
+	public @Nullable CacheValue get(UUID key) {
+		byte[] bytes;
+		byte tag;
+		lock.readLock().lock();
+		try {
+			long location = index.get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+			if (location == UuidIndex.NOT_FOUND) {
+				misses.increment();
+				return null;
+			}
+			ByteBuffer segment = segments[segmentOf(location)];
+			int offset = offsetOf(location);
+			int length = segment.getInt(offset + 16);
+			tag = segment.get(offset + 20);
+			bytes = new byte[length];
+			segment.get(offset + HEADER_BYTES, bytes);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		hits.increment();
+		if (tag == TAG_UNCOMPRESSED) {
+			return CacheValue.uncompressed(bytes);
+		}
+		else {
+			return new CacheValue(bytes, codecs.get(tag - 1));
+		}
+	}
+
+	public boolean contains(UUID key) {
+		lock.readLock().lock();
+		try {
+			return index.get(key.getMostSignificantBits(), key.getLeastSignificantBits()) != UuidIndex.NOT_FOUND;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Store a value, unless it is already present. Entries are immutable, so there is no need to replace it.
+	 */
+	public void put(UUID key, CacheValue value) {
+		byte[] bytes = value.isCompressed() ? value.getCompressed() : value.getUtf8();
+		int recordSize = HEADER_BYTES + bytes.length;
+		if (recordSize > segmentSize) {
+			return;
+		}
+		long msb = key.getMostSignificantBits();
+		long lsb = key.getLeastSignificantBits();
+		lock.writeLock().lock();
+		try {
+			if (index.get(msb, lsb) != UuidIndex.NOT_FOUND) {
+				return;
+			}
+			byte tag = value.isCompressed() ? tagFor(value.getCodec()) : TAG_UNCOMPRESSED;
+			if (segmentUsed[currentSegment] + recordSize > segmentSize) {
+				currentSegment = (currentSegment + 1) % segments.length;
+				wipe(currentSegment);
+			}
+			ByteBuffer segment = segments[currentSegment];
+			if (segment == null) {
+				segment = segments[currentSegment] = ByteBuffer.allocateDirect(segmentSize);
+			}
+			int offset = segmentUsed[currentSegment];
+			segment.putLong(offset, msb);
+			segment.putLong(offset + 8, lsb);
+			segment.putInt(offset + 16, bytes.length);
+			segment.put(offset + 20, tag);
+			segment.put(offset + HEADER_BYTES, bytes);
+			segmentUsed[currentSegment] = offset + recordSize;
+			index.put(msb, lsb, location(currentSegment, offset));
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long hitCount() {
+		return hits.sum();
+	}
+
+	public long missCount() {
+		return misses.sum();
+	}
+
+	public long evictionCount() {
+		lock.readLock().lock();
+		try {
+			return evictions;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Bytes of off-heap memory currently allocated.
+	 */
+	public long allocatedBytes() {
+		lock.readLock().lock();
+		try {
+			long total = 0;
+			for (ByteBuffer segment : segments) {
+				if (segment != null) {
+					total += segment.capacity();
+				}
+			}
+			return total;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void wipe(int segmentNumber) {
+		ByteBuffer segment = segments[segmentNumber];
+		int used = segmentUsed[segmentNumber];
+		int offset = 0;
+		while (offset < used) {
+			long msb = segment.getLong(offset);
+			long lsb = segment.getLong(offset + 8);
+			int length = segment.getInt(offset + 16);
+			// Only evict if the index still points here
+			if (index.get(msb, lsb) == location(segmentNumber, offset)) {
+				index.remove(msb, lsb);
+				evictions++;
+			}
+			offset += HEADER_BYTES + length;
+		}
+		segmentUsed[segmentNumber] = 0;
+	}
+
+	private byte tagFor(CacheCodec codec) {
+		int existing = codecs.indexOf(codec);
+		if (existing >= 0) {
+			return (byte) (existing + 1);
+		}
+		if (codecs.size() >= Byte.MAX_VALUE) {
+			throw new IllegalStateException("Too many codecs");
+		}
+		codecs.add(codec);
+		return (byte) codecs.size();
+	}
+
+	private static long location(int segment, int offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	private static int segmentOf(long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static int offsetOf(long location) {
+		return (int) location;
+	}
+}
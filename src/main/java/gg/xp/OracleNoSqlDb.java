@@ -3,24 +3,32 @@ package gg.xp;
 import oracle.nosql.driver.NoSQLHandle;
 import oracle.nosql.driver.NoSQLHandleConfig;
 import oracle.nosql.driver.NoSQLHandleFactory;
+import oracle.nosql.driver.RateLimiter;
 import oracle.nosql.driver.iam.SignatureProvider;
 import oracle.nosql.driver.ops.GetRequest;
 import oracle.nosql.driver.ops.GetResult;
+import oracle.nosql.driver.ops.PrepareRequest;
+import oracle.nosql.driver.ops.PreparedStatement;
 import oracle.nosql.driver.ops.PutRequest;
 import oracle.nosql.driver.ops.PutResult;
 import oracle.nosql.driver.ops.QueryIterableResult;
 import oracle.nosql.driver.ops.QueryRequest;
 import oracle.nosql.driver.ops.QueryResult;
-import oracle.nosql.driver.util.SimpleRateLimiter;
 import oracle.nosql.driver.values.JsonOptions;
 import oracle.nosql.driver.values.MapValue;
+import oracle.nosql.driver.values.StringValue;
+import oracle.nosql.driver.values.TimestampValue;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 public class OracleNoSqlDb implements Database {
@@ -28,9 +36,17 @@ public class OracleNoSqlDb implements Database {
 
 	private static final Logger log = LoggerFactory.getLogger(OracleNoSqlDb.class);
 	private final NoSQLHandle handle;
+	private final Histogram getLatency;
+	private final Histogram putLatency;
 	private static final String tableName = "shortlinks";
 
 	public OracleNoSqlDb(Config config) {
+		this(config, new Metrics());
+	}
+
+	public OracleNoSqlDb(Config config, Metrics metrics) {
+		getLatency = metrics.dbLatency("get");
+		putLatency = metrics.dbLatency("put");
 		// TODO: add timestamps and IP
 		// CREATE TABLE shortlinks ( linkuuid string, datavalue json, hash long DEFAULT -1, PRIMARY KEY ( linkuuid ) )
 		String endpoint = config.getRequired(String.class, "endpoint");
@@ -83,7 +99,14 @@ public class OracleNoSqlDb implements Database {
 
 	@Override
 	public @Nullable String getShortlink(UUID uuid) {
-		GetResult linkuuid = handle.get(new GetRequest().setTableName("shortlinks").setKey(new MapValue().put("linkuuid", uuid.toString())));
+		long start = System.nanoTime();
+		GetResult linkuuid;
+		try {
+			linkuuid = handle.get(new GetRequest().setTableName("shortlinks").setKey(new MapValue().put("linkuuid", uuid.toString())));
+		}
+		finally {
+			getLatency.record(System.nanoTime() - start);
+		}
 		MapValue value = linkuuid.getValue();
 		if (value == null) {
 			return null;
@@ -112,18 +135,124 @@ public class OracleNoSqlDb implements Database {
 						.put("linkuuid", uuid.toString())
 						.put("hash", hash)
 						.putFromJson("datavalue", payload, new JsonOptions()));
-		PutResult put = handle.put(pr);
+		long start = System.nanoTime();
+		PutResult put;
+		try {
+			put = handle.put(pr);
+		}
+		finally {
+			putLatency.record(System.nanoTime() - start);
+		}
 		// TODO: error handling here?
 	}
 
-	void iterateAll(Consumer<MapValue> consumer) {
-		QueryRequest query = new QueryRequest().setStatement("select * from shortlinks");
-		// TODO: this is untested
-		query.setReadRateLimiter(new SimpleRateLimiter(10));
-		QueryIterableResult iter = handle.queryIterable(query);
-		for (MapValue entry : iter) {
-			log.info(entry.toString());
-			consumer.accept(entry);
+	/**
+	 * WriteMultipleRequest requires every row in it to share a shard key, and since linkuuid is the entire primary
+	 * key, no two shortlinks ever do. Instead, the puts are all issued at once.
+	 */
+	@Override
+	public void putShortLinks(Map<UUID, String> payloads) {
+		putConcurrently(payloads.entrySet(), entry -> putShortLink(entry.getKey(), entry.getValue()));
+	}
+
+	/**
+	 * Write whole rows as-is, e.g. from a backup, so that the hash column is preserved. Like
+	 * {@link #putShortLinks(Map)}, the puts are all issued at once.
+	 *
+	 * @param rows             Rows with linkuuid, datavalue and hash
+	 * @param writeRateLimiter Write unit budget. May be shared between concurrent calls.
+	 */
+	void putRows(Collection<MapValue> rows, RateLimiter writeRateLimiter) {
+		putConcurrently(rows, row -> {
+			PutRequest pr = new PutRequest().setTableName(tableName).setValue(row);
+			pr.setWriteRateLimiter(writeRateLimiter);
+			handle.put(pr);
+		});
+	}
+
+	/**
+	 * @return The hash column of a row, or null if there is no such row.
+	 */
+	@Nullable Long getHash(UUID uuid) {
+		GetResult result = handle.get(new GetRequest().setTableName(tableName).setKey(new MapValue().put("linkuuid", uuid.toString())));
+		MapValue value = result.getValue();
+		return value == null ? null : value.get("hash").getLong();
+	}
+
+	private static <X> void putConcurrently(Collection<X> items, Consumer<X> put) {
+		List<Thread> threads = new ArrayList<>(items.size());
+		List<Throwable> failures = new CopyOnWriteArrayList<>();
+		for (X item : items) {
+			threads.add(Thread.ofVirtual().start(() -> {
+				try {
+					put.accept(item);
+				}
+				catch (Throwable t) {
+					failures.add(t);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (!failures.isEmpty()) {
+			RuntimeException ex = new RuntimeException("Failed to write %s of %s shortlinks".formatted(failures.size(), items.size()));
+			failures.forEach(ex::addSuppressed);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Stream every row with a linkuuid strictly between two bounds, in linkuuid order. Each row also has its
+	 * modification time, as "modified".
+	 *
+	 * @param after         Exclusive lower bound, or null for no lower bound
+	 * @param before        Exclusive upper bound, or null for no upper bound
+	 * @param modifiedSince If not null, only rows modified after this time (epoch millis). Note that there is no
+	 *                      index on modification time, so this still costs a full scan of the range.
+	 * @param rateLimiter Read unit budget for this query. May be shared between concurrent queries.
+	 * @param consumer    Receives each row
+	 */
+	void iterateRange(@Nullable String after, @Nullable String before, @Nullable Long modifiedSince, RateLimiter rateLimiter, Consumer<MapValue> consumer) {
+		List<String> declarations = new ArrayList<>();
+		List<String> conditions = new ArrayList<>();
+		if (after != null) {
+			declarations.add("$after STRING;");
+			conditions.add("$t.linkuuid > $after");
+		}
+		if (before != null) {
+			declarations.add("$before STRING;");
+			conditions.add("$t.linkuuid < $before");
+		}
+		if (modifiedSince != null) {
+			declarations.add("$since TIMESTAMP(3);");
+			conditions.add("modification_time($t) > $since");
+		}
+		String statement = (declarations.isEmpty() ? "" : "DECLARE " + String.join(" ", declarations) + " ")
+				+ "SELECT $t.linkuuid, $t.datavalue, $t.hash, modification_time($t) AS modified FROM shortlinks $t"
+				+ (conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions))
+				+ " ORDER BY $t.linkuuid";
+		PreparedStatement prepared = handle.prepare(new PrepareRequest().setStatement(statement)).getPreparedStatement();
+		if (after != null) {
+			prepared.setVariable("$after", new StringValue(after));
+		}
+		if (before != null) {
+			prepared.setVariable("$before", new StringValue(before));
+		}
+		if (modifiedSince != null) {
+			prepared.setVariable("$since", new TimestampValue(modifiedSince));
+		}
+		QueryRequest query = new QueryRequest().setPreparedStatement(prepared);
+		query.setReadRateLimiter(rateLimiter);
+		try (QueryIterableResult iter = handle.queryIterable(query)) {
+			for (MapValue entry : iter) {
+				consumer.accept(entry);
+			}
 		}
 	}
 
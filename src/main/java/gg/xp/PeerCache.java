@@ -0,0 +1,210 @@
+package gg.xp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * {@link AsyncCache} shared by several servers, so that a link only needs to come from the database once no matter
+ * which server is asked for it.
+ * <p>
+ * Each link has an owner, picked by consistent hashing of its UUID over {@code peers} (base URLs of every server,
+ * including this one, which is {@code peerSelf}). On a local miss, a link owned by another server is fetched from its
+ * owner, which loads it from its own cache or the database. New links are pushed to their owner as soon as they are
+ * created. If the owner cannot be reached, the database is used directly, and that owner is skipped for
+ * {@code peerRetryMs}.
+ * <p>
+ * Links never change, so there is nothing to invalidate: any copy of a link is the right one.
+ * <p>
+ * Requests between peers go to {@link gg.xp.handlers.PeerCacheEndpoint} and carry {@code peerSecret}, since that
+ * endpoint is reachable from the outside too.
+ */
+public class PeerCache implements AsyncCache {
+
+	private static final Logger log = LoggerFactory.getLogger(PeerCache.class);
+	public static final String PATH = "/internal/cache/";
+	public static final String SECRET_HEADER = "X-Peer-Secret";
+	private static final int POINTS_PER_NODE = 128;
+
+	private final AsyncCacheAdapter local;
+	private final HashRing ring;
+	private final String self;
+	private final String secret;
+	private final Duration timeout;
+	private final long retryMs;
+	private final HttpClient http;
+	private final Map<String, Long> downUntil = new ConcurrentHashMap<>();
+
+	public PeerCache(Cache cache, Config config) {
+		this(cache,
+				Arrays.stream(config.getRequired(String.class, "peers").split(",")).map(String::trim).filter(peer -> !peer.isEmpty()).toList(),
+				config.getRequired(String.class, "peerSelf"),
+				config.getRequired(String.class, "peerSecret"),
+				Duration.ofMillis(config.getOrDefault(Long.class, "peerTimeoutMs", 250L)),
+				config.getOrDefault(Long.class, "peerRetryMs", 5_000L));
+	}
+
+	/**
+	 * @param peers   Base URLs of all servers, including this one, e.g. {@code http://10.0.0.1:8080}
+	 * @param self    Base URL of this server, exactly as it appears in {@code peers}
+	 * @param secret  Shared by all peers
+	 * @param timeout How long to wait for another peer before going to the database instead
+	 * @param retryMs How long to skip a peer for after failing to reach it
+	 */
+	public PeerCache(Cache cache, List<String> peers, String self, String secret, Duration timeout, long retryMs) {
+		if (!peers.contains(self)) {
+			throw new IllegalArgumentException("peerSelf %s is not one of the peers %s".formatted(self, peers));
+		}
+		if (secret.isEmpty()) {
+			throw new IllegalArgumentException("peerSecret must not be empty");
+		}
+		this.local = new AsyncCacheAdapter(cache);
+		this.ring = new HashRing(peers, POINTS_PER_NODE);
+		this.self = self;
+		this.secret = secret;
+		this.timeout = timeout;
+		this.retryMs = retryMs;
+		this.http = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(timeout)
+				.executor(command -> Thread.ofVirtual().start(command))
+				.build();
+		log.info("Peer cache: {} of {}", self, peers);
+	}
+
+	@Override
+	public CompletableFuture<@Nullable CacheValue> computeValueIfAbsentAsync(UUID key, Function<UUID, CompletableFuture<@Nullable String>> getter) {
+		return local.computeValueIfAbsentAsync(key, uuid -> {
+			String owner = ring.ownerOf(uuid);
+			if (owner.equals(self) || isDown(owner)) {
+				return getter.apply(uuid);
+			}
+			return fetchFromOwner(owner, uuid, getter);
+		});
+	}
+
+	/**
+	 * Like {@link #computeValueIfAbsentAsync(UUID, Function)}, but never asks another peer. For answering requests
+	 * from other peers, so that a request can never bounce between peers which disagree on the owner.
+	 */
+	public CompletableFuture<@Nullable CacheValue> computeLocallyAsync(UUID key, Function<UUID, CompletableFuture<@Nullable String>> getter) {
+		return local.computeValueIfAbsentAsync(key, getter);
+	}
+
+	@Override
+	public @Nullable CacheValue getIfPresent(UUID key) {
+		return local.getIfPresent(key);
+	}
+
+	@Override
+	public boolean contains(UUID key) {
+		return local.contains(key);
+	}
+
+	/**
+	 * Cache a link here, and push it to its owner if that is another peer.
+	 */
+	@Override
+	public void set(UUID key, @NotNull String value) {
+		local.set(key, value);
+		String owner = ring.ownerOf(key);
+		if (owner.equals(self) || isDown(owner)) {
+			return;
+		}
+		HttpRequest request = request(owner, key).PUT(HttpRequest.BodyPublishers.ofString(value)).build();
+		http.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+			if (error != null) {
+				markDown(owner, error);
+			}
+			else if (response.statusCode() / 100 != 2) {
+				log.warn("Peer {} refused {}: {}", owner, key, response.statusCode());
+			}
+		});
+	}
+
+	/**
+	 * Cache a link here only, e.g. one pushed by another peer.
+	 */
+	public void setLocally(UUID key, @NotNull String value) {
+		local.set(key, value);
+	}
+
+	/**
+	 * @return Whether a request carries the peer secret.
+	 */
+	public boolean isAuthorized(@Nullable String secretHeader) {
+		return secretHeader != null && MessageDigest.isEqual(
+				secretHeader.getBytes(StandardCharsets.UTF_8),
+				secret.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return The peer which owns a link.
+	 */
+	public String ownerOf(UUID key) {
+		return ring.ownerOf(key);
+	}
+
+	private CompletableFuture<@Nullable String> fetchFromOwner(String owner, UUID uuid, Function<UUID, CompletableFuture<@Nullable String>> getter) {
+		HttpRequest request = request(owner, uuid).GET().build();
+		return http.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+				.handle((response, error) -> {
+					if (error != null) {
+						markDown(owner, error);
+					}
+					else if (response.statusCode() == 200) {
+						return CompletableFuture.completedFuture(response.body());
+					}
+					else if (response.statusCode() == 404) {
+						// The owner already asked the database
+						return CompletableFuture.<@Nullable String>completedFuture(null);
+					}
+					else {
+						// e.g. the owner is too busy. Not worth skipping it for, but this one has to go to the database.
+						log.warn("Peer {} could not serve {}: {}", owner, uuid, response.statusCode());
+					}
+					return getter.apply(uuid);
+				})
+				.thenCompose(Function.identity());
+	}
+
+	private HttpRequest.Builder request(String owner, UUID uuid) {
+		return HttpRequest.newBuilder(URI.create(owner + PATH + uuid))
+				.timeout(timeout)
+				.header(SECRET_HEADER, secret);
+	}
+
+	private boolean isDown(String peer) {
+		Long until = downUntil.get(peer);
+		if (until == null) {
+			return false;
+		}
+		if (System.currentTimeMillis() >= until) {
+			downUntil.remove(peer, until);
+			return false;
+		}
+		return true;
+	}
+
+	private void markDown(String peer, Throwable error) {
+		if (downUntil.put(peer, System.currentTimeMillis() + retryMs) == null) {
+			log.warn("Peer {} unreachable, skipping it for {}ms: {}", peer, retryMs, error.toString());
+		}
+	}
+}
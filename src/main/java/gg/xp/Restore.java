@@ -0,0 +1,348 @@
+package gg.xp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import oracle.nosql.driver.RateLimiter;
+import oracle.nosql.driver.util.SimpleRateLimiter;
+import oracle.nosql.driver.values.FieldValue;
+import oracle.nosql.driver.values.MapValue;
+import org.jetbrains.annotations.Nullable;
+import org.picocontainer.MutablePicoContainer;
+import org.picocontainer.PicoBuilder;
+import org.picocontainer.lifecycle.StartableLifecycleStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a backup made by {@link Backup} (or {@link BackupMerge}) back into the shortlinks table.
+ * <p>
+ * Chunks are restored in parallel, in batches, under one shared write unit budget. Finished chunks are recorded in a
+ * checkpoint file in the backup directory, so running the restore again after a failure skips them. Rows are written
+ * as-is, including their hash column, so writing one twice is harmless.
+ * <p>
+ * At the end, the table's row count is checked against the backup, and a random sample of the restored rows is read
+ * back to check their hashes.
+ * <p>
+ * Usage: {@code Restore <backup dir>}
+ */
+public class Restore {
+	private static final Logger log = LoggerFactory.getLogger(Restore.class);
+	static final String CHECKPOINT_FILE = "restore-checkpoint.json";
+	private static final int MAX_ATTEMPTS = 5;
+
+	private final RowWriter writer;
+	private final ObjectMapper mapper;
+	private final int threads;
+	private final int batchSize;
+	private final int verifySample;
+	private final long initialBackoffMs;
+	// Set once any chunk fails, so that the rest stop early instead of retrying against a failing table
+	private volatile boolean aborted;
+
+	/**
+	 * Where to restore rows to.
+	 */
+	interface RowWriter {
+		/**
+		 * Write rows. If this throws, some of them may have been written anyway.
+		 */
+		void putRows(List<MapValue> rows);
+
+		long countRows();
+
+		/**
+		 * @return The hash column of a row, or null if there is no such row.
+		 */
+		@Nullable Long getHash(UUID uuid);
+	}
+
+	/**
+	 * Names of the chunks which have been fully restored.
+	 */
+	static final class Checkpoint {
+		public Set<String> doneChunks = new HashSet<>();
+	}
+
+	public Restore(OracleNoSqlDb db, ObjectMapper mapper, Config config) {
+		this(oracleWriter(db, new SimpleRateLimiter(config.getOrDefault(Double.class, "restoreWriteUnitsPerSecond", 50.0))),
+				mapper,
+				config.getOrDefault(Integer.class, "restoreThreads", 4),
+				config.getOrDefault(Integer.class, "restoreBatchSize", 25),
+				config.getOrDefault(Integer.class, "restoreVerifySample", 100),
+				500);
+	}
+
+	/**
+	 * @param writer           Where to write rows
+	 * @param mapper           For the manifest and checkpoint
+	 * @param threads          Number of chunks to restore at once
+	 * @param batchSize        Rows per write batch
+	 * @param verifySample     Number of restored rows to read back and check at the end
+	 * @param initialBackoffMs How long to wait before retrying a failed batch the first time
+	 */
+	Restore(RowWriter writer, ObjectMapper mapper, int threads, int batchSize, int verifySample, long initialBackoffMs) {
+		this.writer = writer;
+		this.mapper = mapper;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.verifySample = verifySample;
+		this.initialBackoffMs = initialBackoffMs;
+	}
+
+	private static RowWriter oracleWriter(OracleNoSqlDb db, RateLimiter rateLimiter) {
+		return new RowWriter() {
+			@Override
+			public void putRows(List<MapValue> rows) {
+				db.putRows(rows, rateLimiter);
+			}
+
+			@Override
+			public long countRows() {
+				return db.countRows();
+			}
+
+			@Override
+			public @Nullable Long getHash(UUID uuid) {
+				return db.getHash(uuid);
+			}
+		};
+	}
+
+	/**
+	 * Restore a backup, or resume restoring it.
+	 *
+	 * @return The number of rows written by this run
+	 */
+	long doRestore(Path dir) {
+		BackupManifest manifest = BackupManifest.read(dir, mapper);
+		if (manifest == null || manifest.completedAt == null) {
+			throw new IllegalArgumentException(dir.toAbsolutePath() + " does not contain a completed backup");
+		}
+		Checkpoint checkpoint = readCheckpoint(dir);
+		List<BackupManifest.Chunk> todo = manifest.partitions.stream()
+				.flatMap(p -> p.chunks.stream())
+				.filter(c -> !checkpoint.doneChunks.contains(c.file))
+				.toList();
+		log.info("Restoring {} rows from {} chunks ({} chunks already done)", manifest.totalRows(), todo.size(), checkpoint.doneChunks.size());
+
+		AtomicLong written = new AtomicLong();
+		Sample sample = new Sample(verifySample);
+		List<Future<?>> futures = new ArrayList<>();
+		try (ExecutorService exec = Executors.newFixedThreadPool(threads, Thread.ofVirtual().name("restore-", 0).factory())) {
+			for (BackupManifest.Chunk chunk : todo) {
+				futures.add(exec.submit(() -> {
+					if (aborted) {
+						return;
+					}
+					try {
+						restoreChunk(dir, chunk, written, sample);
+					}
+					catch (Throwable t) {
+						aborted = true;
+						throw t;
+					}
+					synchronized (checkpoint) {
+						checkpoint.doneChunks.add(chunk.file);
+						writeCheckpoint(dir, checkpoint);
+					}
+				}));
+			}
+		}
+		RuntimeException failure = null;
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException | InterruptedException e) {
+				if (e instanceof InterruptedException) {
+					Thread.currentThread().interrupt();
+				}
+				if (failure == null) {
+					failure = new RuntimeException("Restore incomplete, run it again to resume", e);
+				}
+				else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure == null && aborted) {
+			failure = new RuntimeException("Restore incomplete, run it again to resume");
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		log.info("Wrote {} rows, verifying", written.get());
+		verify(manifest, sample);
+		log.info("Restore verified");
+		return written.get();
+	}
+
+	private void restoreChunk(Path dir, BackupManifest.Chunk chunk, AtomicLong written, Sample sample) {
+		List<MapValue> batch = new ArrayList<>(batchSize);
+		BackupChunks.read(dir, chunk, line -> {
+			MapValue row = FieldValue.createFromJson(line, null).asMap();
+			// Not a real column
+			row.remove("modified");
+			batch.add(row);
+			if (batch.size() >= batchSize) {
+				writeBatch(batch, written, sample);
+			}
+		});
+		if (!batch.isEmpty()) {
+			writeBatch(batch, written, sample);
+		}
+	}
+
+	private void writeBatch(List<MapValue> batch, AtomicLong written, Sample sample) {
+		if (aborted) {
+			throw new IllegalStateException("Aborted");
+		}
+		long backoff = initialBackoffMs;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				writer.putRows(batch);
+				break;
+			}
+			catch (RuntimeException e) {
+				if (attempt >= MAX_ATTEMPTS) {
+					throw e;
+				}
+				log.warn("Writing batch of {} rows failed (attempt {}), retrying in {}ms", batch.size(), attempt, backoff, e);
+				try {
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException ie) {
+					throw new RuntimeException(ie);
+				}
+				backoff *= 2;
+			}
+		}
+		for (MapValue row : batch) {
+			sample.offer(row);
+		}
+		written.addAndGet(batch.size());
+		batch.clear();
+	}
+
+	private void verify(BackupManifest manifest, Sample sample) {
+		long count = writer.countRows();
+		if (count < manifest.totalRows()) {
+			throw new IllegalStateException("Table has %s rows, but the backup has %s".formatted(count, manifest.totalRows()));
+		}
+		else if (count > manifest.totalRows()) {
+			log.warn("Table has {} rows, more than the {} in the backup", count, manifest.totalRows());
+		}
+		int mismatches = 0;
+		for (MapValue row : sample.rows()) {
+			UUID uuid = UUID.fromString(row.getString("linkuuid"));
+			Long actual = writer.getHash(uuid);
+			long expected = row.get("hash").getLong();
+			if (actual == null || actual != expected) {
+				log.error("Hash mismatch for {}: expected {}, got {}", uuid, expected, actual);
+				mismatches++;
+			}
+		}
+		if (mismatches > 0) {
+			throw new IllegalStateException("%s of %s sampled rows do not match the backup".formatted(mismatches, sample.rows().size()));
+		}
+	}
+
+	private Checkpoint readCheckpoint(Path dir) {
+		Path path = dir.resolve(CHECKPOINT_FILE);
+		if (!Files.exists(path)) {
+			return new Checkpoint();
+		}
+		try {
+			return mapper.readValue(path.toFile(), Checkpoint.class);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeCheckpoint(Path dir, Checkpoint checkpoint) {
+		Path temp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+		try {
+			mapper.writeValue(temp.toFile(), checkpoint);
+			Files.move(temp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Uniform random sample of the rows offered to it (reservoir sampling).
+	 */
+	private static final class Sample {
+		private final int size;
+		private final List<MapValue> rows = new ArrayList<>();
+		private long seen;
+
+		private Sample(int size) {
+			this.size = size;
+		}
+
+		synchronized void offer(MapValue row) {
+			seen++;
+			if (rows.size() < size) {
+				rows.add(row);
+			}
+			else {
+				long index = ThreadLocalRandom.current().nextLong(seen);
+				if (index < size) {
+					rows.set((int) index, row);
+				}
+			}
+		}
+
+		synchronized List<MapValue> rows() {
+			return List.copyOf(rows);
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			log.error("Usage: Restore <backup dir>");
+			System.exit(1);
+		}
+		log.info("Restore starting");
+		MutablePicoContainer pico = new PicoBuilder()
+				.withCaching()
+				.withLifecycle(StartableLifecycleStrategy.class)
+				.withAutomatic()
+				.build();
+		Config config = new Config();
+		pico.addComponent(config);
+		pico.addComponent(OracleNoSqlDb.class);
+		pico.addComponent(Restore.class);
+		pico.addComponent(new ObjectMapper());
+		try {
+			Restore restore = pico.getComponent(Restore.class);
+			restore.doRestore(new File(args[0]).toPath());
+			log.info("Restore complete");
+			System.exit(0);
+		}
+		catch (Throwable t) {
+			log.error("Restore failure", t);
+			System.exit(1);
+		}
+	}
+}
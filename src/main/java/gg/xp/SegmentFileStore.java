@@ -0,0 +1,508 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Local disk store for shortlink payloads, made of append-only, memory-mapped segment files.
+ * <p>
+ * Payloads are stored GZIP-compressed. The index (UUID to segment and offset) is only kept in memory, and is rebuilt
+ * by scanning the segments on {@link #open()}.
+ * <p>
+ * When the store is over its size limit, the oldest segment is compacted: entries which have been read since they
+ * were written are copied forward into the newest segment, and everything else in it (including entries which have
+ * since been written again elsewhere) is dropped along with the file.
+ * <p>
+ * Record format: CRC32 of everything after it (int), payload length (int), UUID (two longs), payload. Anything
+ * after a bad or torn record in a segment (e.g. from a crash mid-write) is ignored. Unless the store is opened with
+ * {@code sync}, writes are not forced to disk individually, since losing the tail of a cache is harmless.
+ * <p>
+ * Reads share a read lock, so they only wait for writers while a record is being copied in, never for a flush to
+ * disk: in sync mode, records are forced after the write lock has been released. Flushes always cover everything
+ * appended so far, in order, so a write is never acknowledged while an earlier record could still be lost (which
+ * would make {@link #open()} stop scanning before it). Concurrent writers share a flush.
+ */
+final class SegmentFileStore implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(SegmentFileStore.class);
+	private static final String PREFIX = "cache-";
+	private static final String SUFFIX = ".seg";
+	private static final int HEADER_BYTES = 4 + 4 + 16;
+	// Set in an index entry once it has been read, so that compaction keeps it
+	private static final long REFERENCED = 1L << 62;
+
+	private final Path dir;
+	private final int segmentSize;
+	private final long maxBytes;
+	private final boolean sync;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final Forcer forcer;
+	private final ReentrantLock flushLock = new ReentrantLock();
+	// Guarded by flushLock. Everything up to this point is on disk.
+	private int flushedSegment;
+	private int flushedEnd;
+	private long flushedSeq;
+	// Everything below is guarded by lock
+	private final UuidIndex index = new UuidIndex(1024);
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private Segment active;
+	private long totalBytes;
+	// Number of records appended so far
+	private long appendedSeq;
+
+	/**
+	 * Forces part of a segment to disk. Only replaced in tests.
+	 */
+	interface Forcer {
+		void force(MappedByteBuffer buffer, int offset, int length);
+	}
+
+	private static final class Segment {
+		final int id;
+		final Path path;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		// End of valid data
+		int end;
+
+		private Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+			this.id = id;
+			this.path = path;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * @param dir         Directory for segment files
+	 * @param segmentSize Size of each segment file
+	 * @param maxBytes    Compact once the segments hold more than this
+	 */
+	SegmentFileStore(Path dir, int segmentSize, long maxBytes) {
+		this(dir, segmentSize, maxBytes, false);
+	}
+
+	/**
+	 * @param dir         Directory for segment files
+	 * @param segmentSize Size of each segment file
+	 * @param maxBytes    Compact once the segments hold more than this, or {@link Long#MAX_VALUE} to never drop
+	 *                    anything
+	 * @param sync        Force each record to disk before {@link #put(UUID, String)} returns
+	 */
+	SegmentFileStore(Path dir, int segmentSize, long maxBytes, boolean sync) {
+		this(dir, segmentSize, maxBytes, sync, MappedByteBuffer::force);
+	}
+
+	SegmentFileStore(Path dir, int segmentSize, long maxBytes, boolean sync, Forcer forcer) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxBytes = maxBytes;
+		this.sync = sync;
+		this.forcer = forcer;
+	}
+
+	/**
+	 * Map existing segments and rebuild the index from them.
+	 */
+	void open() {
+		try {
+			Files.createDirectories(dir);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		long startTime = System.currentTimeMillis();
+		lock.writeLock().lock();
+		try {
+			int maxId = -1;
+			for (int id : existingSegments()) {
+				Segment segment = mapSegment(id);
+				segment.end = scan(segment);
+				segments.put(id, segment);
+				totalBytes += segment.end;
+				maxId = id;
+			}
+			if (maxId >= 0) {
+				active = segments.get(maxId);
+			}
+			else {
+				active = newSegment(0);
+			}
+			flushLock.lock();
+			try {
+				flushedSegment = active.id;
+				flushedEnd = active.end;
+			}
+			finally {
+				flushLock.unlock();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		log.info("{}: {} entries in {} segments, indexed in {}ms", dir, index.size(), segments.size(), System.currentTimeMillis() - startTime);
+	}
+
+	@Nullable String get(UUID uuid) {
+		long msb = uuid.getMostSignificantBits();
+		long lsb = uuid.getLeastSignificantBits();
+		byte[] compressed;
+		long location;
+		lock.readLock().lock();
+		try {
+			location = index.get(msb, lsb);
+			if (location == UuidIndex.NOT_FOUND) {
+				misses.increment();
+				return null;
+			}
+			Segment segment = segments.get(segmentOf(location));
+			int offset = offsetOf(location);
+			int length = segment.buffer.getInt(offset + 4);
+			if (checksumMatches(segment, offset, length)) {
+				compressed = new byte[length];
+				segment.buffer.get(offset + HEADER_BYTES, compressed);
+				if ((location & REFERENCED) == 0) {
+					// Only replaces the value of an existing entry, which never moves anything in the index, and
+					// readers racing to do it all write the same value
+					index.put(msb, lsb, location | REFERENCED);
+				}
+			}
+			else {
+				log.warn("Bad checksum for {} in segment {} of {}, dropping it", uuid, segment.id, dir);
+				compressed = null;
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		if (compressed == null) {
+			dropBadRecord(msb, lsb, location);
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		// Outside the lock, since this is the slow part
+		return CacheValue.uncompressBytesToString(compressed);
+	}
+
+	private void dropBadRecord(long msb, long lsb, long location) {
+		lock.writeLock().lock();
+		try {
+			// Unless it has been written again in the meantime
+			if ((index.get(msb, lsb) & ~REFERENCED) == (location & ~REFERENCED)) {
+				index.remove(msb, lsb);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Store a payload, unless it is already present. Payloads are immutable, so there is no need to replace it.
+	 */
+	void put(UUID uuid, String payload) {
+		byte[] compressed = CacheValue.compressStringToBytes(payload);
+		if (HEADER_BYTES + compressed.length > segmentSize) {
+			if (sync) {
+				throw new IllegalArgumentException("Payload for %s is too large (%s bytes compressed)".formatted(uuid, compressed.length));
+			}
+			return;
+		}
+		long msb = uuid.getMostSignificantBits();
+		long lsb = uuid.getLeastSignificantBits();
+		long seq;
+		lock.writeLock().lock();
+		try {
+			// If it is already present, its record may still be waiting for a flush, so still wait for that below
+			if (index.get(msb, lsb) == UuidIndex.NOT_FOUND) {
+				append(msb, lsb, compressed);
+				while (totalBytes > maxBytes && segments.size() > 1) {
+					compactOldest();
+				}
+			}
+			seq = appendedSeq;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		if (sync) {
+			// Outside the lock, so that reads don't wait for the disk
+			flushThrough(seq);
+		}
+	}
+
+	private record Dirty(Segment segment, int from, int to) {
+	}
+
+	/**
+	 * Force everything appended so far to disk, unless another flush has already covered record number {@code seq}.
+	 */
+	private void flushThrough(long seq) {
+		flushLock.lock();
+		try {
+			if (flushedSeq >= seq) {
+				return;
+			}
+			long target;
+			List<Dirty> dirty = new ArrayList<>();
+			lock.readLock().lock();
+			try {
+				target = appendedSeq;
+				for (Segment segment : segments.tailMap(flushedSegment, true).values()) {
+					int from = segment.id == flushedSegment ? flushedEnd : 0;
+					dirty.add(new Dirty(segment, from, segment.end));
+				}
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+			// In order, so that an earlier record is never lost while a later one survives
+			for (Dirty range : dirty) {
+				if (range.to > range.from) {
+					forcer.force(range.segment.buffer, range.from, range.to - range.from);
+				}
+				flushedSegment = range.segment.id;
+				flushedEnd = range.to;
+			}
+			flushedSeq = target;
+		}
+		finally {
+			flushLock.unlock();
+		}
+	}
+
+	int size() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Total size of all records in all segments, including ones which are no longer live.
+	 */
+	long totalBytes() {
+		lock.readLock().lock();
+		try {
+			return totalBytes;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long hitCount() {
+		return hits.sum();
+	}
+
+	long missCount() {
+		return misses.sum();
+	}
+
+	long evictionCount() {
+		return evictions.sum();
+	}
+
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			for (Segment segment : segments.values()) {
+				try {
+					segment.buffer.force();
+					segment.channel.close();
+				}
+				catch (IOException e) {
+					log.error("Error closing segment {} of {}", segment.id, dir, e);
+				}
+			}
+			segments.clear();
+			index.clear();
+			active = null;
+			totalBytes = 0;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Write a record to the active segment, without forcing it to disk.
+	 */
+	private void append(long msb, long lsb, byte[] compressed) {
+		appendedSeq++;
+		int recordSize = HEADER_BYTES + compressed.length;
+		if (active.end + recordSize > segmentSize) {
+			active = newSegment(active.id + 1);
+		}
+		MappedByteBuffer buffer = active.buffer;
+		int offset = active.end;
+		buffer.putInt(offset + 4, compressed.length);
+		buffer.putLong(offset + 8, msb);
+		buffer.putLong(offset + 16, lsb);
+		buffer.put(offset + HEADER_BYTES, compressed);
+		buffer.putInt(offset, checksum(active, offset, compressed.length));
+		active.end = offset + recordSize;
+		totalBytes += recordSize;
+		index.put(msb, lsb, location(active.id, offset));
+	}
+
+	private void compactOldest() {
+		Map.Entry<Integer, Segment> oldestEntry = segments.pollFirstEntry();
+		Segment oldest = oldestEntry.getValue();
+		totalBytes -= oldest.end;
+		int kept = 0;
+		int dropped = 0;
+		int offset = 0;
+		while (offset < oldest.end) {
+			MappedByteBuffer buffer = oldest.buffer;
+			int length = buffer.getInt(offset + 4);
+			long msb = buffer.getLong(offset + 8);
+			long lsb = buffer.getLong(offset + 16);
+			long location = index.get(msb, lsb);
+			if ((location & ~REFERENCED) == location(oldest.id, offset)) {
+				if ((location & REFERENCED) != 0) {
+					byte[] compressed = new byte[length];
+					buffer.get(offset + HEADER_BYTES, compressed);
+					append(msb, lsb, compressed);
+					kept++;
+				}
+				else {
+					index.remove(msb, lsb);
+					dropped++;
+				}
+			}
+			offset += HEADER_BYTES + length;
+		}
+		evictions.add(dropped);
+		if (sync && kept > 0) {
+			// The copies have to be on disk before the originals go
+			segments.values().forEach(segment -> segment.buffer.force());
+		}
+		try {
+			oldest.channel.close();
+			Files.deleteIfExists(oldest.path);
+		}
+		catch (IOException e) {
+			log.error("Could not delete segment {} of {}", oldest.id, dir, e);
+		}
+		log.info("Compacted segment {} of {}: kept {}, dropped {}", oldest.id, dir, kept, dropped);
+	}
+
+	/**
+	 * Index every valid record in a segment.
+	 *
+	 * @return The end of the valid data
+	 */
+	private int scan(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int limit = buffer.capacity();
+		int offset = 0;
+		while (offset + HEADER_BYTES <= limit) {
+			int length = buffer.getInt(offset + 4);
+			if (length <= 0 || length > limit - offset - HEADER_BYTES) {
+				// Zero means we have reached the unused part of the segment
+				if (length != 0) {
+					log.warn("Truncated record at {} in segment {} of {}, ignoring the rest", offset, segment.id, dir);
+				}
+				break;
+			}
+			if (!checksumMatches(segment, offset, length)) {
+				log.warn("Bad checksum at {} in segment {} of {}, ignoring the rest", offset, segment.id, dir);
+				break;
+			}
+			index.put(buffer.getLong(offset + 8), buffer.getLong(offset + 16), location(segment.id, offset));
+			offset += HEADER_BYTES + length;
+		}
+		return offset;
+	}
+
+	private static boolean checksumMatches(Segment segment, int offset, int length) {
+		return segment.buffer.getInt(offset) == checksum(segment, offset, length);
+	}
+
+	private static int checksum(Segment segment, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(segment.buffer.slice(offset + 4, HEADER_BYTES - 4 + length));
+		return (int) crc.getValue();
+	}
+
+	private Segment newSegment(int id) {
+		Segment segment = mapSegment(id);
+		if (sync) {
+			try {
+				// Make sure the new file itself survives a crash, not just the records in it
+				segment.channel.force(true);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private Segment mapSegment(int id) {
+		Path path = dir.resolve(PREFIX + id + SUFFIX);
+		try {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			// Also grows the file to the full segment size if it is new
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			return new Segment(id, path, channel, buffer);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private List<Integer> existingSegments() {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.map(path -> path.getFileName().toString())
+					.filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+					.map(name -> Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())))
+					.sorted()
+					.toList();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static long location(int segment, int offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	private static int segmentOf(long location) {
+		return (int) ((location & ~REFERENCED) >>> 32);
+	}
+
+	private static int offsetOf(long location) {
+		return (int) location;
+	}
+}
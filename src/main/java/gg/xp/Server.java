@@ -3,7 +3,6 @@ package gg.xp;
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.picocontainer.Startable;
 import org.slf4j.Logger;
@@ -13,10 +12,16 @@ import org.slf4j.MDC;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 public class Server implements Startable {
 
@@ -28,12 +33,19 @@ public class Server implements Startable {
 			.daemon(true)
 			.build();
 
-	private final HttpServer server;
+	private final HttpEngine engine;
+	private final Config config;
+	private final Map<String, AdaptiveLimiter> limiters = new ConcurrentHashMap<>();
+	private final AtomicInteger shedCount = new AtomicInteger();
+	private final String retryAfter;
+	private final Metrics metrics;
 
-	public Server(Config config) {
+	public Server(Config config, Metrics metrics) {
+		this.config = config;
+		this.metrics = metrics;
+		this.retryAfter = String.valueOf(config.getOrDefault(Integer.class, "retryAfterSeconds", 1));
 		try {
-			server = HttpServer.create(new InetSocketAddress(config.getRequired(Integer.class, "port")), 20);
-			server.setExecutor(command -> tf.newThread(command).start());
+			engine = buildEngine(config);
 			registerHandler("/", (request) -> {
 				log.info("Not found: {}", request.getRequestURI());
 				request.sendResponseHeaders(HTTP_NOT_FOUND, -1);
@@ -45,15 +57,39 @@ public class Server implements Startable {
 		}
 	}
 
+	/**
+	 * The engine is picked with {@code httpEngine}: "jdk" (the default) for the JDK's built-in server, or "nio" for
+	 * {@link NioHttpEngine}. Both take {@code httpBacklog}. The NIO engine also takes {@code httpMaxConnections},
+	 * {@code httpMaxBodyBytes} and {@code httpIdleTimeoutSeconds}.
+	 */
+	private static HttpEngine buildEngine(Config config) throws IOException {
+		InetSocketAddress address = new InetSocketAddress(config.getRequired(Integer.class, "port"));
+		int backlog = config.getOrDefault(Integer.class, "httpBacklog", 256);
+		Executor executor = command -> tf.newThread(command).start();
+		String type = config.getOrDefault(String.class, "httpEngine", "jdk");
+		return switch (type) {
+			case "jdk" -> new JdkHttpEngine(address, backlog, executor);
+			case "nio" -> {
+				log.info("Using NIO HTTP engine");
+				yield new NioHttpEngine(address, backlog,
+						config.getOrDefault(Integer.class, "httpMaxConnections", 10_000),
+						config.getOrDefault(Integer.class, "httpMaxBodyBytes", 1024 * 1024),
+						config.getOrDefault(Integer.class, "httpIdleTimeoutSeconds", 60),
+						executor);
+			}
+			default -> throw new IllegalArgumentException("Unknown HTTP engine: " + type);
+		};
+	}
+
 	@Override
 	public void start() {
-		server.start();
-		log.info("Server started on port {}", server.getAddress().getPort());
+		engine.start();
+		log.info("Server started on port {}", engine.getAddress().getPort());
 	}
 
 	@Override
 	public void stop() {
-		server.stop(5);
+		engine.stop(5);
 		log.info("Server stopped");
 	}
 
@@ -75,10 +111,40 @@ public class Server implements Startable {
 
 
 	public HttpContext registerHandler(String path, HttpHandler handler) {
-		log.info("Registered handler: {}", path);
-		return server.createContext(path, h -> {
+		return registerHandler(path, handler, exchange -> false);
+	}
+
+	/**
+	 * Register a handler, with its own adaptive concurrency limit. Request latency is recorded in {@link Metrics} by
+	 * route and response status. Requests over the limit are answered straight away
+	 * with a 503 and a Retry-After header.
+	 * <p>
+	 * The limit starts at {@code concurrencyLimitInitial} and stays between {@code concurrencyLimitMin} and
+	 * {@code concurrencyLimitMax}. Each of these can be overridden for one route by prefixing it with the route
+	 * name, e.g. {@code shortlinkConcurrencyLimitMax} for {@code /shortlink/}.
+	 *
+	 * @param exempt Requests which are cheap to serve (e.g. cache hits) and so should never be turned away. They do
+	 *               not count towards the limit.
+	 */
+	public HttpContext registerHandler(String path, HttpHandler handler, Predicate<HttpExchange> exempt) {
+		AdaptiveLimiter limiter = buildLimiter(path);
+		limiters.put(path, limiter);
+		log.info("Registered handler: {} (concurrency limit {})", path, limiter.getLimit());
+		return engine.createContext(path, h -> {
+			boolean limited = false;
+			long start = System.nanoTime();
 			try {
 				before(h);
+				if (!exempt.test(h)) {
+					if (!limiter.tryAcquire()) {
+						shedCount.incrementAndGet();
+						log.warn("Over concurrency limit for {} ({}), rejecting", path, limiter.getLimit());
+						h.getResponseHeaders().add("Retry-After", retryAfter);
+						h.sendResponseHeaders(HTTP_UNAVAILABLE, -1);
+						return;
+					}
+					limited = true;
+				}
 				handler.handle(h);
 			}
 			catch (Throwable t) {
@@ -86,9 +152,44 @@ public class Server implements Startable {
 				h.sendResponseHeaders(HTTP_INTERNAL_ERROR, -1);
 			}
 			finally {
+				long elapsed = System.nanoTime() - start;
+				if (limited) {
+					limiter.release(elapsed);
+				}
+				metrics.requestLatency(path, h.getResponseCode()).record(elapsed);
 				after();
 			}
 		});
 	}
 
+	private AdaptiveLimiter buildLimiter(String path) {
+		String route = path.replace("/", "");
+		int initial = routeSetting(route, "concurrencyLimitInitial", 64);
+		int min = routeSetting(route, "concurrencyLimitMin", 4);
+		int max = routeSetting(route, "concurrencyLimitMax", 1024);
+		return new AdaptiveLimiter(initial, min, max);
+	}
+
+	private int routeSetting(String route, String key, int defaultValue) {
+		int value = config.getOrDefault(Integer.class, key, defaultValue);
+		if (route.isEmpty()) {
+			return value;
+		}
+		return config.getOrDefault(Integer.class, route + Character.toUpperCase(key.charAt(0)) + key.substring(1), value);
+	}
+
+	/**
+	 * @return The current concurrency limit of a route, as registered.
+	 */
+	public int getConcurrencyLimit(String path) {
+		return limiters.get(path).getLimit();
+	}
+
+	/**
+	 * @return How many requests have been turned away for being over a concurrency limit.
+	 */
+	public int getShedCount() {
+		return shedCount.get();
+	}
+
 }
@@ -2,7 +2,7 @@ package gg.xp;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Stats {
 
@@ -12,7 +12,8 @@ public class Stats {
 		return Duration.between(startedAt, Instant.now());
 	}
 
-	public final AtomicInteger errCount = new AtomicInteger(0);
-	public final AtomicInteger getCount = new AtomicInteger(0);
-	public final AtomicInteger postCount = new AtomicInteger(0);
+	// Striped, so that request threads don't contend on them
+	public final LongAdder errCount = new LongAdder();
+	public final LongAdder getCount = new LongAdder();
+	public final LongAdder postCount = new LongAdder();
 }
@@ -0,0 +1,118 @@
+package gg.xp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Two-level cache: a small on-heap {@link TinyLfuCacheImpl} in front of a much bigger {@link OffHeapCacheTier}.
+ * <p>
+ * Entries evicted from the on-heap tier are moved to the off-heap tier, still compressed. On an on-heap miss, the
+ * off-heap tier is checked before going to the database, and whatever is found is put back in the on-heap tier.
+ */
+public class TieredCache implements Cache, CacheStats {
+
+	private final TinyLfuCacheImpl hot;
+	private final OffHeapCacheTier cold;
+
+	public TieredCache(TinyLfuCacheImpl hot, OffHeapCacheTier cold) {
+		this.hot = hot;
+		this.cold = cold;
+		hot.setEvictionListener(cold::put);
+	}
+
+	@Override
+	public @Nullable String computeIfAbsent(UUID key, Function<UUID, @Nullable String> getter) {
+		CacheValue value = computeValueIfAbsent(key, getter);
+		return value == null ? null : value.getValue();
+	}
+
+	@Override
+	public @Nullable CacheValue computeValueIfAbsent(UUID key, Function<UUID, @Nullable String> getter) {
+		return hot.computeStoredIfAbsent(key, uuid -> {
+			CacheValue stored = cold.get(uuid);
+			if (stored != null) {
+				return stored;
+			}
+			String value = getter.apply(uuid);
+			return value == null ? null : CacheValue.uncompressed(value);
+		});
+	}
+
+	@Override
+	public @Nullable CacheValue getIfPresent(UUID key) {
+		CacheValue value = hot.getIfPresent(key);
+		if (value != null) {
+			return value;
+		}
+		CacheValue stored = cold.get(key);
+		if (stored == null) {
+			return null;
+		}
+		return hot.computeStoredIfAbsent(key, uuid -> stored);
+	}
+
+	@Override
+	public boolean contains(UUID key) {
+		return hot.contains(key) || cold.contains(key);
+	}
+
+	@Override
+	public CacheValue set(UUID key, @NotNull String value) {
+		return hot.set(key, value);
+	}
+
+	/**
+	 * @return Number of entries in either tier. Entries moved back to the on-heap tier are also still in the off-heap
+	 * tier, so they are counted twice.
+	 */
+	@Override
+	public int cacheSize() {
+		return hot.cacheSize() + cold.size();
+	}
+
+	/**
+	 * Only the on-heap tier keeps usage counts, so only its keys are included.
+	 */
+	@Override
+	public List<UUID> hottestKeys(int limit) {
+		return hot.hottestKeys(limit);
+	}
+
+	@Override
+	public long hitCount() {
+		return hot.hitCount() + cold.hitCount();
+	}
+
+	/**
+	 * @return Misses in both tiers. Every on-heap miss goes on to the off-heap tier, so that counts them all.
+	 */
+	@Override
+	public long missCount() {
+		return cold.missCount();
+	}
+
+	/**
+	 * @return Entries dropped from the off-heap tier. Entries evicted from the on-heap tier just move down a tier.
+	 */
+	@Override
+	public long evictionCount() {
+		return cold.evictionCount();
+	}
+
+	@Override
+	public long storedBytes() {
+		return hot.storedBytes() + cold.allocatedBytes();
+	}
+
+	public TinyLfuCacheImpl getHotTier() {
+		return hot;
+	}
+
+	public OffHeapCacheTier getColdTier() {
+		return cold;
+	}
+}
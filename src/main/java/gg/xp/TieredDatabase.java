@@ -0,0 +1,244 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Database made of several tiers, fastest first, with the real (authoritative) database last. For example, a local
+ * replica in front of the remote database.
+ * <p>
+ * Reads try each tier in turn, moving on when a tier does not have the link. If a tier is slow to answer (slower than
+ * its recent {@code hedgePercentile} latency), the next tier is asked as well, and whichever finds the link first
+ * wins. A link found in a later tier is copied back into the earlier tiers in the background.
+ * <p>
+ * Writes go to the last tier first, and then to the others. Only a failure to write to the last tier is an error.
+ */
+public class TieredDatabase implements Database, Startable {
+
+	private static final Logger log = LoggerFactory.getLogger(TieredDatabase.class);
+
+	private final List<Database> tiers;
+	private final LatencyTracker[] latencies;
+	private final Executor executor;
+	private final LongAdder hedges = new LongAdder();
+	private final LongAdder backfills = new LongAdder();
+
+	/**
+	 * @param tiers           Fastest first, authoritative last
+	 * @param executor        Runs reads and backfills. Reads can only be hedged if this runs them concurrently.
+	 * @param hedgePercentile Hedge a read once it is slower than this fraction (e.g. 0.95) of recent reads from the
+	 *                        same tier
+	 * @param minHedgeDelayMs Never hedge sooner than this
+	 */
+	public TieredDatabase(List<Database> tiers, Executor executor, double hedgePercentile, long minHedgeDelayMs) {
+		if (tiers.isEmpty()) {
+			throw new IllegalArgumentException("No tiers");
+		}
+		this.tiers = List.copyOf(tiers);
+		this.executor = executor;
+		this.latencies = new LatencyTracker[tiers.size()];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyTracker(hedgePercentile, TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMs));
+		}
+	}
+
+	@Override
+	public void start() {
+		// Authoritative tier first
+		for (Database tier : tiers.reversed()) {
+			if (tier instanceof Startable startable) {
+				startable.start();
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		for (Database tier : tiers) {
+			if (tier instanceof Startable startable) {
+				startable.stop();
+			}
+		}
+	}
+
+	private record Result(int tier, @Nullable String payload, @Nullable Throwable error) {
+	}
+
+	@Override
+	public @Nullable String getShortlink(UUID uuid) {
+		BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+		int started = 0;
+		int finished = 0;
+		Throwable failure = null;
+		startRead(started++, uuid, results);
+		while (true) {
+			Result result;
+			try {
+				if (started < tiers.size()) {
+					result = results.poll(latencies[started - 1].hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+				}
+				else {
+					result = results.take();
+				}
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			if (result == null) {
+				// Latest tier is slow, ask the next one too
+				hedges.increment();
+				startRead(started++, uuid, results);
+				continue;
+			}
+			finished++;
+			if (result.payload != null) {
+				backfill(result.tier, uuid, result.payload);
+				return result.payload;
+			}
+			if (result.error != null) {
+				log.warn("Error reading {} from tier {}", uuid, result.tier, result.error);
+				if (failure == null) {
+					failure = result.error;
+				}
+				else {
+					failure.addSuppressed(result.error);
+				}
+			}
+			else if (result.tier == tiers.size() - 1) {
+				// The last tier is authoritative, so earlier failures do not matter once it has answered
+				return null;
+			}
+			if (finished == started) {
+				if (started == tiers.size()) {
+					if (failure != null) {
+						// Can't say that it does not exist, since a tier which might have it failed
+						throw new RuntimeException("Error reading " + uuid, failure);
+					}
+					return null;
+				}
+				startRead(started++, uuid, results);
+			}
+		}
+	}
+
+	private void startRead(int tier, UUID uuid, BlockingQueue<Result> results) {
+		executor.execute(() -> {
+			long start = System.nanoTime();
+			try {
+				String payload = tiers.get(tier).getShortlink(uuid);
+				latencies[tier].record(System.nanoTime() - start);
+				results.add(new Result(tier, payload, null));
+			}
+			catch (Throwable t) {
+				results.add(new Result(tier, null, t));
+			}
+		});
+	}
+
+	private void backfill(int foundIn, UUID uuid, String payload) {
+		if (foundIn == 0) {
+			return;
+		}
+		executor.execute(() -> {
+			for (int i = 0; i < foundIn; i++) {
+				try {
+					tiers.get(i).putShortLink(uuid, payload);
+				}
+				catch (Throwable t) {
+					log.error("Error copying {} into tier {}", uuid, i, t);
+				}
+			}
+			backfills.increment();
+		});
+	}
+
+	@Override
+	public void putShortLink(UUID uuid, String payload) {
+		tiers.getLast().putShortLink(uuid, payload);
+		for (int i = 0; i < tiers.size() - 1; i++) {
+			try {
+				tiers.get(i).putShortLink(uuid, payload);
+			}
+			catch (Throwable t) {
+				log.error("Error writing {} to tier {}", uuid, i, t);
+			}
+		}
+	}
+
+	@Override
+	public void putShortLinks(Map<UUID, String> payloads) {
+		tiers.getLast().putShortLinks(payloads);
+		for (int i = 0; i < tiers.size() - 1; i++) {
+			try {
+				tiers.get(i).putShortLinks(payloads);
+			}
+			catch (Throwable t) {
+				log.error("Error writing {} links to tier {}", payloads.size(), i, t);
+			}
+		}
+	}
+
+	/**
+	 * @return How many reads were hedged, i.e. sent to another tier because one was slow
+	 */
+	public long hedgeCount() {
+		return hedges.sum();
+	}
+
+	/**
+	 * @return How many links found in a later tier were copied into the earlier ones
+	 */
+	public long backfillCount() {
+		return backfills.sum();
+	}
+
+	/**
+	 * Keeps the most recent read latencies of a tier, and the percentile of them to use as the hedge delay.
+	 */
+	static final class LatencyTracker {
+		private static final int SAMPLES = 1024;
+		// Until there are this many samples, there is nothing to go on, so use the minimum delay
+		private static final int MIN_SAMPLES = 64;
+		// Recompute the percentile after this many new samples
+		private static final int RECOMPUTE_EVERY = 128;
+
+		private final long[] samples = new long[SAMPLES];
+		private final double percentile;
+		private final long minDelayNanos;
+		private long count;
+		private volatile long delayNanos;
+
+		LatencyTracker(double percentile, long minDelayNanos) {
+			this.percentile = percentile;
+			this.minDelayNanos = minDelayNanos;
+			this.delayNanos = minDelayNanos;
+		}
+
+		synchronized void record(long nanos) {
+			samples[(int) (count % SAMPLES)] = nanos;
+			count++;
+			if (count == MIN_SAMPLES || (count > MIN_SAMPLES && count % RECOMPUTE_EVERY == 0)) {
+				long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLES));
+				Arrays.sort(sorted);
+				long value = sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+				delayNanos = Math.max(minDelayNanos, value);
+			}
+		}
+
+		long hedgeDelayNanos() {
+			return delayNanos;
+		}
+	}
+}
@@ -0,0 +1,671 @@
+package gg.xp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Window-TinyLFU cache, bounded by the total stored (i.e. compressed) size of its entries rather than by entry count.
+ * <p>
+ * New entries land in a small LRU "window". Entries that fall out of the window have to compete with the least
+ * recently used entry of the main region, and only get in if the frequency sketch says they are more popular. The
+ * main region is a segmented LRU: entries that get hit while on probation are promoted to the protected segment.
+ * <p>
+ * Eviction happens on the write path, one entry at a time, so the cache never drops a large chunk of itself at once.
+ * Reads never block: if another thread holds the eviction lock, the reordering for that hit is simply skipped.
+ * <p>
+ * Entries are found through open-addressing tables keyed on the two longs of their UUID (see {@link UuidIndex}), split
+ * into stripes which each have their own lock, so a cache hit does not allocate anything.
+ */
+public class TinyLfuCacheImpl implements Cache, CacheStats {
+
+	private static final Logger log = LoggerFactory.getLogger(TinyLfuCacheImpl.class);
+	// Only used to size the frequency sketch. A typical gear sheet compresses to around this size.
+	private static final int ESTIMATED_ENTRY_BYTES = 1024;
+	private static final double WINDOW_FRACTION = 0.01;
+	private static final double PROTECTED_FRACTION = 0.80;
+	private static final int STRIPES = 16;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final FrequencySketch sketch;
+	private final AccessQueue window = new AccessQueue();
+	private final AccessQueue probation = new AccessQueue();
+	private final AccessQueue protectedQueue = new AccessQueue();
+	private final long maxWeight;
+	private final long windowMax;
+	private final long protectedMax;
+	private final AtomicLong evictions = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final CoalescingLoader<UUID, CacheValue> loader = new CoalescingLoader<>();
+	private final Executor compressionExecutor;
+	private final CodecSelector codecs;
+	private volatile @Nullable BiConsumer<UUID, CacheValue> evictionListener;
+	// Guarded by evictionLock
+	private long windowWeight;
+	private long probationWeight;
+	private long protectedWeight;
+
+	public TinyLfuCacheImpl(long maxBytes) {
+		this(maxBytes, Runnable::run);
+	}
+
+	public TinyLfuCacheImpl(long maxBytes, Executor compressionExecutor) {
+		this(maxBytes, compressionExecutor, CodecSelector.gzipOnly());
+	}
+
+	public TinyLfuCacheImpl(long maxBytes, Executor compressionExecutor, CodecSelector codecs) {
+		this(maxBytes, (int) Math.min(Integer.MAX_VALUE, maxBytes / ESTIMATED_ENTRY_BYTES), compressionExecutor, codecs);
+	}
+
+	public TinyLfuCacheImpl(long maxBytes, int expectedEntries, Executor compressionExecutor) {
+		this(maxBytes, expectedEntries, compressionExecutor, CodecSelector.gzipOnly());
+	}
+
+	/**
+	 * @param maxBytes            Maximum total stored size of all entries
+	 * @param expectedEntries     Roughly how many entries are expected to fit, used to size the frequency sketch
+	 * @param compressionExecutor Where to compress newly added entries. Entries are served uncompressed until then.
+	 * @param codecs              Picks how to compress each entry
+	 */
+	public TinyLfuCacheImpl(long maxBytes, int expectedEntries, Executor compressionExecutor, CodecSelector codecs) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		this.maxWeight = maxBytes;
+		this.windowMax = Math.max(1, (long) (maxBytes * WINDOW_FRACTION));
+		this.protectedMax = (long) ((maxBytes - windowMax) * PROTECTED_FRACTION);
+		this.sketch = new FrequencySketch(expectedEntries);
+		this.compressionExecutor = compressionExecutor;
+		this.codecs = codecs;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+		log.info("Cache max size: {} bytes", maxBytes);
+	}
+
+	private enum Region {
+		WINDOW,
+		PROBATION,
+		PROTECTED,
+		DEAD
+	}
+
+	private static final class Node {
+		final UUID key;
+		final int hash;
+		// Starts out uncompressed, and is replaced with the compressed version once that is ready
+		volatile CacheValue value;
+		// Position in its stripe. Guarded by the stripe's lock.
+		int slot;
+		// Everything below is guarded by evictionLock
+		int weight;
+		Region region = Region.WINDOW;
+		Node prev;
+		Node next;
+
+		private Node(UUID key, CacheValue value) {
+			this.key = key;
+			this.hash = key.hashCode();
+			this.value = value;
+			this.weight = value.size();
+		}
+	}
+
+	/**
+	 * Intrusive doubly-linked list. Head is the least recently used, tail is the most recently used.
+	 */
+	private static final class AccessQueue {
+		Node head;
+		Node tail;
+
+		void addLast(Node node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				head = node;
+			}
+			else {
+				tail.next = node;
+			}
+			tail = node;
+		}
+
+		void remove(Node node) {
+			if (node.prev == null) {
+				head = node.next;
+			}
+			else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				tail = node.prev;
+			}
+			else {
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+		}
+
+		void moveToBack(Node node) {
+			if (node != tail) {
+				remove(node);
+				addLast(node);
+			}
+		}
+	}
+
+	/**
+	 * One stripe of the key lookup. The index maps a key to a slot in {@link #nodes}. Only changed while also holding
+	 * the eviction lock, so the stripe lock just keeps readers out while that happens.
+	 */
+	private static final class Stripe {
+		private static final int INITIAL_SLOTS = 16;
+		final StampedLock lock = new StampedLock();
+		final UuidIndex index = new UuidIndex(INITIAL_SLOTS);
+		// null means the slot is free
+		Node[] nodes = new Node[INITIAL_SLOTS];
+		int[] freeSlots = new int[INITIAL_SLOTS];
+		int freeCount;
+		// Slots at or above this have never been used
+		int highWater;
+
+		@Nullable Node get(long msb, long lsb) {
+			long stamp = lock.readLock();
+			try {
+				long slot = index.get(msb, lsb);
+				return slot == UuidIndex.NOT_FOUND ? null : nodes[(int) slot];
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * @return The node previously stored under the same key, if any.
+		 */
+		@Nullable Node put(Node node) {
+			long msb = node.key.getMostSignificantBits();
+			long lsb = node.key.getLeastSignificantBits();
+			long stamp = lock.writeLock();
+			try {
+				long existing = index.get(msb, lsb);
+				Node old = null;
+				if (existing != UuidIndex.NOT_FOUND) {
+					node.slot = (int) existing;
+					old = nodes[node.slot];
+				}
+				else {
+					node.slot = allocateSlot();
+					index.put(msb, lsb, node.slot);
+				}
+				nodes[node.slot] = node;
+				return old;
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * Removes the node, unless its key has been given a different node since.
+		 */
+		void remove(Node node) {
+			long stamp = lock.writeLock();
+			try {
+				if (nodes[node.slot] == node) {
+					index.remove(node.key.getMostSignificantBits(), node.key.getLeastSignificantBits());
+					nodes[node.slot] = null;
+					freeSlots[freeCount++] = node.slot;
+				}
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		int size() {
+			long stamp = lock.readLock();
+			try {
+				return index.size();
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * Empties the stripe, marking everything that was in it dead, so that hits and compressions still in progress
+		 * leave those nodes alone.
+		 */
+		void clear() {
+			long stamp = lock.writeLock();
+			try {
+				for (int i = 0; i < highWater; i++) {
+					if (nodes[i] != null) {
+						nodes[i].region = Region.DEAD;
+					}
+				}
+				index.clear();
+				Arrays.fill(nodes, null);
+				freeCount = 0;
+				highWater = 0;
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		private int allocateSlot() {
+			if (freeCount > 0) {
+				return freeSlots[--freeCount];
+			}
+			if (highWater == nodes.length) {
+				int newLength = nodes.length * 2;
+				nodes = Arrays.copyOf(nodes, newLength);
+				freeSlots = Arrays.copyOf(freeSlots, newLength);
+			}
+			return highWater++;
+		}
+	}
+
+	@Override
+	public @Nullable String computeIfAbsent(UUID key, Function<UUID, @Nullable String> getter) {
+		CacheValue value = computeValueIfAbsent(key, getter);
+		return value == null ? null : value.getValue();
+	}
+
+	@Override
+	public @Nullable CacheValue computeValueIfAbsent(UUID key, Function<UUID, @Nullable String> getter) {
+		CacheValue current = hit(key);
+		if (current != null) {
+			return current;
+		}
+		// Only wrap the getter on a miss, so that hits don't allocate
+		return load(key, uuid -> {
+			String value = getter.apply(uuid);
+			return value == null ? null : CacheValue.uncompressed(value);
+		});
+	}
+
+	/**
+	 * Like {@link #computeValueIfAbsent(UUID, Function)}, but the getter supplies a value which may already be in its
+	 * stored form, e.g. from a lower cache tier. Values which are already compressed are not compressed again.
+	 */
+	public @Nullable CacheValue computeStoredIfAbsent(UUID key, Function<UUID, @Nullable CacheValue> getter) {
+		CacheValue current = hit(key);
+		if (current != null) {
+			return current;
+		}
+		return load(key, getter);
+	}
+
+	/**
+	 * @return The cached value, counted as a hit, or null without counting anything.
+	 */
+	private @Nullable CacheValue hit(UUID key) {
+		Node node = find(key);
+		if (node == null) {
+			return null;
+		}
+		hits.increment();
+		onHit(node);
+		return node.value;
+	}
+
+	private @Nullable CacheValue load(UUID key, Function<UUID, @Nullable CacheValue> getter) {
+		misses.increment();
+		return loader.load(key, uuid -> {
+			Node existing = find(uuid);
+			if (existing != null) {
+				onHit(existing);
+				return existing.value;
+			}
+			CacheValue newValue = getter.apply(uuid);
+			if (newValue == null) {
+				return null;
+			}
+			return put(uuid, newValue);
+		});
+	}
+
+	@Override
+	public @Nullable CacheValue getIfPresent(UUID key) {
+		Node node = find(key);
+		if (node == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		onHit(node);
+		return node.value;
+	}
+
+	@Override
+	public boolean contains(UUID key) {
+		return find(key) != null;
+	}
+
+	@Override
+	public CacheValue set(UUID key, @NotNull String value) {
+		return put(key, CacheValue.uncompressed(value));
+	}
+
+	@Override
+	public int cacheSize() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Ranked by the same frequency estimate used for admission. Among equally frequent keys, protected entries come
+	 * first, then probation, then the window, and more recently used ones first within each.
+	 */
+	@Override
+	public List<UUID> hottestKeys(int limit) {
+		List<UUID> byRecency = new ArrayList<>(cacheSize());
+		evictionLock.lock();
+		try {
+			for (AccessQueue queue : List.of(protectedQueue, probation, window)) {
+				for (Node node = queue.tail; node != null; node = node.prev) {
+					byRecency.add(node.key);
+				}
+			}
+		}
+		finally {
+			evictionLock.unlock();
+		}
+		record Ranked(UUID key, int frequency) {
+		}
+		List<Ranked> ranked = new ArrayList<>(byRecency.size());
+		for (UUID key : byRecency) {
+			ranked.add(new Ranked(key, sketch.frequency(key.hashCode())));
+		}
+		// Stable, so recency order is kept among equals
+		ranked.sort(Comparator.comparingInt(Ranked::frequency).reversed());
+		return ranked.stream().limit(limit).map(Ranked::key).toList();
+	}
+
+	/**
+	 * @return The total stored size of all entries, in bytes.
+	 */
+	public long weightedSize() {
+		evictionLock.lock();
+		try {
+			return windowWeight + probationWeight + protectedWeight;
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Set something to be told about every entry evicted for lack of space, e.g. to move it to a lower cache tier.
+	 * The listener is called while holding the eviction lock, so it must be quick.
+	 */
+	public void setEvictionListener(@Nullable BiConsumer<UUID, CacheValue> evictionListener) {
+		this.evictionListener = evictionListener;
+	}
+
+	/**
+	 * @return The number of entries evicted so far.
+	 */
+	@Override
+	public long evictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public long hitCount() {
+		return hits.sum();
+	}
+
+	@Override
+	public long missCount() {
+		return misses.sum();
+	}
+
+	@Override
+	public long storedBytes() {
+		return weightedSize();
+	}
+
+	void clear() {
+		evictionLock.lock();
+		try {
+			for (Stripe stripe : stripes) {
+				stripe.clear();
+			}
+			window.head = window.tail = null;
+			probation.head = probation.tail = null;
+			protectedQueue.head = protectedQueue.tail = null;
+			windowWeight = probationWeight = protectedWeight = 0;
+		}
+		finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private void onHit(Node node) {
+		sketch.increment(node.hash);
+		if (evictionLock.tryLock()) {
+			try {
+				switch (node.region) {
+					case WINDOW -> window.moveToBack(node);
+					case PROBATION -> {
+						probation.remove(node);
+						probationWeight -= node.weight;
+						node.region = Region.PROTECTED;
+						protectedQueue.addLast(node);
+						protectedWeight += node.weight;
+						demoteProtected();
+					}
+					case PROTECTED -> protectedQueue.moveToBack(node);
+					case DEAD -> {
+						// Raced with an eviction, nothing to do
+					}
+				}
+			}
+			finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	private CacheValue put(UUID key, CacheValue cacheValue) {
+		if (cacheValue.size() > maxWeight) {
+			// Only has a chance of fitting if compressed, so do that right away
+			cacheValue = cacheValue.compress(codecs);
+		}
+		Node node = new Node(key, cacheValue);
+		evictionLock.lock();
+		try {
+			sketch.increment(node.hash);
+			Stripe stripe = stripeFor(key);
+			Node old = stripe.put(node);
+			if (old != null) {
+				unlink(old);
+			}
+			if (node.weight > maxWeight) {
+				// Would never fit
+				stripe.remove(node);
+				return cacheValue;
+			}
+			window.addLast(node);
+			windowWeight += node.weight;
+			evict();
+		}
+		finally {
+			evictionLock.unlock();
+		}
+		if (!cacheValue.isCompressed()) {
+			compressLater(node);
+		}
+		return cacheValue;
+	}
+
+	private void compressLater(Node node) {
+		compressionExecutor.execute(() -> {
+			try {
+				CacheValue uncompressed = node.value;
+				CacheValue compressed = uncompressed.compress(codecs);
+				if (compressed == uncompressed) {
+					return;
+				}
+				evictionLock.lock();
+				try {
+					if (node.region == Region.DEAD) {
+						return;
+					}
+					int newWeight = compressed.size();
+					adjustWeight(node.region, newWeight - node.weight);
+					node.weight = newWeight;
+					node.value = compressed;
+				}
+				finally {
+					evictionLock.unlock();
+				}
+			}
+			catch (Throwable t) {
+				log.error("Error compressing cache entry", t);
+			}
+		});
+	}
+
+	private void adjustWeight(Region region, int delta) {
+		switch (region) {
+			case WINDOW -> windowWeight += delta;
+			case PROBATION -> probationWeight += delta;
+			case PROTECTED -> protectedWeight += delta;
+			case DEAD -> {
+			}
+		}
+	}
+
+	private void demoteProtected() {
+		while (protectedWeight > protectedMax) {
+			Node demoted = protectedQueue.head;
+			protectedQueue.remove(demoted);
+			protectedWeight -= demoted.weight;
+			demoted.region = Region.PROBATION;
+			probation.addLast(demoted);
+			probationWeight += demoted.weight;
+		}
+	}
+
+	private void evict() {
+		// Anything pushed out of the window goes to the back of probation, where it is an admission candidate
+		int candidates = 0;
+		while (windowWeight > windowMax && window.head != null) {
+			Node node = window.head;
+			window.remove(node);
+			windowWeight -= node.weight;
+			node.region = Region.PROBATION;
+			probation.addLast(node);
+			probationWeight += node.weight;
+			candidates++;
+		}
+		// Candidates fight the least recently used probation entry until everything fits
+		while (windowWeight + probationWeight + protectedWeight > maxWeight) {
+			Node victim = probation.head;
+			if (victim == null) {
+				victim = protectedQueue.head != null ? protectedQueue.head : window.head;
+				evictNode(victim);
+				continue;
+			}
+			Node candidate = candidates > 0 ? probation.tail : null;
+			if (candidate == null || candidate == victim) {
+				if (candidate == victim) {
+					candidates--;
+				}
+				evictNode(victim);
+			}
+			else if (admit(candidate, victim)) {
+				evictNode(victim);
+			}
+			else {
+				candidates--;
+				evictNode(candidate);
+			}
+		}
+	}
+
+	private boolean admit(Node candidate, Node victim) {
+		int candidateFreq = sketch.frequency(candidate.hash);
+		int victimFreq = sketch.frequency(victim.hash);
+		if (candidateFreq > victimFreq) {
+			return true;
+		}
+		else if (candidateFreq <= 5) {
+			return false;
+		}
+		// Let the occasional warm candidate in, so that a hot victim can't be used to lock out new entries forever
+		return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+	}
+
+	private void evictNode(Node node) {
+		unlink(node);
+		stripeFor(node.key).remove(node);
+		evictions.incrementAndGet();
+		BiConsumer<UUID, CacheValue> listener = evictionListener;
+		if (listener != null) {
+			try {
+				listener.accept(node.key, node.value);
+			}
+			catch (Throwable t) {
+				log.error("Error in eviction listener", t);
+			}
+		}
+	}
+
+	private @Nullable Node find(UUID key) {
+		return stripeFor(key).get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+	}
+
+	private Stripe stripeFor(UUID key) {
+		// Use the high bits, since the index within the stripe uses the low bits of a similar hash
+		long h = (key.getMostSignificantBits() ^ key.getLeastSignificantBits()) * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 60)];
+	}
+
+	private void unlink(Node node) {
+		switch (node.region) {
+			case WINDOW -> {
+				window.remove(node);
+				windowWeight -= node.weight;
+			}
+			case PROBATION -> {
+				probation.remove(node);
+				probationWeight -= node.weight;
+			}
+			case PROTECTED -> {
+				protectedQueue.remove(node);
+				protectedWeight -= node.weight;
+			}
+			case DEAD -> {
+				return;
+			}
+		}
+		node.region = Region.DEAD;
+	}
+}
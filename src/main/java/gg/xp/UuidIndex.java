@@ -0,0 +1,157 @@
+package gg.xp;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from a UUID, given as its two longs, to a long. Keys are stored inline as primitives, so
+ * lookups don't allocate, and there is no per-entry object.
+ * <p>
+ * Uses linear probing with backward-shift deletion, so there are no tombstones. Not thread safe.
+ */
+final class UuidIndex {
+
+	/**
+	 * Returned when a key is not present. This value can't be stored.
+	 */
+	static final long NOT_FOUND = Long.MIN_VALUE;
+	private static final float MAX_LOAD = 0.6f;
+
+	private long[] msbs;
+	private long[] lsbs;
+	private long[] values;
+	private int mask;
+	private int size;
+
+	UuidIndex(int expectedSize) {
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	long get(long msb, long lsb) {
+		int i = home(msb, lsb);
+		while (true) {
+			long value = values[i];
+			if (value == NOT_FOUND) {
+				return NOT_FOUND;
+			}
+			if (msbs[i] == msb && lsbs[i] == lsb) {
+				return value;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return The previous value, or {@link #NOT_FOUND}.
+	 */
+	long put(long msb, long lsb, long value) {
+		if (value == NOT_FOUND) {
+			throw new IllegalArgumentException("Can't store " + value);
+		}
+		int i = home(msb, lsb);
+		while (true) {
+			long existing = values[i];
+			if (existing == NOT_FOUND) {
+				msbs[i] = msb;
+				lsbs[i] = lsb;
+				values[i] = value;
+				if (++size > values.length * MAX_LOAD) {
+					resize();
+				}
+				return NOT_FOUND;
+			}
+			if (msbs[i] == msb && lsbs[i] == lsb) {
+				values[i] = value;
+				return existing;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return The removed value, or {@link #NOT_FOUND}.
+	 */
+	long remove(long msb, long lsb) {
+		int i = home(msb, lsb);
+		while (true) {
+			long existing = values[i];
+			if (existing == NOT_FOUND) {
+				return NOT_FOUND;
+			}
+			if (msbs[i] == msb && lsbs[i] == lsb) {
+				deleteSlot(i);
+				return existing;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		Arrays.fill(values, NOT_FOUND);
+		size = 0;
+	}
+
+	private void deleteSlot(int hole) {
+		values[hole] = NOT_FOUND;
+		size--;
+		// Shift back anything after the hole which would no longer be reachable from its home slot
+		int i = hole;
+		while (true) {
+			i = (i + 1) & mask;
+			if (values[i] == NOT_FOUND) {
+				return;
+			}
+			int home = home(msbs[i], lsbs[i]);
+			boolean reachable = hole <= i ? (home > hole && home <= i) : (home > hole || home <= i);
+			if (!reachable) {
+				msbs[hole] = msbs[i];
+				lsbs[hole] = lsbs[i];
+				values[hole] = values[i];
+				values[i] = NOT_FOUND;
+				hole = i;
+			}
+		}
+	}
+
+	private void resize() {
+		long[] oldMsbs = msbs;
+		long[] oldLsbs = lsbs;
+		long[] oldValues = values;
+		allocate(oldValues.length * 2);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != NOT_FOUND) {
+				int j = home(oldMsbs[i], oldLsbs[i]);
+				while (values[j] != NOT_FOUND) {
+					j = (j + 1) & mask;
+				}
+				msbs[j] = oldMsbs[i];
+				lsbs[j] = oldLsbs[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int tableSize) {
+		msbs = new long[tableSize];
+		lsbs = new long[tableSize];
+		values = new long[tableSize];
+		Arrays.fill(values, NOT_FOUND);
+		mask = tableSize - 1;
+	}
+
+	private int home(long msb, long lsb) {
+		long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		int needed = (int) Math.min(1 << 30, (long) (Math.max(expectedSize, 8) / MAX_LOAD) + 1);
+		return Integer.highestOneBit(needed - 1) << 1;
+	}
+}
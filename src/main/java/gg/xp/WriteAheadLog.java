@@ -0,0 +1,289 @@
+package gg.xp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of shortlinks which have been accepted but not yet written to the database.
+ * <p>
+ * The log is split into segment files. Each record is acknowledged once it has been written to the database, and a
+ * segment file is deleted (or emptied, if it is still being appended to) once all of its records have been
+ * acknowledged.
+ * <p>
+ * Record format: payload length (int), UUID (two longs), UTF-8 payload, CRC32 of everything after the length (int).
+ * A torn record at the end of a segment (e.g. from a crash mid-write) is ignored on replay.
+ * <p>
+ * Appends are group-committed: records are written under the lock, then concurrent appenders share a single force.
+ */
+final class WriteAheadLog implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+	private static final String PREFIX = "wal-";
+	private static final String SUFFIX = ".log";
+	private static final int HEADER_BYTES = 4 + 16;
+	private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+	private final Path dir;
+	private final long maxSegmentBytes;
+	// Segment number => unacknowledged records in that segment
+	private final Map<Long, Integer> unacked = new HashMap<>();
+	private long currentSegment;
+	private FileChannel current;
+	// Records are numbered in the order they are written
+	private long appendedSeq;
+	private final Forcer forcer;
+	private final ReentrantLock flushLock = new ReentrantLock();
+	// Everything up to this record is on disk
+	private final AtomicLong flushedSeq = new AtomicLong();
+
+	interface ReplayConsumer {
+		void accept(long segment, UUID uuid, String payload);
+	}
+
+	/**
+	 * Forces a segment file to disk. Only replaced in tests.
+	 */
+	interface Forcer {
+		void force(FileChannel channel) throws IOException;
+	}
+
+	WriteAheadLog(Path dir, long maxSegmentBytes) {
+		this(dir, maxSegmentBytes, channel -> channel.force(false));
+	}
+
+	WriteAheadLog(Path dir, long maxSegmentBytes, Forcer forcer) {
+		this.dir = dir;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.forcer = forcer;
+		try {
+			Files.createDirectories(dir);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Read back every record left over from a previous run, then open a fresh segment for appending. Must be called
+	 * once, before anything is appended.
+	 *
+	 * @param consumer Receives each surviving record. Each one must eventually be passed to {@link #ack(long)}.
+	 */
+	synchronized void replay(ReplayConsumer consumer) {
+		long maxSegment = -1;
+		for (long segment : existingSegments()) {
+			maxSegment = Math.max(maxSegment, segment);
+			int count = replaySegment(segment, consumer);
+			if (count == 0) {
+				deleteSegment(segment);
+			}
+			else {
+				unacked.put(segment, count);
+				log.info("Replayed {} records from write-ahead log segment {}", count, segment);
+			}
+		}
+		openSegment(maxSegment + 1);
+	}
+
+	/**
+	 * Durably append a record.
+	 *
+	 * @return The segment the record went into, to be passed to {@link #ack(long)} later.
+	 */
+	long append(UUID uuid, String payload) {
+		byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payloadBytes.length + 4);
+		buffer.putInt(payloadBytes.length);
+		buffer.putLong(uuid.getMostSignificantBits());
+		buffer.putLong(uuid.getLeastSignificantBits());
+		buffer.put(payloadBytes);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, buffer.position() - 4);
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+		long seq;
+		long segment;
+		synchronized (this) {
+			try {
+				while (buffer.hasRemaining()) {
+					current.write(buffer);
+				}
+				seq = ++appendedSeq;
+				segment = currentSegment;
+				unacked.merge(segment, 1, Integer::sum);
+				if (current.size() >= maxSegmentBytes) {
+					// Has to be on disk before it is closed, since nothing can force it afterwards
+					forcer.force(current);
+					flushedSeq.accumulateAndGet(seq, Math::max);
+					current.close();
+					openSegment(segment + 1);
+				}
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		flushThrough(seq);
+		return segment;
+	}
+
+	/**
+	 * Wait until record {@code seq} is on disk. Whoever gets the flush lock forces everything written so far, so
+	 * appenders which were waiting behind it usually find their record already forced.
+	 */
+	private void flushThrough(long seq) {
+		flushLock.lock();
+		try {
+			while (flushedSeq.get() < seq) {
+				long target;
+				FileChannel channel;
+				synchronized (this) {
+					target = appendedSeq;
+					channel = current;
+				}
+				try {
+					forcer.force(channel);
+					flushedSeq.accumulateAndGet(target, Math::max);
+				}
+				catch (ClosedChannelException e) {
+					synchronized (this) {
+						if (current == channel) {
+							throw e;
+						}
+					}
+					// Rolled over in the meantime, which forced it first, so check again
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Acknowledge that a record has been written to the database.
+	 */
+	synchronized void ack(long segment) {
+		Integer remaining = unacked.computeIfPresent(segment, (k, v) -> v - 1);
+		if (remaining != null && remaining <= 0) {
+			unacked.remove(segment);
+			if (segment != currentSegment) {
+				deleteSegment(segment);
+			}
+			else {
+				// Still appending to it, so empty it instead, so that none of it gets replayed
+				try {
+					current.truncate(0);
+				}
+				catch (IOException e) {
+					log.error("Could not truncate write-ahead log segment {}", segment, e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (current != null) {
+			try {
+				forcer.force(current);
+				flushedSeq.accumulateAndGet(appendedSeq, Math::max);
+			}
+			finally {
+				current.close();
+			}
+		}
+	}
+
+	private List<Long> existingSegments() {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.map(path -> path.getFileName().toString())
+					.filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+					.map(name -> Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())))
+					.sorted()
+					.toList();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private int replaySegment(long segment, ReplayConsumer consumer) {
+		ByteBuffer buffer;
+		try {
+			buffer = ByteBuffer.wrap(Files.readAllBytes(segmentPath(segment)));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int count = 0;
+		while (buffer.remaining() >= HEADER_BYTES) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			if (length < 0 || length > MAX_RECORD_BYTES || buffer.remaining() < 16 + length + 4) {
+				log.warn("Truncated record at {} in write-ahead log segment {}, ignoring the rest", start, segment);
+				break;
+			}
+			UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+			byte[] payloadBytes = new byte[length];
+			buffer.get(payloadBytes);
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), start + 4, 16 + length);
+			if ((int) crc.getValue() != buffer.getInt()) {
+				log.warn("Bad checksum at {} in write-ahead log segment {}, ignoring the rest", start, segment);
+				break;
+			}
+			consumer.accept(segment, uuid, new String(payloadBytes, StandardCharsets.UTF_8));
+			count++;
+		}
+		return count;
+	}
+
+	private void openSegment(long segment) {
+		try {
+			current = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			currentSegment = segment;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		// Previous segment may have been fully acknowledged while it was still current
+		if (segment > 0 && !unacked.containsKey(segment - 1)) {
+			deleteSegment(segment - 1);
+		}
+	}
+
+	private void deleteSegment(long segment) {
+		try {
+			Files.deleteIfExists(segmentPath(segment));
+		}
+		catch (IOException e) {
+			log.error("Could not delete write-ahead log segment {}", segment, e);
+		}
+	}
+
+	private Path segmentPath(long segment) {
+		return dir.resolve(PREFIX + segment + SUFFIX);
+	}
+}
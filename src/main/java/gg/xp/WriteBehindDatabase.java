@@ -0,0 +1,203 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Database wrapper which makes writes durable in a local {@link WriteAheadLog} and returns right away, then writes
+ * them to the real database in batches in the background.
+ * <p>
+ * Links which have not been written yet are still readable through {@link #getShortlink(UUID)}. Anything left
+ * unwritten at shutdown (or after a crash) is replayed from the log on the next start.
+ * <p>
+ * If too many writes are pending, new writes wait briefly for room, and then fall back to writing synchronously.
+ */
+public class WriteBehindDatabase implements Database, Startable {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteBehindDatabase.class);
+	private static final long SEGMENT_BYTES = 16 * 1024 * 1024;
+	private static final long BACKPRESSURE_WAIT_MS = 1_000;
+	private static final long INITIAL_BACKOFF_MS = 500;
+	private static final long MAX_BACKOFF_MS = 30_000;
+	private static final long SHUTDOWN_DRAIN_MS = 5_000;
+
+	private final Database delegate;
+	private final WriteAheadLog wal;
+	private final int batchSize;
+	private final Semaphore permits;
+	private final Map<UUID, PendingWrite> pending = new ConcurrentHashMap<>();
+	private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+	private final Thread flusher;
+	private volatile boolean stop;
+
+	private record PendingWrite(UUID uuid, String payload, long segment, boolean holdsPermit) {
+	}
+
+	public WriteBehindDatabase(Database delegate, Config config) {
+		this(delegate,
+				config.getOrDefault(File.class, "writeBehindDir", new File("write-behind")).toPath(),
+				config.getOrDefault(Integer.class, "writeBehindMaxPending", 10_000),
+				config.getOrDefault(Integer.class, "writeBehindBatchSize", 25));
+	}
+
+	/**
+	 * @param delegate   The real database
+	 * @param walDir     Directory for the write-ahead log
+	 * @param maxPending Maximum number of unwritten links before new writes are slowed down
+	 * @param batchSize  Maximum number of links to write to the real database at once
+	 */
+	public WriteBehindDatabase(Database delegate, Path walDir, int maxPending, int batchSize) {
+		this.delegate = delegate;
+		this.wal = new WriteAheadLog(walDir, SEGMENT_BYTES);
+		this.batchSize = batchSize;
+		this.permits = new Semaphore(maxPending);
+		this.flusher = Thread.ofVirtual().name("write-behind").unstarted(this::flushLoop);
+	}
+
+	@Override
+	public void start() {
+		if (delegate instanceof Startable startable) {
+			startable.start();
+		}
+		wal.replay((segment, uuid, payload) -> enqueue(new PendingWrite(uuid, payload, segment, false)));
+		if (!queue.isEmpty()) {
+			log.info("{} unwritten links recovered from write-ahead log", queue.size());
+		}
+		flusher.start();
+	}
+
+	@Override
+	public void stop() {
+		long deadline = System.currentTimeMillis() + SHUTDOWN_DRAIN_MS;
+		while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+		}
+		stop = true;
+		flusher.interrupt();
+		try {
+			flusher.join(SHUTDOWN_DRAIN_MS);
+			wal.close();
+		}
+		catch (InterruptedException | IOException e) {
+			log.error("Error stopping write-behind", e);
+		}
+		if (!pending.isEmpty()) {
+			log.warn("{} links left unwritten, will be written on next startup", pending.size());
+		}
+		if (delegate instanceof Startable startable) {
+			startable.stop();
+		}
+	}
+
+	@Override
+	public @Nullable String getShortlink(UUID uuid) {
+		PendingWrite write = pending.get(uuid);
+		if (write != null) {
+			return write.payload;
+		}
+		return delegate.getShortlink(uuid);
+	}
+
+	@Override
+	public void putShortLink(UUID uuid, String payload) {
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(BACKPRESSURE_WAIT_MS, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (!acquired) {
+			log.warn("Write-behind queue full, writing {} synchronously", uuid);
+			delegate.putShortLink(uuid, payload);
+			return;
+		}
+		try {
+			long segment = wal.append(uuid, payload);
+			enqueue(new PendingWrite(uuid, payload, segment, true));
+		}
+		catch (Throwable t) {
+			permits.release();
+			throw t;
+		}
+	}
+
+	/**
+	 * @return The number of links which have been accepted but not yet written to the real database.
+	 */
+	public int pendingCount() {
+		return pending.size();
+	}
+
+	private void enqueue(PendingWrite write) {
+		pending.put(write.uuid, write);
+		queue.add(write);
+	}
+
+	private void flushLoop() {
+		List<PendingWrite> batch = new ArrayList<>(batchSize);
+		long backoff = INITIAL_BACKOFF_MS;
+		while (!stop) {
+			try {
+				if (batch.isEmpty()) {
+					PendingWrite first = queue.poll(1, TimeUnit.SECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+				}
+				Map<UUID, String> payloads = new LinkedHashMap<>();
+				for (PendingWrite write : batch) {
+					payloads.put(write.uuid, write.payload);
+				}
+				delegate.putShortLinks(payloads);
+				for (PendingWrite write : batch) {
+					// Ack first, so that nothing is left to replay once pending is empty
+					wal.ack(write.segment);
+					pending.remove(write.uuid, write);
+					if (write.holdsPermit) {
+						permits.release();
+					}
+				}
+				batch.clear();
+				backoff = INITIAL_BACKOFF_MS;
+			}
+			catch (InterruptedException e) {
+				// Shutting down. Anything unwritten stays in the log.
+				break;
+			}
+			catch (Throwable t) {
+				log.error("Write-behind flush of {} links failed, retrying in {}ms", batch.size(), backoff, t);
+				try {
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+			}
+		}
+	}
+}
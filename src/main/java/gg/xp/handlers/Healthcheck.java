@@ -1,22 +1,38 @@
 package gg.xp.handlers;
 
 import gg.xp.Cache;
+import gg.xp.CacheWarmer;
 import gg.xp.Server;
 import gg.xp.Stats;
 
+import java.nio.charset.StandardCharsets;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
 
 import static gg.xp.util.ResponseUtils.doResponse;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
+/**
+ * Always answers 200 while the server is up. With {@code ?ready}, answers 503 until the cache has been warmed up, so
+ * that a load balancer can hold off sending traffic to a freshly started instance.
+ */
 public class Healthcheck {
-	public Healthcheck(Server server, Stats stats, Cache cache) {
+	public Healthcheck(Server server, Stats stats, Cache cache, CacheWarmer warmer) {
 		server.registerHandler("/healthcheck", (request) -> {
+			String query = request.getRequestURI().getQuery();
+			if (query != null && query.equals("ready") && !warmer.isReady()) {
+				request.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+				byte[] body = "Not ready, cache warm-up: %s\n".formatted(warmer.getStatus()).getBytes(StandardCharsets.UTF_8);
+				request.sendResponseHeaders(HTTP_UNAVAILABLE, body.length);
+				request.getResponseBody().write(body);
+				request.getResponseBody().close();
+				return;
+			}
 			doResponse(
 					request,
-					"Health Check OK, uptime: %s, GETs: %s, POSTs: %s, errors: %s, cache entries: %s\n".formatted(stats.getUptime().truncatedTo(ChronoUnit.SECONDS), stats.getCount.get(), stats.postCount.get(), stats.errCount.get(), cache.cacheSize()),
+					"Health Check OK, uptime: %s, GETs: %s, POSTs: %s, errors: %s, shed: %s, cache entries: %s, cache warm-up: %s\n".formatted(stats.getUptime().truncatedTo(ChronoUnit.SECONDS), stats.getCount.sum(), stats.postCount.sum(), stats.errCount.sum(), server.getShedCount(), cache.cacheSize(), warmer.getStatus()),
 					"text/plain; charset=utf-8"
 			);
-		});
+		}, request -> true);
 	}
 }
@@ -0,0 +1,126 @@
+package gg.xp.handlers;
+
+import com.sun.net.httpserver.HttpExchange;
+import gg.xp.AsyncDatabase;
+import gg.xp.CacheValue;
+import gg.xp.PeerCache;
+import gg.xp.Server;
+import gg.xp.Stats;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static gg.xp.util.ResponseUtils.doResponse;
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_NO_CONTENT;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+/**
+ * Lets other servers use this one's cache, see {@link PeerCache}.
+ * <p>
+ * {@code GET /internal/cache/<uuid>} answers from the cache, or loads from the database on a miss. {@code PUT} caches a
+ * link which another server has just created. Both need the peer secret.
+ */
+public class PeerCacheEndpoint {
+
+	private static final Logger log = LoggerFactory.getLogger(PeerCacheEndpoint.class);
+	private final PeerCache peers;
+	private final AsyncDatabase db;
+	private final Stats stats;
+
+	public PeerCacheEndpoint(Server server, PeerCache peers, AsyncDatabase db, Stats stats) {
+		this.peers = peers;
+		this.db = db;
+		this.stats = stats;
+		server.registerHandler(PeerCache.PATH, this::handle, this::isCached);
+	}
+
+	private void handle(HttpExchange httpExchange) throws IOException {
+		if (!peers.isAuthorized(httpExchange.getRequestHeaders().getFirst(PeerCache.SECRET_HEADER))) {
+			log.warn("Peer request without the right secret: {}", httpExchange.getRequestURI());
+			httpExchange.sendResponseHeaders(HTTP_FORBIDDEN, -1);
+			return;
+		}
+		UUID uuid = uuidOf(httpExchange);
+		if (uuid == null) {
+			httpExchange.sendResponseHeaders(HTTP_BAD_REQUEST, -1);
+			return;
+		}
+		try {
+			switch (httpExchange.getRequestMethod()) {
+				case "GET" -> {
+					CacheValue result = peers.computeLocallyAsync(uuid, db::getShortlinkAsync).join();
+					if (result == null) {
+						httpExchange.sendResponseHeaders(HTTP_NOT_FOUND, -1);
+					}
+					else {
+						doResponse(httpExchange, result.getUtf8(), "application/json; charset=utf-8");
+					}
+				}
+				case "PUT" -> {
+					byte[] body;
+					try (InputStream in = httpExchange.getRequestBody()) {
+						body = in.readNBytes(Shortlink.MAX_SHORTLINK_BYTES + 1);
+					}
+					if (body.length > Shortlink.MAX_SHORTLINK_BYTES) {
+						httpExchange.sendResponseHeaders(HTTP_ENTITY_TOO_LARGE, -1);
+						return;
+					}
+					if (!peers.contains(uuid)) {
+						peers.setLocally(uuid, new String(body, StandardCharsets.UTF_8));
+					}
+					httpExchange.sendResponseHeaders(HTTP_NO_CONTENT, -1);
+				}
+				default -> httpExchange.sendResponseHeaders(HTTP_BAD_METHOD, -1);
+			}
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RejectedExecutionException) {
+				// The peer will go to the database itself
+				httpExchange.sendResponseHeaders(HTTP_UNAVAILABLE, -1);
+				return;
+			}
+			log.error("Error serving {} to a peer", uuid, e.getCause());
+			stats.errCount.increment();
+			httpExchange.sendResponseHeaders(HTTP_INTERNAL_ERROR, -1);
+		}
+	}
+
+	private static @Nullable UUID uuidOf(HttpExchange httpExchange) {
+		String path = httpExchange.getRequestURI().getPath();
+		String prefix = httpExchange.getHttpContext().getPath();
+		if (!path.startsWith(prefix)) {
+			return null;
+		}
+		try {
+			return UUID.fromString(path.substring(prefix.length()).split("/")[0]);
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Whether the request is for a link which is already in the cache, or is a push, which only touches the
+	 * cache.
+	 */
+	private boolean isCached(HttpExchange httpExchange) {
+		if (httpExchange.getRequestMethod().equals("PUT")) {
+			return true;
+		}
+		UUID uuid = uuidOf(httpExchange);
+		return uuid != null && peers.contains(uuid);
+	}
+}
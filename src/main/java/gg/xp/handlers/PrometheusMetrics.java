@@ -0,0 +1,31 @@
+package gg.xp.handlers;
+
+import gg.xp.Cache;
+import gg.xp.CacheStats;
+import gg.xp.Metrics;
+import gg.xp.Server;
+import gg.xp.Stats;
+
+import static gg.xp.util.ResponseUtils.doResponse;
+
+/**
+ * Serves {@link Metrics} on {@code /metrics}, in Prometheus text format, along with the request counters from
+ * {@link Stats} and the cache's counters.
+ */
+public class PrometheusMetrics {
+	public PrometheusMetrics(Server server, Metrics metrics, Stats stats, Cache cache) {
+		metrics.registerGauge("uptime_seconds", "Time since the server started", () -> stats.getUptime().toMillis() / 1000.0);
+		metrics.registerCounter("shortlink_gets_total", "Shortlink GET requests", stats.getCount::sum);
+		metrics.registerCounter("shortlink_posts_total", "Shortlink POST requests", stats.postCount::sum);
+		metrics.registerCounter("shortlink_errors_total", "Shortlink requests which failed", stats.errCount::sum);
+		metrics.registerCounter("http_requests_shed_total", "Requests turned away for being over a concurrency limit", server::getShedCount);
+		metrics.registerGauge("cache_entries", "Entries in the cache", cache::cacheSize);
+		if (cache instanceof CacheStats cacheStats) {
+			metrics.registerCounter("cache_hits_total", "Cache hits", cacheStats::hitCount);
+			metrics.registerCounter("cache_misses_total", "Cache misses", cacheStats::missCount);
+			metrics.registerCounter("cache_evictions_total", "Entries evicted from the cache", cacheStats::evictionCount);
+			metrics.registerGauge("cache_stored_bytes", "Size of the (mostly compressed) values in the cache", cacheStats::storedBytes);
+		}
+		server.registerHandler("/metrics", request -> doResponse(request, metrics.toPrometheus(), "text/plain; version=0.0.4; charset=utf-8"), request -> true);
+	}
+}
@@ -0,0 +1,140 @@
+package gg.xp.handlers;
+
+import gg.xp.Config;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.StringEscapeUtils;
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Rendered OpenGraph pages for {@code /share/}, so that crawlers fetching the same link over and over do not cause the
+ * whole sheet to be parsed every time.
+ * <p>
+ * Links are immutable, so a page only needs to be rendered once: when the link is created, or on the first request for
+ * it. Bounded, least recently used pages are dropped first. A size of 0 disables caching, but pages are still rendered.
+ */
+public class SharePages {
+
+	// Bump this whenever the template changes, so that clients do not keep using pages rendered by an older version
+	private static final String TEMPLATE_VERSION = "1";
+	private static final String DEFAULT_NAME = "XivGear - FFXIV Gear Planner";
+	private static final String DEFAULT_DESC = "XivGear is an advanced and easy-to-use FFXIV gear planner/set builder with built-in simulation support.";
+
+	private final int maxEntries;
+	private final Map<UUID, byte[]> pages;
+
+	public SharePages(Config config) {
+		this(config.getOrDefault(Integer.class, "sharePageCacheSize", 20_000));
+	}
+
+	public SharePages(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.pages = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<UUID, byte[]> eldest) {
+				return size() > SharePages.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return The rendered page for this link, as UTF-8, if it has been rendered before and is still cached.
+	 */
+	public synchronized byte @Nullable [] get(UUID uuid) {
+		return pages.get(uuid);
+	}
+
+	/**
+	 * @return Whether the page for this link is cached. Does not count as a use of it.
+	 */
+	public synchronized boolean contains(UUID uuid) {
+		return pages.containsKey(uuid);
+	}
+
+	/**
+	 * Render the page for a link from the metadata of its sheet, and cache it.
+	 *
+	 * @param name        Name of the sheet, if it has one
+	 * @param description Description of the sheet, if it has one
+	 * @return The rendered page, as UTF-8
+	 */
+	public byte[] render(UUID uuid, @Nullable String name, @Nullable String description) {
+		byte[] page = buildPage(uuid, name, description);
+		if (maxEntries > 0) {
+			synchronized (this) {
+				pages.put(uuid, page);
+			}
+		}
+		return page;
+	}
+
+	public synchronized int size() {
+		return pages.size();
+	}
+
+	public synchronized void clear() {
+		pages.clear();
+	}
+
+	/**
+	 * @return The ETag of the page for this link. Pages never change, except when the template does.
+	 */
+	public static String etag(UUID uuid) {
+		return "\"" + uuid + '-' + TEMPLATE_VERSION + '"';
+	}
+
+	private static byte[] buildPage(UUID uuid, @Nullable String name, @Nullable String desc) {
+		if (name == null) {
+			name = DEFAULT_NAME;
+		}
+		else {
+			name = StringUtils.abbreviate(name, "…", 40) + " - " + DEFAULT_NAME;
+		}
+		if (desc == null) {
+			desc = DEFAULT_DESC;
+		}
+		else {
+			desc = StringUtils.abbreviate(desc, "…", 200) + "\n\n" + DEFAULT_DESC;
+		}
+		// TODO: parameterize this
+		String redir = "https://xivgear.app/#/sl/" + uuid;
+		return buildShareTemplate(name, desc, redir).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Language("HTML")
+	private static String buildShareTemplate(String title, String desc, String redirectUrl) {
+		title = StringEscapeUtils.escapeHtml4(title);
+		desc = StringEscapeUtils.escapeHtml4(desc);
+		return
+				"""
+						<!DOCTYPE html>
+						<html lang="en">
+						<head>
+						<meta charset="UTF-8">
+						<meta property="og:site_name" content="XivGear"/>
+						<meta property="og:type" content="website"/>
+						<meta property="og:title" content=\"""" + title + """
+						"/>
+						<meta property="og:description" content=\"""" + desc + """
+						"/>
+						<meta property="og:url" content=\"""" + redirectUrl + """
+						"/>
+						<link rel="stylesheet" href="https://xivgear.app/style.css"/>
+						<title>XivGear - FFXIV Gear Planner</title>
+						<meta http-equiv="Refresh" content="0; url='""" + redirectUrl + """
+						'" />
+						</head>
+						<body>
+						<div id="content-area">
+						<h1>Loading... </h1>
+						</div>
+						</body>
+						</html>
+						""";
+	}
+}
@@ -1,12 +1,17 @@
 package gg.xp.handlers;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.sun.net.httpserver.HttpExchange;
-import gg.xp.Cache;
-import gg.xp.Database;
+import gg.xp.AsyncCache;
+import gg.xp.AsyncDatabase;
+import gg.xp.CacheValue;
+import gg.xp.DedupIndex;
 import gg.xp.Server;
 import gg.xp.Stats;
+import gg.xp.util.BufferPool;
+import gg.xp.util.BufferPool.PooledBytes;
+import gg.xp.util.JsonUtils;
+import gg.xp.util.JsonUtils.ScannedPayload;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -19,32 +24,42 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
+import static gg.xp.util.ResponseUtils.acceptsGzip;
+import static gg.xp.util.ResponseUtils.doGzipResponse;
 import static gg.xp.util.ResponseUtils.doResponse;
 import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
 import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 public class Shortlink {
 
 	private static final Logger log = LoggerFactory.getLogger(Shortlink.class);
-	private final Database db;
-	private final Cache cache;
+	private final AsyncDatabase db;
+	private final AsyncCache cache;
 	private final Stats stats;
-	private final ObjectMapper mapper;
+	private final DedupIndex dedup;
+	private final SharePages sharePages;
 
-	public Shortlink(Server server, Database db, Cache cache, Stats stats, ObjectMapper mapper) {
+	public Shortlink(Server server, AsyncDatabase db, AsyncCache cache, Stats stats, DedupIndex dedup, SharePages sharePages) {
 		this.db = db;
 		this.cache = cache;
 		this.stats = stats;
-		this.mapper = mapper;
-		server.registerHandler(base.getPath(), this::handle);
+		this.dedup = dedup;
+		this.sharePages = sharePages;
+		server.registerHandler(base.getPath(), this::handle, exchange -> exchange.getRequestMethod().equals("GET") && isCached(exchange));
 
 	}
 
 	public static final int MAX_SHORTLINK_BYTES = 50_000;
+	// Request bodies are read into these, so most requests do not need a new buffer
+	private final BufferPool bodyBuffers = new BufferPool(64, 4 * 1024, 16 * 1024, MAX_SHORTLINK_BYTES + 1);
 	public static final URI base;
 
 	static {
@@ -62,24 +77,35 @@ public class Shortlink {
 			switch (httpExchange.getRequestMethod()) {
 				case "POST" -> {
 					String clStr = httpExchange.getRequestHeaders().getFirst("Content-Length");
+					int contentLength = -1;
 					try {
-						if (clStr != null && Integer.parseInt(clStr) > MAX_SHORTLINK_BYTES) {
+						if (clStr != null) {
+							contentLength = Integer.parseInt(clStr);
+						}
+						if (contentLength > MAX_SHORTLINK_BYTES) {
 							httpExchange.sendResponseHeaders(HTTP_ENTITY_TOO_LARGE, -1);
 							return;
 						}
 					}
 					catch (NumberFormatException ignored) {
 					}
+					ScannedPayload payload;
 					InputStream body = httpExchange.getRequestBody();
-					byte[] bodyBytes = body.readNBytes(MAX_SHORTLINK_BYTES + 1000);
-					body.close();
-					if (bodyBytes.length > MAX_SHORTLINK_BYTES) {
-						httpExchange.sendResponseHeaders(HTTP_ENTITY_TOO_LARGE, -1);
+					try (PooledBytes bodyBytes = bodyBuffers.read(body, contentLength, MAX_SHORTLINK_BYTES)) {
+						body.close();
+						if (bodyBytes.length() > MAX_SHORTLINK_BYTES) {
+							httpExchange.sendResponseHeaders(HTTP_ENTITY_TOO_LARGE, -1);
+							return;
+						}
+						// Everything needed from the body is copied out of it here, so the buffer can go back to the pool
+						payload = JsonUtils.scan(bodyBytes.buffer(), 0, bodyBytes.length());
 					}
-					else {
-						JsonNode json = mapper.readTree(bodyBytes);
-						makeShortLink(httpExchange, json);
+					catch (JsonProcessingException e) {
+						log.warn("Invalid JSON: {}", e.getOriginalMessage());
+						httpExchange.sendResponseHeaders(HTTP_BAD_REQUEST, -1);
+						return;
 					}
+					makeShortLink(httpExchange, payload);
 				}
 				case "GET" -> {
 					retrieveShortLink(httpExchange);
@@ -87,9 +113,18 @@ public class Shortlink {
 				default -> httpExchange.sendResponseHeaders(HTTP_BAD_METHOD, -1);
 			}
 		}
+		catch (RejectedExecutionException e) {
+			log.warn("Too busy for {}", httpExchange.getRequestURI());
+			try {
+				httpExchange.sendResponseHeaders(HTTP_UNAVAILABLE, -1);
+			}
+			catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
 		catch (Throwable e) {
 			log.error("Error on {}", httpExchange.getRequestURI(), e);
-			stats.errCount.incrementAndGet();
+			stats.errCount.increment();
 			try {
 				httpExchange.sendResponseHeaders(HTTP_INTERNAL_ERROR, -1);
 			}
@@ -99,22 +134,52 @@ public class Shortlink {
 		}
 	}
 
-	private void makeShortLink(HttpExchange httpExchange, JsonNode json) throws IOException {
-		stats.postCount.incrementAndGet();
-		UUID uuid = UUID.randomUUID();
+	private void makeShortLink(HttpExchange httpExchange, ScannedPayload payload) throws IOException {
+		stats.postCount.increment();
+		byte[] digest = payload.digest();
+		// Links are immutable, so the same content can share a link. Clients may rely on every POST giving them a new
+		// link, so only do that when asked to.
+		UUID existing = wantsReuse(httpExchange) ? dedup.get(digest) : null;
+		UUID uuid;
+		if (existing != null) {
+			uuid = existing;
+			log.info("REUSED UUID: {}", uuid);
+		}
+		else {
+			uuid = UUID.randomUUID();
+			String stringed = payload.minifiedString();
+			log.info("CREATED UUID: {}, data: {}", uuid, StringUtils.truncate(stringed, 100));
+			await(db.putShortLinkAsync(uuid, stringed));
+			cache.set(uuid, stringed);
+			dedup.put(digest, uuid);
+		}
+		// Already have the metadata, so render the share page now rather than parsing the payload again when it is
+		// first shared
+		if (!sharePages.contains(uuid)) {
+			sharePages.render(uuid, payload.name(), payload.description());
+		}
 		byte[] uuidBytes = uuid.toString().getBytes(StandardCharsets.UTF_8);
-		String stringed = json.toString();
-		log.info("CREATED UUID: {}, data: {}", uuid, StringUtils.truncate(stringed, 100));
-		db.putShortLink(uuid, stringed);
-		cache.set(uuid, stringed);
 		httpExchange.sendResponseHeaders(201, uuidBytes.length);
 		OutputStream body = httpExchange.getResponseBody();
 		body.write(uuidBytes);
 		body.close();
 	}
 
+	private static boolean wantsReuse(HttpExchange httpExchange) {
+		String query = httpExchange.getRequestURI().getQuery();
+		if (query == null) {
+			return false;
+		}
+		for (String param : query.split("&")) {
+			if (param.equals("reuse") || param.equals("reuse=true")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private void retrieveShortLink(HttpExchange httpExchange) throws IOException {
-		stats.getCount.incrementAndGet();
+		stats.getCount.increment();
 		String path = base.relativize(httpExchange.getRequestURI()).getPath().split("/")[0];
 		UUID uuid;
 		try {
@@ -125,27 +190,70 @@ public class Shortlink {
 			httpExchange.sendResponseHeaders(HTTP_BAD_REQUEST, -1);
 			return;
 		}
-		String result = getRaw(uuid);
+		CacheValue result = await(cache.computeValueIfAbsentAsync(uuid, db::getShortlinkAsync));
 //		log.info("GET UUID: {}", );
 		if (result == null) {
+			log.info("UUID not found: {}", uuid);
 			httpExchange.sendResponseHeaders(HTTP_NOT_FOUND, -1);
 		}
 		else {
 			httpExchange.getResponseHeaders().add("cache-control", "max-age=7200, public, immutable");
-			doResponse(httpExchange, result, "application/json");
+			httpExchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+			// Skip decompressing entirely if the client can take it as-is
+			if (result.isGzipped() && acceptsGzip(httpExchange)) {
+				doGzipResponse(httpExchange, result.getCompressed(), "application/json");
+			}
+			else {
+				doResponse(httpExchange, result.getUtf8(), "application/json");
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the request is for a link which is already in the cache.
+	 */
+	public boolean isCached(HttpExchange httpExchange) {
+		String path = httpExchange.getRequestURI().getPath();
+		String prefix = httpExchange.getHttpContext().getPath();
+		if (!path.startsWith(prefix)) {
+			return false;
+		}
+		String uuid = path.substring(prefix.length()).split("/")[0];
+		try {
+			return cache.contains(UUID.fromString(uuid));
+		}
+		catch (IllegalArgumentException ignored) {
+			return false;
 		}
 	}
 
 	public @Nullable String getRaw(UUID uuid) {
-		String result = cache.computeIfAbsent(uuid, db::getShortlink);
+		CacheValue result = await(cache.computeValueIfAbsentAsync(uuid, db::getShortlinkAsync));
 		if (result == null) {
 			log.info("UUID not found: {}", uuid);
+			return null;
 		}
-		return result;
+		return result.getValue();
 	}
 
 	public @Nullable String getRaw(String uuidRaw) {
 		UUID uuid = UUID.fromString(uuidRaw);
 		return getRaw(uuid);
 	}
+
+	/**
+	 * Wait for a result. HttpServer handlers are synchronous, but waiting on a future parks the (virtual) handler
+	 * thread without pinning its carrier.
+	 */
+	private static <X> X await(CompletableFuture<X> future) {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException re) {
+				throw re;
+			}
+			throw e;
+		}
+	}
 }
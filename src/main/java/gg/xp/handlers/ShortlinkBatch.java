@@ -0,0 +1,294 @@
+package gg.xp.handlers;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.sun.net.httpserver.HttpExchange;
+import gg.xp.AsyncCache;
+import gg.xp.AsyncDatabase;
+import gg.xp.CacheValue;
+import gg.xp.Config;
+import gg.xp.Server;
+import gg.xp.Stats;
+import gg.xp.util.JsonUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import static gg.xp.util.ResponseUtils.acceptsGzip;
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_OK;
+
+/**
+ * Several shortlinks in one request, for pages which show more than one sheet at once.
+ * <p>
+ * Either {@code GET /shortlinks/?ids=<uuid>,<uuid>,...} or {@code POST /shortlinks/} with a JSON array of UUIDs. The
+ * response is a JSON object from each UUID to its payload, or to null if there is no such link. Links which could not
+ * be fetched (e.g. because the database is too busy) are left out, so that the client can retry just those.
+ * <p>
+ * Cached links are written straight away. The rest are fetched at most {@code shortlinkBatchParallelism} at a time,
+ * and written in whichever order they arrive, so the response does not wait for the slowest fetch to start. At most
+ * {@code shortlinkBatchMaxIds} links can be asked for at once.
+ */
+public class ShortlinkBatch {
+
+	private static final Logger log = LoggerFactory.getLogger(ShortlinkBatch.class);
+	// A quoted UUID and a comma
+	private static final int BYTES_PER_ID = 40;
+	private final AsyncDatabase db;
+	private final AsyncCache cache;
+	private final Stats stats;
+	private final int maxIds;
+	private final int parallelism;
+
+	public static final URI base;
+
+	static {
+		try {
+			base = new URI("/shortlinks/");
+		}
+		catch (URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public ShortlinkBatch(Server server, AsyncDatabase db, AsyncCache cache, Stats stats, Config config) {
+		this.db = db;
+		this.cache = cache;
+		this.stats = stats;
+		this.maxIds = config.getOrDefault(Integer.class, "shortlinkBatchMaxIds", 100);
+		this.parallelism = config.getOrDefault(Integer.class, "shortlinkBatchParallelism", 8);
+		server.registerHandler(base.getPath(), this::handle, this::isCached);
+	}
+
+	private record Fetched(UUID uuid, @Nullable CacheValue value, @Nullable Throwable error) {
+	}
+
+	private void handle(HttpExchange httpExchange) {
+		httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+		try {
+			List<String> rawIds;
+			switch (httpExchange.getRequestMethod()) {
+				case "GET" -> rawIds = queryIds(httpExchange);
+				case "POST" -> {
+					int limit = maxIds * BYTES_PER_ID + 2;
+					byte[] body;
+					try (InputStream in = httpExchange.getRequestBody()) {
+						body = in.readNBytes(limit + 1);
+					}
+					if (body.length > limit) {
+						httpExchange.sendResponseHeaders(HTTP_ENTITY_TOO_LARGE, -1);
+						return;
+					}
+					try {
+						rawIds = JsonUtils.readStringArray(body, 0, body.length);
+					}
+					catch (JsonProcessingException e) {
+						log.warn("Invalid JSON: {}", e.getOriginalMessage());
+						httpExchange.sendResponseHeaders(HTTP_BAD_REQUEST, -1);
+						return;
+					}
+				}
+				default -> {
+					httpExchange.sendResponseHeaders(HTTP_BAD_METHOD, -1);
+					return;
+				}
+			}
+			Set<UUID> ids;
+			try {
+				ids = parseIds(rawIds);
+			}
+			catch (IllegalArgumentException e) {
+				log.error("Bad UUID in batch: {}", e.getMessage());
+				httpExchange.sendResponseHeaders(HTTP_BAD_REQUEST, -1);
+				return;
+			}
+			if (ids.size() > maxIds) {
+				log.warn("Too many UUIDs in batch: {}", ids.size());
+				httpExchange.sendResponseHeaders(HTTP_ENTITY_TOO_LARGE, -1);
+				return;
+			}
+			stats.getCount.add(ids.size());
+			streamShortLinks(httpExchange, ids);
+		}
+		catch (Throwable e) {
+			log.error("Error on {}", httpExchange.getRequestURI(), e);
+			stats.errCount.increment();
+			// Too late for an error status if the response has already started, but then the truncated body will not
+			// parse either
+			if (httpExchange.getResponseCode() == -1) {
+				try {
+					httpExchange.sendResponseHeaders(HTTP_INTERNAL_ERROR, -1);
+				}
+				catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+	}
+
+	private void streamShortLinks(HttpExchange httpExchange, Collection<UUID> ids) throws IOException {
+		List<UUID> misses = new ArrayList<>();
+		List<Fetched> hits = new ArrayList<>();
+		for (UUID uuid : ids) {
+			CacheValue value = cache.getIfPresent(uuid);
+			if (value == null) {
+				misses.add(uuid);
+			}
+			else {
+				hits.add(new Fetched(uuid, value, null));
+			}
+		}
+		// Each fetch starts the next one when it finishes, so no thread is tied up waiting for a free slot
+		Queue<UUID> pending = new ConcurrentLinkedQueue<>(misses);
+		BlockingQueue<Fetched> done = new LinkedBlockingQueue<>();
+		for (int i = 0; i < Math.min(parallelism, misses.size()); i++) {
+			fetchNext(pending, done);
+		}
+
+		boolean gzip = acceptsGzip(httpExchange);
+		httpExchange.getResponseHeaders().add("Content-Type", "application/json");
+		httpExchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+		if (gzip) {
+			httpExchange.getResponseHeaders().add("Content-Encoding", "gzip");
+		}
+		httpExchange.sendResponseHeaders(HTTP_OK, 0);
+		try (OutputStream out = gzip ? new GZIPOutputStream(httpExchange.getResponseBody(), 8192, true) : httpExchange.getResponseBody()) {
+			out.write('{');
+			boolean first = true;
+			for (Fetched hit : hits) {
+				first = writeEntry(out, hit, first);
+			}
+			for (int i = 0; i < misses.size(); i++) {
+				Fetched fetched = done.poll();
+				if (fetched == null) {
+					// Send what we have so far before waiting for more
+					out.flush();
+					fetched = done.take();
+				}
+				if (fetched.error != null) {
+					log.warn("Could not fetch {} for batch: {}", fetched.uuid, fetched.error.toString());
+					stats.errCount.increment();
+					continue;
+				}
+				first = writeEntry(out, fetched, first);
+			}
+			out.write('}');
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for shortlinks");
+		}
+	}
+
+	private void fetchNext(Queue<UUID> pending, BlockingQueue<Fetched> done) {
+		UUID uuid = pending.poll();
+		if (uuid == null) {
+			return;
+		}
+		CompletableFuture<@Nullable CacheValue> future;
+		try {
+			future = cache.computeValueIfAbsentAsync(uuid, db::getShortlinkAsync);
+		}
+		catch (RuntimeException e) {
+			future = CompletableFuture.failedFuture(e);
+		}
+		future.whenComplete((value, error) -> {
+			done.add(new Fetched(uuid, value, error));
+			fetchNext(pending, done);
+		});
+	}
+
+	/**
+	 * @return Whether to write a comma before the next entry, i.e. false
+	 */
+	private static boolean writeEntry(OutputStream out, Fetched fetched, boolean first) throws IOException {
+		if (!first) {
+			out.write(',');
+		}
+		out.write(('"' + fetched.uuid.toString() + "\":").getBytes(StandardCharsets.US_ASCII));
+		if (fetched.value == null) {
+			out.write("null".getBytes(StandardCharsets.US_ASCII));
+		}
+		else {
+			// Payloads are stored minified, so they can go in as-is
+			out.write(fetched.value.getUtf8());
+		}
+		return false;
+	}
+
+	private static List<String> queryIds(HttpExchange httpExchange) {
+		List<String> out = new ArrayList<>();
+		String query = httpExchange.getRequestURI().getQuery();
+		if (query == null) {
+			return out;
+		}
+		for (String param : query.split("&")) {
+			if (param.startsWith("ids=")) {
+				for (String id : param.substring(4).split(",")) {
+					if (!id.isEmpty()) {
+						out.add(id);
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @return The UUIDs, without duplicates, in the order given
+	 * @throws IllegalArgumentException if any are not valid UUIDs
+	 */
+	private static Set<UUID> parseIds(List<String> rawIds) {
+		Set<UUID> out = new LinkedHashSet<>();
+		for (String raw : rawIds) {
+			out.add(UUID.fromString(raw));
+		}
+		return out;
+	}
+
+	/**
+	 * @return Whether the request is a GET for links which are all already in the cache.
+	 */
+	private boolean isCached(HttpExchange httpExchange) {
+		if (!httpExchange.getRequestMethod().equals("GET")) {
+			return false;
+		}
+		List<String> rawIds = queryIds(httpExchange);
+		if (rawIds.isEmpty() || rawIds.size() > maxIds) {
+			return false;
+		}
+		try {
+			for (UUID uuid : parseIds(rawIds)) {
+				if (!cache.contains(uuid)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		catch (IllegalArgumentException ignored) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package gg.xp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of byte arrays in a few size classes, e.g. for reading request bodies without allocating a new buffer for
+ * every request.
+ * <p>
+ * Each size class keeps at most {@code maxPerClass} free arrays, and anything beyond that is left to the garbage
+ * collector. Arrays are not cleared when released, so only read back what has been written since acquiring one.
+ */
+public final class BufferPool {
+
+	private final int[] sizes;
+	private final ArrayBlockingQueue<byte[]>[] free;
+
+	/**
+	 * @param maxPerClass How many free arrays to keep of each size
+	 * @param sizes       Size classes, smallest first
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int maxPerClass, int... sizes) {
+		if (sizes.length == 0) {
+			throw new IllegalArgumentException("No size classes");
+		}
+		for (int i = 1; i < sizes.length; i++) {
+			if (sizes[i] <= sizes[i - 1]) {
+				throw new IllegalArgumentException("Size classes must be in increasing order: " + Arrays.toString(sizes));
+			}
+		}
+		this.sizes = sizes.clone();
+		this.free = new ArrayBlockingQueue[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			free[i] = new ArrayBlockingQueue<>(maxPerClass);
+		}
+	}
+
+	/**
+	 * @return An array of the smallest size class which fits, or a new array of exactly this size if none do
+	 */
+	public byte[] acquire(int minSize) {
+		int sizeClass = classFor(minSize);
+		if (sizeClass < 0) {
+			return new byte[minSize];
+		}
+		byte[] buffer = free[sizeClass].poll();
+		return buffer == null ? new byte[sizes[sizeClass]] : buffer;
+	}
+
+	/**
+	 * Return an array to the pool. Arrays which are not of one of the size classes are ignored.
+	 */
+	public void release(byte[] buffer) {
+		int sizeClass = Arrays.binarySearch(sizes, buffer.length);
+		if (sizeClass >= 0) {
+			free[sizeClass].offer(buffer);
+		}
+	}
+
+	/**
+	 * @return How many free arrays of a size class are in the pool
+	 */
+	int freeCount(int size) {
+		return free[Arrays.binarySearch(sizes, size)].size();
+	}
+
+	private int classFor(int minSize) {
+		for (int i = 0; i < sizes.length; i++) {
+			if (sizes[i] >= minSize) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Some bytes in a pooled array. Closing it returns the array to the pool, after which it must not be used.
+	 *
+	 * @param buffer The array. Only the first {@code length} bytes are valid.
+	 * @param length How many bytes were read
+	 */
+	public record PooledBytes(BufferPool pool, byte[] buffer, int length) implements AutoCloseable {
+		@Override
+		public void close() {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Read a stream to its end, or until it turns out to be longer than {@code limit}, into a pooled array. Starts
+	 * with an array big enough for the expected length, moving to bigger size classes as needed. Does not close the
+	 * stream.
+	 *
+	 * @param expectedLength How long the stream is expected to be (e.g. from Content-Length), or -1 if not known
+	 * @param limit          Stop reading once more than this many bytes have been read
+	 * @return The bytes read. If there were more than {@code limit}, the length is {@code limit + 1}.
+	 */
+	public PooledBytes read(InputStream in, int expectedLength, int limit) throws IOException {
+		int cap = limit + 1;
+		byte[] buffer = acquire(Math.min(cap, Math.max(expectedLength, 1)));
+		int length = 0;
+		try {
+			while (true) {
+				int want = Math.min(buffer.length, cap) - length;
+				if (want == 0) {
+					if (length == cap) {
+						break;
+					}
+					// Move up to the next size class
+					byte[] bigger = acquire(Math.min(cap, buffer.length + 1));
+					System.arraycopy(buffer, 0, bigger, 0, length);
+					release(buffer);
+					buffer = bigger;
+					continue;
+				}
+				int read = in.read(buffer, length, want);
+				if (read < 0) {
+					break;
+				}
+				length += read;
+			}
+		}
+		catch (Throwable t) {
+			release(buffer);
+			throw t;
+		}
+		return new PooledBytes(this, buffer, length);
+	}
+}
@@ -0,0 +1,271 @@
+package gg.xp.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming JSON handling for shortlink payloads, so that handlers never need to build a whole tree of a sheet.
+ */
+public final class JsonUtils {
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private JsonUtils() {
+	}
+
+	/**
+	 * @param minified    The payload with no insignificant whitespace, as UTF-8
+	 * @param digest      SHA-256 digest of the canonical form of the payload, see {@link #scan(byte[])}
+	 * @param name        Top-level "name" field, if it is a string
+	 * @param description Top-level "description" field, if it is a string
+	 */
+	public record ScannedPayload(byte[] minified, byte[] digest, @Nullable String name, @Nullable String description) {
+		public String minifiedString() {
+			return new String(minified, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * @param name        Top-level "name" field, if it is a string
+	 * @param description Top-level "description" field, if it is a string
+	 */
+	public record ShareMetadata(@Nullable String name, @Nullable String description) {
+	}
+
+	/**
+	 * Validate, minify, digest and extract share metadata from a payload, all in one pass over it.
+	 * <p>
+	 * The digest is of the canonical form of the payload: object fields are sorted by name, and numbers are digested in
+	 * the form they are written in when minifying. Floats are read as doubles, so {@code 2.50} and {@code 2.5} are the
+	 * same, but integers stay integers, so {@code 1} and {@code 1.0} are not. That way, two payloads with the same
+	 * digest always minify to exactly the same text, whatever whitespace and field order they were sent with.
+	 *
+	 * @throws JsonParseException if the payload is not exactly one JSON value
+	 */
+	public static ScannedPayload scan(byte[] json) throws IOException {
+		return scan(json, 0, json.length);
+	}
+
+	/**
+	 * Like {@link #scan(byte[])}, for part of an array, e.g. a pooled buffer.
+	 */
+	public static ScannedPayload scan(byte[] json, int offset, int length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+		CanonicalDigest digest = new CanonicalDigest();
+		String name = null;
+		String description = null;
+		try (JsonParser parser = jsonFactory.createParser(json, offset, length); JsonGenerator gen = jsonFactory.createGenerator(out)) {
+			JsonToken token = parser.nextToken();
+			if (token == null) {
+				throw new JsonParseException(parser, "No content");
+			}
+			while (true) {
+				gen.copyCurrentEvent(parser);
+				digest.accept(parser, token);
+				if (token == JsonToken.VALUE_STRING && isTopLevelField(parser.getParsingContext())) {
+					switch (parser.currentName()) {
+						case "name" -> name = parser.getText();
+						case "description" -> description = parser.getText();
+						default -> {
+						}
+					}
+				}
+				if (parser.getParsingContext().inRoot()) {
+					break;
+				}
+				token = parser.nextToken();
+				if (token == null) {
+					throw new JsonParseException(parser, "Unexpected end of content");
+				}
+			}
+			if (parser.nextToken() != null) {
+				throw new JsonParseException(parser, "Unexpected content after the end of the payload");
+			}
+		}
+		return new ScannedPayload(out.toByteArray(), digest.result(), name, description);
+	}
+
+	/**
+	 * Read only the top-level "name" and "description" fields of a payload, skipping over everything else, and
+	 * stopping as soon as both have been found.
+	 */
+	public static ShareMetadata readShareMetadata(String json) throws IOException {
+		String name = null;
+		String description = null;
+		boolean hasName = false;
+		boolean hasDescription = false;
+		try (JsonParser parser = jsonFactory.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return new ShareMetadata(null, null);
+			}
+			while (!(hasName && hasDescription) && parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				JsonToken value = parser.nextToken();
+				if (field.equals("name") && !hasName) {
+					hasName = true;
+					name = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+				}
+				else if (field.equals("description") && !hasDescription) {
+					hasDescription = true;
+					description = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+				}
+				// Does nothing if the value is not an object or array
+				parser.skipChildren();
+			}
+		}
+		return new ShareMetadata(name, description);
+	}
+
+	/**
+	 * Read a JSON array of strings, e.g. a list of IDs.
+	 *
+	 * @throws JsonParseException if it is anything else
+	 */
+	public static List<String> readStringArray(byte[] json, int offset, int length) throws IOException {
+		List<String> out = new ArrayList<>();
+		try (JsonParser parser = jsonFactory.createParser(json, offset, length)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new JsonParseException(parser, "Expected an array");
+			}
+			JsonToken token;
+			while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+				if (token != JsonToken.VALUE_STRING) {
+					throw new JsonParseException(parser, "Expected a string, got " + token);
+				}
+				out.add(parser.getText());
+			}
+			if (parser.nextToken() != null) {
+				throw new JsonParseException(parser, "Trailing content after array");
+			}
+		}
+		return out;
+	}
+
+	private static boolean isTopLevelField(JsonStreamContext context) {
+		return context.inObject() && context.getParent().inRoot();
+	}
+
+	private static MessageDigest newSha() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Digest of the canonical form of a stream of tokens. Every object or array is digested on its own, and the
+	 * fields of an object are sorted by name before going into its digest, which in turn goes into its parent. That
+	 * way, only the fields of the objects currently open need to be held, rather than the whole document.
+	 */
+	private static final class CanonicalDigest {
+		private static final byte OBJECT = 'o';
+		private static final byte ARRAY = 'a';
+		private static final byte STRING = 's';
+		private static final byte NUMBER = 'n';
+		private static final byte TRUE = 't';
+		private static final byte FALSE = 'f';
+		private static final byte NULL = 'z';
+
+		// Reused between containers at the same depth
+		private final List<Frame> frames = new ArrayList<>();
+		private int depth;
+		private byte @Nullable [] result;
+
+		void accept(JsonParser parser, JsonToken token) throws IOException {
+			switch (token) {
+				case START_OBJECT, START_ARRAY -> {
+					if (depth == frames.size()) {
+						frames.add(new Frame());
+					}
+					frames.get(depth++).reset(token == JsonToken.START_OBJECT);
+				}
+				case END_OBJECT, END_ARRAY -> {
+					byte[] value = frames.get(--depth).finish();
+					add(value);
+				}
+				case FIELD_NAME -> frames.get(depth - 1).field = parser.currentName();
+				case VALUE_STRING -> add(scalar(STRING, parser.getText()));
+				// The same text the generator writes for it, see scan()
+				case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> add(scalar(NUMBER, parser.getNumberValue().toString()));
+				case VALUE_TRUE -> add(new byte[]{TRUE});
+				case VALUE_FALSE -> add(new byte[]{FALSE});
+				case VALUE_NULL -> add(new byte[]{NULL});
+				default -> throw new IllegalStateException("Unexpected token " + token);
+			}
+		}
+
+		byte[] result() {
+			if (result == null) {
+				throw new IllegalStateException("Incomplete");
+			}
+			return result;
+		}
+
+		private void add(byte[] value) {
+			if (depth == 0) {
+				result = newSha().digest(value);
+			}
+			else {
+				frames.get(depth - 1).add(value);
+			}
+		}
+
+		private static byte[] scalar(byte type, String text) {
+			return lengthPrefixed(type, text.getBytes(StandardCharsets.UTF_8));
+		}
+
+		private static byte[] lengthPrefixed(byte type, byte[] bytes) {
+			return ByteBuffer.allocate(5 + bytes.length).put(type).putInt(bytes.length).put(bytes).array();
+		}
+
+		private static final class Frame {
+			private final MessageDigest sha = newSha();
+			private final List<Map.Entry<String, byte[]>> fields = new ArrayList<>();
+			private boolean object;
+			private String field;
+
+			void reset(boolean object) {
+				this.object = object;
+				this.field = null;
+				sha.reset();
+				fields.clear();
+			}
+
+			void add(byte[] value) {
+				if (object) {
+					fields.add(Map.entry(field, value));
+				}
+				else {
+					sha.update(value);
+				}
+			}
+
+			byte[] finish() {
+				if (object) {
+					fields.sort(Map.Entry.comparingByKey());
+					for (Map.Entry<String, byte[]> entry : fields) {
+						sha.update(lengthPrefixed(STRING, entry.getKey().getBytes(StandardCharsets.UTF_8)));
+						sha.update(entry.getValue());
+					}
+				}
+				return ByteBuffer.allocate(33).put(object ? OBJECT : ARRAY).put(sha.digest()).array();
+			}
+		}
+	}
+}
@@ -5,6 +5,7 @@ import com.sun.net.httpserver.HttpExchange;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import static java.net.HttpURLConnection.HTTP_OK;
 
@@ -16,6 +17,50 @@ public final class ResponseUtils {
 		doResponse(httpExchange, responseString.getBytes(StandardCharsets.UTF_8), contentType);
 	}
 
+	/**
+	 * Send a response body which is already GZIP-compressed. Only use this if {@link #acceptsGzip(HttpExchange)} is
+	 * true.
+	 */
+	public static void doGzipResponse(HttpExchange httpExchange, byte[] gzippedBytes, String contentType) throws IOException {
+		httpExchange.getResponseHeaders().add("Content-Encoding", "gzip");
+		doResponse(httpExchange, gzippedBytes, contentType);
+	}
+
+	/**
+	 * @return Whether the client's Accept-Encoding allows a GZIP-encoded response.
+	 */
+	public static boolean acceptsGzip(HttpExchange httpExchange) {
+		List<String> headers = httpExchange.getRequestHeaders().get("Accept-Encoding");
+		if (headers == null) {
+			return false;
+		}
+		for (String header : headers) {
+			for (String coding : header.split(",")) {
+				String[] parts = coding.split(";");
+				String name = parts[0].trim();
+				if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip") || name.equals("*")) {
+					return !isZeroQuality(parts);
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isZeroQuality(String[] codingParts) {
+		for (int i = 1; i < codingParts.length; i++) {
+			String param = codingParts[i].trim();
+			if (param.startsWith("q=") || param.startsWith("Q=")) {
+				try {
+					return Double.parseDouble(param.substring(2)) <= 0;
+				}
+				catch (NumberFormatException e) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
 	public static void doResponse(HttpExchange httpExchange, byte[] responseBytes, String contentType) throws IOException {
 		httpExchange.getResponseHeaders().add("Content-Type", contentType);
 		httpExchange.sendResponseHeaders(HTTP_OK, responseBytes.length);
@@ -0,0 +1,100 @@
+package gg.xp;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Tests which every {@link Cache} implementation has to pass. Subclasses supply the cache and add their own tests.
+ */
+public abstract class AbstractCacheTest {
+
+	/**
+	 * @return A new, empty cache, with room for at least a few hundred small entries
+	 */
+	protected abstract Cache newCache();
+
+	@Test
+	void testCacheIgnoresNull() {
+		Cache cache = newCache();
+		String out = cache.computeIfAbsent(UUID.randomUUID(), ignored -> null);
+		Assert.assertNull(out);
+		Assert.assertEquals(cache.cacheSize(), 0);
+	}
+
+	/**
+	 * Test that concurrent misses for the same key only load it once, and that a slow load does not block other keys
+	 */
+	@Test
+	void testConcurrentMissesCoalesce() throws InterruptedException {
+		Cache cache = newCache();
+		AtomicInteger counter = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		Function<UUID, String> slowConv = uuid -> {
+			counter.incrementAndGet();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return uuid.toString();
+		};
+		UUID slowKey = new UUID(0, 0);
+		List<String> results = new CopyOnWriteArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			threads.add(Thread.ofVirtual().start(() -> results.add(cache.computeIfAbsent(slowKey, slowConv))));
+		}
+		while (counter.get() == 0) {
+			Thread.sleep(1);
+		}
+		// Unrelated key should not have to wait for the slow one
+		Assert.assertEquals(cache.computeIfAbsent(new UUID(0, 1), UUID::toString), new UUID(0, 1).toString());
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(counter.get(), 1);
+		Assert.assertEquals(results.size(), 10);
+		results.forEach(result -> Assert.assertEquals(result, slowKey.toString()));
+	}
+
+	/**
+	 * Test that cache hits do not allocate anything
+	 */
+	@Test
+	void testHitPathDoesNotAllocate() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean mx)
+				|| !mx.isThreadAllocatedMemorySupported()) {
+			throw new SkipException("Allocation measurement not supported");
+		}
+		Cache cache = newCache();
+		UUID[] keys = new UUID[100];
+		Function<UUID, String> conv = UUID::toString;
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new UUID(i, i);
+			cache.computeValueIfAbsent(keys[i], conv);
+		}
+		// Warm up
+		for (int i = 0; i < 10_000; i++) {
+			cache.computeValueIfAbsent(keys[i % keys.length], conv);
+		}
+		long before = mx.getCurrentThreadAllocatedBytes();
+		for (int i = 0; i < 100_000; i++) {
+			cache.computeValueIfAbsent(keys[i % keys.length], conv);
+		}
+		long allocated = mx.getCurrentThreadAllocatedBytes() - before;
+		// Allow a little for the measurement itself, but nowhere near one object per hit
+		Assert.assertTrue(allocated < 10_000, "Hits allocated " + allocated + " bytes");
+	}
+}
@@ -0,0 +1,76 @@
+package gg.xp;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AdaptiveLimiterTest {
+
+	// Run a full limit's worth of requests at once, all with the same latency
+	private static void runBatch(AdaptiveLimiter limiter, long latencyNanos) {
+		int count = 0;
+		while (limiter.tryAcquire()) {
+			count++;
+		}
+		for (int i = 0; i < count; i++) {
+			limiter.release(latencyNanos);
+		}
+	}
+
+	/**
+	 * Test that the limit grows while latency is steady, shrinks when latency rises, and stays within bounds
+	 */
+	@Test
+	void testAdapts() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(10, 2, 200);
+		for (int i = 0; i < 50; i++) {
+			runBatch(limiter, 1_000_000);
+		}
+		Assert.assertEquals(limiter.getLimit(), 200);
+		Assert.assertEquals(limiter.getInFlight(), 0);
+
+		for (int i = 0; i < 2; i++) {
+			runBatch(limiter, 10_000_000);
+		}
+		int overloaded = limiter.getLimit();
+		Assert.assertTrue(overloaded < 100, "Limit: " + overloaded);
+
+		// Recovers once latency is back to normal
+		for (int i = 0; i < 50; i++) {
+			runBatch(limiter, 1_000_000);
+		}
+		Assert.assertEquals(limiter.getLimit(), 200);
+
+		// Latency which keeps getting much worse
+		long latency = 1_000_000;
+		for (int i = 0; i < 30; i++) {
+			latency *= 2;
+			runBatch(limiter, latency);
+		}
+		// At the worst gradient, the limit settles where halving it and adding its square root gives it back
+		Assert.assertTrue(limiter.getLimit() <= 4, "Limit: " + limiter.getLimit());
+	}
+
+	/**
+	 * Test that a route which is never busy does not have its limit raised
+	 */
+	@Test
+	void testNoGrowthWhenIdle() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(10, 2, 200);
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+			limiter.release(1_000_000);
+		}
+		Assert.assertEquals(limiter.getLimit(), 10);
+	}
+
+	@Test
+	void testRejectsOverLimit() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10);
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertFalse(limiter.tryAcquire());
+		limiter.release(1000);
+		Assert.assertTrue(limiter.tryAcquire());
+		Assert.assertThrows(IllegalArgumentException.class, () -> new AdaptiveLimiter(20, 1, 10));
+	}
+}
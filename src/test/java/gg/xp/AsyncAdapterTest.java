@@ -0,0 +1,140 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncAdapterTest {
+
+	/**
+	 * Test that operations over the limit are queued, then rejected, and that queued ones start as others finish
+	 */
+	@Test
+	void testLimiter() {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1);
+		List<CompletableFuture<Integer>> operations = new ArrayList<>();
+		AtomicInteger started = new AtomicInteger();
+		List<CompletableFuture<Integer>> results = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			CompletableFuture<Integer> operation = new CompletableFuture<>();
+			operations.add(operation);
+			results.add(limiter.submit(() -> {
+				started.incrementAndGet();
+				return operation;
+			}));
+		}
+		Assert.assertEquals(started.get(), 2);
+		Assert.assertEquals(limiter.inFlightCount(), 2);
+		Assert.assertEquals(limiter.queuedCount(), 1);
+		Assert.assertEquals(limiter.rejectedCount(), 1);
+		Assert.assertThrows(RejectedExecutionException.class, () -> unwrap(results.get(3)));
+
+		operations.get(0).complete(0);
+		Assert.assertEquals(results.get(0).join(), 0);
+		Assert.assertEquals(started.get(), 3);
+		Assert.assertEquals(limiter.queuedCount(), 0);
+
+		operations.get(1).completeExceptionally(new IllegalStateException());
+		operations.get(2).complete(2);
+		Assert.assertThrows(IllegalStateException.class, () -> unwrap(results.get(1)));
+		Assert.assertEquals(results.get(2).join(), 2);
+		Assert.assertEquals(limiter.inFlightCount(), 0);
+	}
+
+	/**
+	 * Test that concurrent misses for the same key share one load, and later lookups are hits
+	 */
+	@Test
+	void testCacheAdapterCoalesces() {
+		AsyncCacheAdapter cache = new AsyncCacheAdapter(new GzipCacheImpl(1000, 10_000));
+		UUID uuid = UUID.randomUUID();
+		AtomicInteger loads = new AtomicInteger();
+		CompletableFuture<@Nullable String> load = new CompletableFuture<>();
+		CompletableFuture<CacheValue> first = cache.computeValueIfAbsentAsync(uuid, key -> {
+			loads.incrementAndGet();
+			return load;
+		});
+		CompletableFuture<CacheValue> second = cache.computeValueIfAbsentAsync(uuid, key -> {
+			loads.incrementAndGet();
+			return CompletableFuture.completedFuture("other");
+		});
+		Assert.assertFalse(first.isDone());
+		Assert.assertEquals(cache.inFlightCount(), 1);
+		load.complete("foo");
+		Assert.assertEquals(first.join().getValue(), "foo");
+		Assert.assertEquals(second.join().getValue(), "foo");
+		Assert.assertEquals(cache.inFlightCount(), 0);
+
+		CompletableFuture<CacheValue> hit = cache.computeValueIfAbsentAsync(uuid, key -> {
+			loads.incrementAndGet();
+			return CompletableFuture.completedFuture("other");
+		});
+		Assert.assertTrue(hit.isDone());
+		Assert.assertEquals(hit.join().getValue(), "foo");
+		Assert.assertEquals(loads.get(), 1);
+
+		// Not found is not cached
+		UUID missing = UUID.randomUUID();
+		Assert.assertNull(cache.computeValueIfAbsentAsync(missing, key -> CompletableFuture.completedFuture(null)).join());
+		Assert.assertEquals(cache.computeValueIfAbsentAsync(missing, key -> CompletableFuture.completedFuture("bar")).join().getValue(), "bar");
+	}
+
+	/**
+	 * Test that a miss is only counted once, and storing the loaded value does not count as a hit
+	 */
+	@Test
+	void testCacheAdapterStats() {
+		TinyLfuCacheImpl inner = new TinyLfuCacheImpl(1_000_000);
+		AsyncCacheAdapter cache = new AsyncCacheAdapter(inner);
+		UUID uuid = UUID.randomUUID();
+		Assert.assertEquals(cache.computeValueIfAbsentAsync(uuid, key -> CompletableFuture.completedFuture("foo")).join().getValue(), "foo");
+		Assert.assertEquals(inner.missCount(), 1);
+		Assert.assertEquals(inner.hitCount(), 0);
+
+		Assert.assertEquals(cache.computeValueIfAbsentAsync(uuid, key -> CompletableFuture.completedFuture("other")).join().getValue(), "foo");
+		Assert.assertEquals(inner.missCount(), 1);
+		Assert.assertEquals(inner.hitCount(), 1);
+	}
+
+	/**
+	 * Test that the blocking adapter runs calls off the calling thread and passes results and errors through
+	 */
+	@Test
+	void testBlockingAdapter() {
+		UUID uuid = UUID.randomUUID();
+		Database db = new Database() {
+			@Override
+			public @Nullable String getShortlink(UUID key) {
+				Assert.assertTrue(Thread.currentThread().isVirtual());
+				return key.equals(uuid) ? "foo" : null;
+			}
+
+			@Override
+			public void putShortLink(UUID key, String payload) {
+				throw new IllegalStateException("Read only");
+			}
+		};
+		BlockingDatabaseAdapter adapter = new BlockingDatabaseAdapter(db, command -> Thread.ofVirtual().start(command), new ConcurrencyLimiter(4, 4));
+		Assert.assertEquals(adapter.getShortlinkAsync(uuid).join(), "foo");
+		Assert.assertNull(adapter.getShortlinkAsync(UUID.randomUUID()).join());
+		Assert.assertThrows(IllegalStateException.class, () -> unwrap(adapter.putShortLinkAsync(uuid, "bar")));
+		Assert.assertEquals(adapter.getLimiter().inFlightCount(), 0);
+	}
+
+	private static <X> X unwrap(CompletableFuture<X> future) throws Throwable {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package gg.xp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import oracle.nosql.driver.values.MapValue;
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+public class BackupTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final class FakeScanner implements Backup.RowScanner {
+		final NavigableMap<String, MapValue> rows = new TreeMap<>();
+		// Fail every row after this many rows in total, or never if negative
+		final AtomicInteger failAfter = new AtomicInteger(-1);
+
+		FakeScanner(int count) {
+			add(count, 0);
+		}
+
+		void add(int count, long modified) {
+			for (int i = 0; i < count; i++) {
+				String uuid = UUID.randomUUID().toString();
+				rows.put(uuid, new MapValue()
+						.put("linkuuid", uuid)
+						.put("hash", i)
+						.putFromJson("datavalue", "{\"foo\":" + i + "}", null)
+						.put("modified", modified));
+			}
+		}
+
+		@Override
+		public void scan(@Nullable String after, @Nullable String before, @Nullable Long modifiedSince, Consumer<MapValue> consumer) {
+			NavigableMap<String, MapValue> range = rows;
+			if (after != null) {
+				range = range.tailMap(after, false);
+			}
+			if (before != null) {
+				range = range.headMap(before, false);
+			}
+			for (MapValue row : range.values()) {
+				if (modifiedSince != null && row.getLong("modified") <= modifiedSince) {
+					continue;
+				}
+				int remaining = failAfter.get();
+				if (remaining == 0) {
+					throw new RuntimeException("Simulated failure");
+				}
+				else if (remaining > 0) {
+					failAfter.decrementAndGet();
+				}
+				consumer.accept(row);
+			}
+		}
+
+		@Override
+		public long countRows() {
+			return rows.size();
+		}
+	}
+
+	private static Set<String> readBackup(Path dir, BackupManifest manifest) throws IOException, NoSuchAlgorithmException {
+		Set<String> seen = new HashSet<>();
+		for (BackupManifest.Partition partition : manifest.partitions) {
+			for (BackupManifest.Chunk chunk : partition.chunks) {
+				byte[] bytes = Files.readAllBytes(dir.resolve(chunk.file));
+				Assert.assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes)), chunk.sha256);
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(dir.resolve(chunk.file))), StandardCharsets.UTF_8))) {
+					List<String> lines = reader.lines().toList();
+					Assert.assertEquals(lines.size(), chunk.rows);
+					for (String line : lines) {
+						JsonNode row = mapper.readTree(line);
+						Assert.assertTrue(seen.add(row.get("linkuuid").asText()), "Duplicate row " + line);
+					}
+				}
+			}
+		}
+		return seen;
+	}
+
+	/**
+	 * Test that every row ends up in exactly one chunk
+	 */
+	@Test
+	void testFullBackup() throws IOException, NoSuchAlgorithmException {
+		Path dir = Files.createTempDirectory("backup-test");
+		FakeScanner scanner = new FakeScanner(1000);
+		BackupManifest manifest = new Backup(scanner, mapper, 16, 4, 20).doBackup(dir);
+		Assert.assertNotNull(manifest.completedAt);
+		Assert.assertEquals(manifest.expectedRows, 1000);
+		Assert.assertEquals(manifest.totalRows(), 1000);
+		Assert.assertEquals(manifest.partitions.size(), 16);
+		Assert.assertEquals(readBackup(dir, manifest), scanner.rows.keySet());
+		// Already done
+		Assert.assertThrows(IllegalStateException.class, () -> new Backup(scanner, mapper, 16, 4, 20).doBackup(dir));
+	}
+
+	/**
+	 * Test that an interrupted backup picks up where it left off, without losing or duplicating rows
+	 */
+	@Test
+	void testResume() throws IOException, NoSuchAlgorithmException {
+		Path dir = Files.createTempDirectory("backup-test");
+		FakeScanner scanner = new FakeScanner(1000);
+		scanner.failAfter.set(500);
+		Assert.assertThrows(RuntimeException.class, () -> new Backup(scanner, mapper, 16, 1, 20).doBackup(dir));
+		BackupManifest partial = BackupManifest.read(dir, mapper);
+		Assert.assertNotNull(partial);
+		Assert.assertNull(partial.completedAt);
+		Assert.assertTrue(partial.totalRows() > 0 && partial.totalRows() <= 500, "Rows: " + partial.totalRows());
+
+		scanner.failAfter.set(-1);
+		BackupManifest manifest = new Backup(scanner, mapper, 16, 4, 20).doBackup(dir);
+		Assert.assertEquals(manifest.totalRows(), 1000);
+		Assert.assertEquals(readBackup(dir, manifest), scanner.rows.keySet());
+	}
+
+	/**
+	 * Test that an incremental backup only has new rows, and that merging it with the full backup gives every row
+	 */
+	@Test
+	void testIncrementalAndMerge() throws IOException, NoSuchAlgorithmException {
+		Path full = Files.createTempDirectory("backup-test");
+		Path delta = Files.createTempDirectory("backup-test");
+		Path merged = Files.createTempDirectory("backup-test");
+		FakeScanner scanner = new FakeScanner(500);
+		BackupManifest fullManifest = new Backup(scanner, mapper, 16, 4, 20).doBackup(full);
+		Assert.assertNull(fullManifest.modifiedSince);
+		Set<String> oldKeys = new HashSet<>(scanner.rows.keySet());
+
+		scanner.add(200, fullManifest.highWaterMark + 1);
+		BackupManifest deltaManifest = new Backup(scanner, mapper, 16, 4, 20).doIncrementalBackup(full, delta);
+		Assert.assertEquals(deltaManifest.modifiedSince, fullManifest.highWaterMark);
+		Assert.assertEquals(deltaManifest.totalRows(), 200);
+		Set<String> deltaKeys = readBackup(delta, deltaManifest);
+		Assert.assertTrue(deltaKeys.stream().noneMatch(oldKeys::contains));
+
+		// Wrong order
+		Assert.assertThrows(IllegalArgumentException.class, () -> new BackupMerge(mapper, 50).merge(List.of(delta, full), merged));
+		BackupManifest mergedManifest = new BackupMerge(mapper, 50).merge(List.of(full, delta), merged);
+		Assert.assertEquals(mergedManifest.totalRows(), 700);
+		Assert.assertNull(mergedManifest.modifiedSince);
+		Assert.assertEquals(mergedManifest.highWaterMark, deltaManifest.highWaterMark);
+		Assert.assertEquals(readBackup(merged, mergedManifest), scanner.rows.keySet());
+	}
+
+	@Test
+	void testSplitKeySpace() {
+		List<BackupManifest.Partition> partitions = Backup.splitKeySpace(256);
+		Assert.assertEquals(partitions.size(), 256);
+		Assert.assertNull(partitions.get(0).after);
+		Assert.assertEquals(partitions.get(0).before, "01");
+		Assert.assertEquals(partitions.get(171).after, "ab");
+		Assert.assertEquals(partitions.get(171).before, "ac");
+		Assert.assertNull(partitions.get(255).before);
+		Assert.assertThrows(IllegalArgumentException.class, () -> new Backup(new FakeScanner(0), mapper, 32, 1, 1));
+	}
+}
@@ -0,0 +1,23 @@
+package gg.xp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Realistic payloads for benchmarks.
+ */
+final class BenchmarkData {
+	private BenchmarkData() {
+	}
+
+	static String load(String resource) {
+		try (InputStream in = Objects.requireNonNull(BenchmarkData.class.getResourceAsStream(resource), resource)) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
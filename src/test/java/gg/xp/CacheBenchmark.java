@@ -0,0 +1,114 @@
+package gg.xp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.picocontainer.Startable;
+
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Cache throughput under contention, with a skewed key distribution like real traffic (a few very popular links, a
+ * long tail of rarely used ones).
+ * <p>
+ * The key space is bigger than the cache, so the eviction policy is always active. For GzipCacheImpl, the pruner
+ * wakes up every 50ms, so this also measures how much it interferes with requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+	private static final int CACHE_ENTRIES = 1000;
+
+	@Param({"gzip", "tinylfu"})
+	public String impl;
+
+	@Param({"4000"})
+	public int keySpace;
+
+	private Cache cache;
+	private UUID[] keys;
+	private Function<UUID, String> loader;
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		private final SplittableRandom random = new SplittableRandom();
+
+		UUID nextKey(UUID[] keys) {
+			// Cubing a uniform random number heavily favors the low indices
+			double r = random.nextDouble();
+			return keys[(int) (r * r * r * keys.length)];
+		}
+	}
+
+	@Setup
+	public void setup() {
+		String payload = BenchmarkData.load("/test_sheet.json");
+		loader = ignored -> payload;
+		keys = new UUID[keySpace];
+		for (int i = 0; i < keySpace; i++) {
+			keys[i] = UUID.randomUUID();
+		}
+		int compressedSize = new CacheValue(payload).size();
+		cache = switch (impl) {
+			case "gzip" -> new GzipCacheImpl(CACHE_ENTRIES, 50);
+			case "tinylfu" -> new TinyLfuCacheImpl((long) CACHE_ENTRIES * compressedSize, CACHE_ENTRIES, Runnable::run);
+			default -> throw new IllegalArgumentException(impl);
+		};
+		if (cache instanceof Startable startable) {
+			startable.start();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (cache instanceof Startable startable) {
+			startable.stop();
+		}
+	}
+
+	@Benchmark
+	@Threads(8)
+	public String read(ThreadState state) {
+		return cache.computeIfAbsent(state.nextKey(keys), loader);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public CacheValue readValue(ThreadState state) {
+		return cache.computeValueIfAbsent(state.nextKey(keys), loader);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(7)
+	public String mixedRead(ThreadState state) {
+		return cache.computeIfAbsent(state.nextKey(keys), loader);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedWrite(ThreadState state) {
+		cache.set(state.nextKey(keys), loader.apply(null));
+	}
+}
@@ -0,0 +1,101 @@
+package gg.xp;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class CacheCodecTest {
+
+	private static final Pattern ID = Pattern.compile("\"id\":(\\d+)");
+
+	/**
+	 * Fake sets which look like real ones: same structure, with the name and some of the items changed.
+	 */
+	private static List<String> variants(int count, long seed) throws IOException {
+		String base = new String(Objects.requireNonNull(CacheCodecTest.class.getResourceAsStream("/test_set.json")).readAllBytes(), StandardCharsets.UTF_8);
+		Random random = new Random(seed);
+		List<String> out = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Matcher matcher = ID.matcher(base);
+			StringBuilder sb = new StringBuilder();
+			while (matcher.find()) {
+				String id = random.nextInt(4) == 0 ? String.valueOf(35000 + random.nextInt(400)) : matcher.group(1);
+				matcher.appendReplacement(sb, "\"id\":" + id);
+			}
+			matcher.appendTail(sb);
+			out.add(sb.toString().replace("6.55 DSR 611 - Crit/Det Relic", "Set " + UUID.randomUUID()));
+		}
+		return out;
+	}
+
+	@Test
+	void testDictionaryRoundTrip() throws IOException {
+		CodecSelector selector = CodecSelector.withDictionary(50);
+		variants(50, 1).forEach(selector::compress);
+		Assert.assertTrue(selector.hasDictionary());
+		for (String value : variants(20, 2)) {
+			CacheValue compressed = CacheValue.uncompressed(value).compress(selector);
+			Assert.assertTrue(compressed.isCompressed());
+			Assert.assertEquals(compressed.getValue(), value);
+		}
+	}
+
+	/**
+	 * Test that a trained dictionary actually beats plain GZIP on similar payloads, and that such values are not
+	 * mistaken for GZIP
+	 */
+	@Test
+	void testDictionaryBeatsGzip() throws IOException {
+		CodecSelector selector = CodecSelector.withDictionary(50);
+		variants(50, 3).forEach(selector::compress);
+		Assert.assertTrue(selector.hasDictionary());
+		long gzipTotal = 0;
+		long selectedTotal = 0;
+		for (String value : variants(20, 4)) {
+			CacheValue gzipped = CacheValue.uncompressed(value).compress();
+			CacheValue selected = CacheValue.uncompressed(value).compress(selector);
+			Assert.assertTrue(gzipped.isGzipped());
+			Assert.assertFalse(selected.isGzipped());
+			gzipTotal += gzipped.size();
+			selectedTotal += selected.size();
+		}
+		Assert.assertTrue(selectedTotal < gzipTotal * 0.85, "Dictionary: %s, GZIP: %s".formatted(selectedTotal, gzipTotal));
+	}
+
+	/**
+	 * Test that without a dictionary, everything is GZIP, so that it can be served directly
+	 */
+	@Test
+	void testGzipOnly() throws IOException {
+		CodecSelector selector = CodecSelector.gzipOnly();
+		for (String value : variants(5, 5)) {
+			CacheValue compressed = CacheValue.uncompressed(value).compress(selector);
+			Assert.assertTrue(compressed.isGzipped());
+			Assert.assertEquals(CacheValue.uncompressBytesToString(compressed.getCompressed()), value);
+		}
+		Assert.assertFalse(selector.hasDictionary());
+	}
+
+	@Test
+	void testCacheWithDictionary() throws IOException {
+		CodecSelector selector = CodecSelector.withDictionary(10);
+		TinyLfuCacheImpl cache = new TinyLfuCacheImpl(1_000_000, 1000, Runnable::run, selector);
+		List<String> values = variants(30, 6);
+		for (int i = 0; i < values.size(); i++) {
+			cache.set(new UUID(0, i), values.get(i));
+		}
+		Assert.assertTrue(selector.hasDictionary());
+		for (int i = 0; i < values.size(); i++) {
+			Assert.assertEquals(cache.computeIfAbsent(new UUID(0, i), uuid -> null), values.get(i));
+		}
+	}
+}
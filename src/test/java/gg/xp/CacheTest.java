@@ -5,11 +5,17 @@ import org.apache.commons.lang3.StringUtils;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
-public class CacheTest {
+public class CacheTest extends AbstractCacheTest {
+
+	@Override
+	protected Cache newCache() {
+		return new GzipCacheImpl(10_000, 1000);
+	}
 
 	/**
 	 * Test that the cache will be pruned above a certain size after waiting
@@ -58,6 +64,9 @@ public class CacheTest {
 		Thread.sleep(1100);
 		// Now it should be pruned
 		Assert.assertEquals(cache.cacheSize(), 75);
+		Assert.assertEquals(cache.evictionCount(), 75);
+		Assert.assertEquals(cache.missCount(), 150);
+		Assert.assertEquals(cache.hitCount(), 76);
 
 		String firstResultAfter = cache.computeIfAbsent(first, conv);
 		// Value should be same
@@ -102,6 +111,23 @@ public class CacheTest {
 	}
 
 
+	/**
+	 * Test that keys are ranked by how often they are used, then by how recently
+	 */
+	@Test
+	void testHottestKeys() {
+		GzipCacheImpl cache = new GzipCacheImpl(100, 1000);
+		for (int i = 0; i < 5; i++) {
+			cache.set(new UUID(0, i), "value " + i);
+		}
+		cache.getIfPresent(new UUID(0, 3));
+		cache.getIfPresent(new UUID(0, 3));
+		cache.getIfPresent(new UUID(0, 1));
+		cache.getIfPresent(new UUID(0, 4));
+		Assert.assertEquals(cache.hottestKeys(3), List.of(new UUID(0, 3), new UUID(0, 4), new UUID(0, 1)));
+		Assert.assertEquals(cache.hottestKeys(10).size(), 5);
+	}
+
 	@Test
 	void testCacheAfterPassiveSet() {
 		GzipCacheImpl cache = new GzipCacheImpl(100, 1000);
@@ -162,6 +188,10 @@ public class CacheTest {
 		Assert.assertEquals(counter.get(), 1);
 		Assert.assertEquals(result2, input);
 		Assert.assertNotSame(result2, input);
+		// Stored compressed
+		Assert.assertTrue(cache.storedBytes() > 0 && cache.storedBytes() < 1000, "Stored: " + cache.storedBytes());
+		cache.clear();
+		Assert.assertEquals(cache.storedBytes(), 0);
 	}
 
 	/**
@@ -178,12 +208,4 @@ public class CacheTest {
 		Assert.assertEquals(result, input);
 		Assert.assertSame(result, input);
 	}
-
-	@Test
-	void testCacheIgnoresNull() {
-		GzipCacheImpl cache = new GzipCacheImpl(100, 1000);
-		String out = cache.computeIfAbsent(UUID.randomUUID(), ignored -> null);
-		Assert.assertNull(out);
-		Assert.assertEquals(cache.cacheSize(), 0);
-	}
 }
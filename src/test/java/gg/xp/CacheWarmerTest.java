@@ -0,0 +1,147 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CacheWarmerTest {
+
+	/**
+	 * Test that the hottest keys are saved, and loaded into an empty cache on the next start
+	 */
+	@Test
+	void testSnapshotAndWarmUp() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("cache-warmer-test");
+		Path file = dir.resolve("hot-keys");
+		Map<UUID, String> db = new ConcurrentHashMap<>();
+		for (int i = 0; i < 50; i++) {
+			db.put(new UUID(0, i), "value " + i);
+		}
+		FakeDatabase fakeDb = new FakeDatabase(db);
+
+		// No snapshot yet, so ready straight away
+		TinyLfuCacheImpl before = new TinyLfuCacheImpl(1_000_000);
+		CacheWarmer first = new CacheWarmer(before, fakeDb, file, 10, 60_000, 1000, 4);
+		first.start();
+		waitUntilReady(first);
+		Assert.assertEquals(fakeDb.fetches.get(), 0);
+		// Keys 0-9 are used more than the rest, and 0 the most of all
+		for (int i = 0; i < 50; i++) {
+			before.set(new UUID(0, i), db.get(new UUID(0, i)));
+		}
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 10; i++) {
+				before.getIfPresent(new UUID(0, i));
+			}
+			before.getIfPresent(new UUID(0, 0));
+		}
+		first.stop();
+		List<UUID> saved = first.readSnapshot();
+		Assert.assertEquals(saved.size(), 10);
+		Assert.assertEquals(saved.get(0), new UUID(0, 0));
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(saved.contains(new UUID(0, i)), "Missing " + i);
+		}
+
+		// One of them is gone from the database by now
+		db.remove(new UUID(0, 5));
+		TinyLfuCacheImpl after = new TinyLfuCacheImpl(1_000_000);
+		// Already loaded by a real request
+		after.set(new UUID(0, 3), db.get(new UUID(0, 3)));
+		CacheWarmer second = new CacheWarmer(after, fakeDb, file, 10, 60_000, 1000, 4);
+		Assert.assertFalse(second.isReady());
+		second.start();
+		waitUntilReady(second);
+		Assert.assertEquals(fakeDb.fetches.get(), 9);
+		Assert.assertEquals(second.getStatus(), "done (9/10 loaded, 1 failed)");
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(after.contains(new UUID(0, i)), i != 5, "Key " + i);
+		}
+		Assert.assertEquals(after.getIfPresent(new UUID(0, 7)).getValue(), "value 7");
+		second.stop();
+	}
+
+	/**
+	 * Test that warm-up does not go faster than its rate limit
+	 */
+	@Test
+	void testRateLimit() throws IOException, InterruptedException {
+		Path file = Files.createTempDirectory("cache-warmer-test").resolve("hot-keys");
+		Map<UUID, String> db = new ConcurrentHashMap<>();
+		TinyLfuCacheImpl before = new TinyLfuCacheImpl(1_000_000);
+		for (int i = 0; i < 20; i++) {
+			db.put(new UUID(1, i), "value " + i);
+			before.set(new UUID(1, i), "value " + i);
+		}
+		new CacheWarmer(before, new FakeDatabase(db), file, 100, 60_000, 100, 4).snapshot();
+
+		CacheWarmer warmer = new CacheWarmer(new TinyLfuCacheImpl(1_000_000), new FakeDatabase(db), file, 100, 60_000, 100, 4);
+		long start = System.nanoTime();
+		warmer.start();
+		waitUntilReady(warmer);
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+		// 20 fetches at 100 per second
+		Assert.assertTrue(elapsedMs >= 180, "Too fast: " + elapsedMs + "ms");
+		warmer.stop();
+	}
+
+	/**
+	 * Test that a missing or corrupt snapshot is ignored
+	 */
+	@Test
+	void testBadSnapshot() throws IOException, InterruptedException {
+		Path file = Files.createTempDirectory("cache-warmer-test").resolve("hot-keys");
+		FakeDatabase db = new FakeDatabase(Map.of());
+		CacheWarmer warmer = new CacheWarmer(new TinyLfuCacheImpl(1_000_000), db, file, 100, 60_000, 100, 4);
+		Assert.assertEquals(warmer.readSnapshot(), List.of());
+		Files.writeString(file, "not a snapshot");
+		Assert.assertEquals(warmer.readSnapshot(), List.of());
+		warmer.start();
+		waitUntilReady(warmer);
+		Assert.assertEquals(db.fetches.get(), 0);
+		warmer.stop();
+
+		CacheWarmer disabled = new CacheWarmer(new TinyLfuCacheImpl(1_000_000), db, null, 100, 60_000, 100, 4);
+		Assert.assertTrue(disabled.isReady());
+		Assert.assertEquals(disabled.getStatus(), "disabled");
+	}
+
+	private static void waitUntilReady(CacheWarmer warmer) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!warmer.isReady()) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline, "Warm-up did not finish");
+			Thread.sleep(5);
+		}
+	}
+
+	private static final class FakeDatabase implements AsyncDatabase {
+		private final Map<UUID, String> values;
+		final AtomicInteger fetches = new AtomicInteger();
+
+		FakeDatabase(Map<UUID, String> values) {
+			this.values = values;
+		}
+
+		@Override
+		public CompletableFuture<@Nullable String> getShortlinkAsync(UUID uuid) {
+			fetches.incrementAndGet();
+			// Complete later, like a real database would
+			return CompletableFuture.supplyAsync(() -> values.get(uuid));
+		}
+
+		@Override
+		public CompletableFuture<Void> putShortLinkAsync(UUID uuid, String payload) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package gg.xp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of compressing and decompressing cache entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({"/test_sheet.json", "/test_set.json"})
+	public String payload;
+
+	private String uncompressed;
+	private byte[] compressed;
+
+	@Setup
+	public void setup() {
+		uncompressed = BenchmarkData.load(payload);
+		compressed = CacheValue.compressStringToBytes(uncompressed);
+	}
+
+	@Benchmark
+	public byte[] compress() {
+		return CacheValue.compressStringToBytes(uncompressed);
+	}
+
+	@Benchmark
+	public String uncompress() {
+		return CacheValue.uncompressBytesToString(compressed);
+	}
+
+	@Benchmark
+	public CacheValue newCacheValue() {
+		return new CacheValue(uncompressed);
+	}
+}
@@ -0,0 +1,148 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DiskCacheDatabaseTest {
+
+	private static final class FakeDb implements Database {
+		final Map<UUID, String> backing = new ConcurrentHashMap<>();
+		final AtomicInteger reads = new AtomicInteger();
+
+		@Override
+		public @Nullable String getShortlink(UUID uuid) {
+			reads.incrementAndGet();
+			return backing.get(uuid);
+		}
+
+		@Override
+		public void putShortLink(UUID uuid, String payload) {
+			backing.put(uuid, payload);
+		}
+	}
+
+	private static final Random random = new Random(1234);
+
+	// About 1000 characters which don't compress well
+	private static String randomPayload() {
+		byte[] bytes = new byte[750];
+		random.nextBytes(bytes);
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+
+	/**
+	 * Test that links read from the real database are served from disk afterwards, including after a restart
+	 */
+	@Test
+	void testSurvivesRestart() throws IOException {
+		Path dir = Files.createTempDirectory("disk-cache-test");
+		FakeDb fake = new FakeDb();
+		UUID uuid = UUID.randomUUID();
+		String payload = randomPayload();
+		fake.backing.put(uuid, payload);
+
+		DiskCacheDatabase db = new DiskCacheDatabase(fake, dir, 1024 * 1024);
+		db.start();
+		Assert.assertEquals(db.getShortlink(uuid), payload);
+		Assert.assertEquals(fake.reads.get(), 1);
+		Assert.assertEquals(db.getShortlink(uuid), payload);
+		Assert.assertEquals(fake.reads.get(), 1);
+		UUID written = UUID.randomUUID();
+		String writtenPayload = randomPayload();
+		db.putShortLink(written, writtenPayload);
+		db.stop();
+
+		DiskCacheDatabase restarted = new DiskCacheDatabase(fake, dir, 1024 * 1024);
+		restarted.start();
+		Assert.assertEquals(restarted.cachedCount(), 2);
+		Assert.assertEquals(restarted.getShortlink(uuid), payload);
+		Assert.assertEquals(restarted.getShortlink(written), writtenPayload);
+		Assert.assertEquals(fake.reads.get(), 1);
+		Assert.assertEquals(restarted.hitCount(), 2);
+		restarted.stop();
+	}
+
+	/**
+	 * Test that a corrupted record is ignored when the index is rebuilt, and the real database is used instead
+	 */
+	@Test
+	void testCorruptRecordIgnored() throws IOException {
+		Path dir = Files.createTempDirectory("disk-cache-test");
+		FakeDb fake = new FakeDb();
+		DiskCacheDatabase db = new DiskCacheDatabase(fake, dir, 1024 * 1024);
+		db.start();
+		UUID first = UUID.randomUUID();
+		UUID second = UUID.randomUUID();
+		db.putShortLink(first, randomPayload());
+		db.putShortLink(second, randomPayload());
+		db.stop();
+
+		// Flip a byte in the payload of the second record
+		try (RandomAccessFile file = new RandomAccessFile(dir.resolve("cache-0.seg").toFile(), "rw")) {
+			file.seek(4);
+			long secondRecord = 24 + file.readInt();
+			file.seek(secondRecord + 100);
+			int b = file.read();
+			file.seek(secondRecord + 100);
+			file.write(b ^ 0xFF);
+		}
+
+		DiskCacheDatabase restarted = new DiskCacheDatabase(fake, dir, 1024 * 1024);
+		restarted.start();
+		Assert.assertEquals(restarted.cachedCount(), 1);
+		Assert.assertEquals(restarted.getShortlink(first), fake.backing.get(first));
+		Assert.assertEquals(fake.reads.get(), 0);
+		Assert.assertEquals(restarted.getShortlink(second), fake.backing.get(second));
+		Assert.assertEquals(fake.reads.get(), 1);
+		restarted.stop();
+	}
+
+	/**
+	 * Test that compaction keeps the size bounded, and keeps entries which are being read
+	 */
+	@Test
+	void testCompaction() throws IOException {
+		Path dir = Files.createTempDirectory("disk-cache-test");
+		FakeDb fake = new FakeDb();
+		long maxBytes = 256 * 1024;
+		DiskCacheDatabase db = new DiskCacheDatabase(fake, dir, maxBytes);
+		db.start();
+		List<UUID> popular = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			UUID uuid = UUID.randomUUID();
+			popular.add(uuid);
+			db.putShortLink(uuid, randomPayload());
+		}
+		for (int i = 0; i < 1000; i++) {
+			if (i % 50 == 0) {
+				popular.forEach(db::getShortlink);
+			}
+			db.putShortLink(UUID.randomUUID(), randomPayload());
+		}
+		Assert.assertEquals(fake.reads.get(), 0);
+		Assert.assertTrue(db.evictionCount() > 500, "Evictions: " + db.evictionCount());
+		Assert.assertTrue(db.cachedCount() < 400, "Entries: " + db.cachedCount());
+		try (var files = Files.list(dir)) {
+			long onDisk = files.mapToLong(f -> f.toFile().length()).sum();
+			// One segment of slack, since the size is only checked after appending
+			Assert.assertTrue(onDisk <= maxBytes + maxBytes / 4, "On disk: " + onDisk);
+		}
+		popular.forEach(db::getShortlink);
+		Assert.assertEquals(fake.reads.get(), 0);
+		db.stop();
+	}
+}
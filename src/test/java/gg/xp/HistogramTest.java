@@ -0,0 +1,62 @@
+package gg.xp;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HistogramTest {
+
+	/**
+	 * Test that every value lands in a bucket which contains it, and that buckets are contiguous
+	 */
+	@Test
+	void testBuckets() {
+		long previousUpper = 0;
+		for (long micros = 0; micros < 1_000_000; micros++) {
+			int index = Histogram.indexFor(micros);
+			Assert.assertTrue(micros < Histogram.upperBoundMicros(index), "Value " + micros + " index " + index);
+			if (index > 0) {
+				Assert.assertTrue(micros >= Histogram.upperBoundMicros(index - 1), "Value " + micros + " index " + index);
+			}
+			long upper = Histogram.upperBoundMicros(index);
+			Assert.assertTrue(upper >= previousUpper);
+			previousUpper = upper;
+		}
+		// Clamped rather than out of range
+		Assert.assertEquals(Histogram.indexFor(Long.MAX_VALUE), Histogram.indexFor(1L << 40));
+	}
+
+	@Test
+	void testPercentiles() {
+		Histogram histogram = new Histogram();
+		Assert.assertEquals(histogram.valueAtPercentile(0.5), 0);
+		// 1ms to 100ms
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1_000_000L);
+		}
+		Assert.assertEquals(histogram.count(), 100);
+		Assert.assertEquals(histogram.sumNanos(), 5050 * 1_000_000L);
+		long median = histogram.valueAtPercentile(0.5);
+		Assert.assertTrue(median >= 50_000_000 && median <= 50_000_000 * 1.25, "Median: " + median);
+		long p99 = histogram.valueAtPercentile(0.99);
+		Assert.assertTrue(p99 >= 99_000_000 && p99 <= 99_000_000 * 1.25, "p99: " + p99);
+	}
+
+	@Test
+	void testPrometheusFormat() {
+		Histogram histogram = new Histogram();
+		histogram.record(100_000);
+		histogram.record(3_000_000);
+		histogram.record(100_000_000_000L);
+		StringBuilder out = new StringBuilder();
+		histogram.writePrometheus(out, "foo_seconds", "route=\"/x/\"");
+		String text = out.toString();
+		// 100us is under 128us, 3ms is under 4.096ms, 100s is over every bound
+		Assert.assertTrue(text.contains("foo_seconds_bucket{route=\"/x/\",le=\"6.4E-5\"} 0\n"), text);
+		Assert.assertTrue(text.contains("foo_seconds_bucket{route=\"/x/\",le=\"1.28E-4\"} 1\n"), text);
+		Assert.assertTrue(text.contains("foo_seconds_bucket{route=\"/x/\",le=\"0.004096\"} 2\n"), text);
+		Assert.assertTrue(text.contains("foo_seconds_bucket{route=\"/x/\",le=\"33.554432\"} 2\n"), text);
+		Assert.assertTrue(text.contains("foo_seconds_bucket{route=\"/x/\",le=\"+Inf\"} 3\n"), text);
+		Assert.assertTrue(text.contains("foo_seconds_sum{route=\"/x/\"} 100.0031\n"), text);
+		Assert.assertTrue(text.contains("foo_seconds_count{route=\"/x/\"} 3\n"), text);
+	}
+}
@@ -0,0 +1,131 @@
+package gg.xp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gg.xp.handlers.PrometheusMetrics;
+import gg.xp.handlers.Share;
+import gg.xp.handlers.SharePages;
+import gg.xp.handlers.Shortlink;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.picocontainer.MutablePicoContainer;
+import org.picocontainer.PicoBuilder;
+import org.picocontainer.lifecycle.StartableLifecycleStrategy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end GETs against an in-process server, backed by an in-memory database, with each HTTP engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dport=8086")
+public class HttpGetBenchmark {
+
+	@Param({"jdk", "nio"})
+	public String engine;
+
+	private MutablePicoContainer pico;
+	private HttpClient http;
+	private TinyLfuCacheImpl cache;
+	private HttpRequest getPlain;
+	private HttpRequest getGzip;
+	private HttpRequest getShare;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		System.setProperty("httpEngine", engine);
+		pico = new PicoBuilder().withCaching().withLifecycle(StartableLifecycleStrategy.class).withAutomatic().build();
+		Config config = new Config();
+		pico.addComponent(config);
+		pico.addComponent(Server.class);
+		pico.addComponent(Metrics.class);
+		pico.addComponent(PrometheusMetrics.class);
+		cache = new TinyLfuCacheImpl(64L * 1024 * 1024);
+		pico.addComponent(cache);
+		Map<UUID, String> backing = new ConcurrentHashMap<>();
+		pico.addComponent(new Database() {
+			@Override
+			public @Nullable String getShortlink(UUID uuid) {
+				return backing.get(uuid);
+			}
+
+			@Override
+			public void putShortLink(UUID uuid, String payload) {
+				backing.put(uuid, payload);
+			}
+		});
+		pico.addComponent(DedupIndex.class);
+		pico.addComponent(SharePages.class);
+		pico.addComponent(AsyncCacheAdapter.class);
+		pico.addComponent(BlockingDatabaseAdapter.class);
+		pico.addComponent(Shortlink.class);
+		pico.addComponent(Share.class);
+		pico.addComponent(Stats.class);
+		pico.addComponent(new ObjectMapper());
+		pico.getComponents();
+		pico.start();
+
+		String base = "http://localhost:" + config.getRequired(Integer.class, "port");
+		http = HttpClient.newBuilder().build();
+		String uuid = http.send(HttpRequest.newBuilder(URI.create(base + "/shortlink/"))
+				.POST(HttpRequest.BodyPublishers.ofString(BenchmarkData.load("/test_sheet.json"))).build(), HttpResponse.BodyHandlers.ofString()).body();
+		getPlain = HttpRequest.newBuilder(URI.create(base + "/shortlink/" + uuid)).GET().build();
+		getGzip = HttpRequest.newBuilder(URI.create(base + "/shortlink/" + uuid)).header("Accept-Encoding", "gzip").GET().build();
+		getShare = HttpRequest.newBuilder(URI.create(base + "/share/" + uuid)).GET().build();
+	}
+
+	@TearDown
+	public void tearDown() {
+		pico.stop();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] getHit() throws IOException, InterruptedException {
+		return http.send(getPlain, HttpResponse.BodyHandlers.ofByteArray()).body();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] getHitGzip() throws IOException, InterruptedException {
+		return http.send(getGzip, HttpResponse.BodyHandlers.ofByteArray()).body();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] getShare() throws IOException, InterruptedException {
+		return http.send(getShare, HttpResponse.BodyHandlers.ofByteArray()).body();
+	}
+
+	/**
+	 * Every request misses the cache and goes to the (in-memory) database
+	 */
+	@Benchmark
+	public byte[] getMiss() throws IOException, InterruptedException {
+		cache.clear();
+		return http.send(getPlain, HttpResponse.BodyHandlers.ofByteArray()).body();
+	}
+}
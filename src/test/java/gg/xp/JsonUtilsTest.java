@@ -0,0 +1,87 @@
+package gg.xp;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gg.xp.util.JsonUtils;
+import gg.xp.util.JsonUtils.ScannedPayload;
+import gg.xp.util.JsonUtils.ShareMetadata;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+public class JsonUtilsTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static ScannedPayload scan(String json) throws IOException {
+		return JsonUtils.scan(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void minifiesLikeTree() throws IOException {
+		for (String resource : new String[]{"/test_sheet.json", "/test_set.json"}) {
+			byte[] bytes = Objects.requireNonNull(JsonUtilsTest.class.getResourceAsStream(resource)).readAllBytes();
+			ScannedPayload scanned = JsonUtils.scan(bytes);
+			Assert.assertEquals(scanned.minifiedString(), mapper.readTree(bytes).toString());
+			Assert.assertEquals(scanned.name(), mapper.readTree(bytes).at("/name").textValue());
+			Assert.assertEquals(scanned.description(), mapper.readTree(bytes).at("/description").textValue());
+		}
+		Assert.assertEquals(scan(" { \"a\" : [ 1 , 2.50 , \"x y\" ] } ").minifiedString(), "{\"a\":[1,2.5,\"x y\"]}");
+	}
+
+	@Test
+	void canonicalDigest() throws IOException {
+		byte[] digest = scan("{\"a\":1,\"b\":{\"c\":[true,null,2.5],\"d\":\"e\"}}").digest();
+		// Formatting, field order and number formatting do not matter
+		Assert.assertEquals(scan("{ \"b\": {\"d\": \"e\", \"c\": [true, null, 2.50]}, \"a\": 1 }").digest(), digest);
+		// Array order, values and structure do
+		Assert.assertNotEquals(scan("{\"a\":1,\"b\":{\"c\":[null,true,2.5],\"d\":\"e\"}}").digest(), digest);
+		Assert.assertNotEquals(scan("{\"a\":1,\"b\":{\"c\":[true,null,2.5],\"d\":\"f\"}}").digest(), digest);
+		Assert.assertNotEquals(scan("{\"a\":1,\"b\":{\"c\":[true,null,2.5]},\"d\":\"e\"}").digest(), digest);
+		Assert.assertNotEquals(scan("{\"a\":\"1\",\"b\":{\"c\":[true,null,2.5],\"d\":\"e\"}}").digest(), digest);
+		// Integers and floats are stored differently, so they don't match either
+		Assert.assertNotEquals(scan("{\"a\":1.0,\"b\":{\"c\":[true,null,2.5],\"d\":\"e\"}}").digest(), digest);
+		// Same digest means the same stored text
+		Assert.assertEquals(scan("[1.0, 2.50, 1e2]").minifiedString(), scan("[1.00,2.5,100.0]").minifiedString());
+		Assert.assertEquals(scan("[1.0, 2.50, 1e2]").digest(), scan("[1.00,2.5,100.0]").digest());
+	}
+
+	@Test
+	void onlyTopLevelMetadata() throws IOException {
+		ScannedPayload scanned = scan("{\"sets\":[{\"name\":\"inner\"}],\"description\":{\"name\":\"x\"},\"name\":\"outer\"}");
+		Assert.assertEquals(scanned.name(), "outer");
+		Assert.assertNull(scanned.description());
+		ShareMetadata metadata = JsonUtils.readShareMetadata(scanned.minifiedString());
+		Assert.assertEquals(metadata.name(), "outer");
+		Assert.assertNull(metadata.description());
+		Assert.assertEquals(JsonUtils.readShareMetadata("[\"name\"]"), new ShareMetadata(null, null));
+	}
+
+	@Test
+	void rejectsInvalid() {
+		Assert.assertThrows(JsonProcessingException.class, () -> scan(""));
+		Assert.assertThrows(JsonProcessingException.class, () -> scan("{\"a\":1"));
+		Assert.assertThrows(JsonProcessingException.class, () -> scan("{\"a\":1}}"));
+		Assert.assertThrows(JsonProcessingException.class, () -> scan("{\"a\":1} {}"));
+		Assert.assertThrows(JsonProcessingException.class, () -> scan("{a:1}"));
+	}
+
+	@Test
+	void stringArray() throws IOException {
+		Assert.assertEquals(readStringArray("[\"a\", \"b\"]"), List.of("a", "b"));
+		Assert.assertEquals(readStringArray("[]"), List.of());
+		Assert.assertThrows(JsonProcessingException.class, () -> readStringArray("[\"a\", 1]"));
+		Assert.assertThrows(JsonProcessingException.class, () -> readStringArray("{\"a\": \"b\"}"));
+		Assert.assertThrows(JsonProcessingException.class, () -> readStringArray("[\"a\""));
+		Assert.assertThrows(JsonProcessingException.class, () -> readStringArray("[] []"));
+	}
+
+	private static List<String> readStringArray(String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		return JsonUtils.readStringArray(bytes, 0, bytes.length);
+	}
+}
@@ -0,0 +1,148 @@
+package gg.xp;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class LocalDatabaseTest {
+
+	/**
+	 * Test that everything written is still there after a restart, across several segments, and nothing is evicted
+	 */
+	@Test
+	void testSurvivesRestart() throws IOException {
+		Path dir = Files.createTempDirectory("local-db-test");
+		List<UUID> uuids = new ArrayList<>();
+		LocalDatabase db = new LocalDatabase(dir, 64 * 1024, true);
+		db.start();
+		Assert.assertNull(db.getShortlink(UUID.randomUUID()));
+		try (ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < 2000; i++) {
+				UUID uuid = UUID.randomUUID();
+				uuids.add(uuid);
+				String payload = "{\"link\":\"" + uuid + "\"}";
+				exec.submit(() -> db.putShortLink(uuid, payload));
+			}
+		}
+		Assert.assertEquals(db.size(), 2000);
+		db.stop();
+		try (var files = Files.list(dir)) {
+			Assert.assertTrue(files.count() > 1, "Expected more than one segment");
+		}
+
+		LocalDatabase reopened = new LocalDatabase(dir, 64 * 1024, true);
+		reopened.start();
+		Assert.assertEquals(reopened.size(), 2000);
+		for (UUID uuid : uuids) {
+			Assert.assertEquals(reopened.getShortlink(uuid), "{\"link\":\"" + uuid + "\"}");
+		}
+		reopened.stop();
+	}
+
+	/**
+	 * Test that a torn write at the end of the log is ignored, and that writing continues after it
+	 */
+	@Test
+	void testTornWrite() throws IOException {
+		Path dir = Files.createTempDirectory("local-db-test");
+		LocalDatabase db = new LocalDatabase(dir, 64 * 1024, false);
+		db.start();
+		UUID first = UUID.randomUUID();
+		UUID second = UUID.randomUUID();
+		db.putShortLink(first, "first");
+		db.putShortLink(second, "second");
+		db.stop();
+
+		// Damage the end of the second record, as if the process died while writing it
+		Path segment = dir.resolve("cache-0.seg");
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.seek(4);
+			int firstLength = file.readInt();
+			long secondRecord = 24 + firstLength;
+			file.seek(secondRecord + 4);
+			int secondLength = file.readInt();
+			long lastByte = secondRecord + 24 + secondLength - 1;
+			file.seek(lastByte);
+			int value = file.read();
+			file.seek(lastByte);
+			file.write(value ^ 0xFF);
+		}
+
+		LocalDatabase reopened = new LocalDatabase(dir, 64 * 1024, false);
+		reopened.start();
+		Assert.assertEquals(reopened.getShortlink(first), "first");
+		Assert.assertNull(reopened.getShortlink(second));
+		reopened.putShortLink(second, "second again");
+		reopened.stop();
+
+		reopened = new LocalDatabase(dir, 64 * 1024, false);
+		reopened.start();
+		Assert.assertEquals(reopened.getShortlink(first), "first");
+		Assert.assertEquals(reopened.getShortlink(second), "second again");
+		reopened.stop();
+	}
+
+	/**
+	 * Test that a write is not acknowledged while an earlier record is still waiting to be forced to disk, since
+	 * losing that one would also lose everything after it
+	 */
+	@Test
+	void testFlushesInOrder() throws Exception {
+		Path dir = Files.createTempDirectory("local-db-test");
+		CountDownLatch forcing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicBoolean first = new AtomicBoolean(true);
+		List<int[]> forced = new CopyOnWriteArrayList<>();
+		SegmentFileStore store = new SegmentFileStore(dir, 64 * 1024, Long.MAX_VALUE, true, (buffer, offset, length) -> {
+			if (first.getAndSet(false)) {
+				forcing.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			forced.add(new int[]{offset, offset + length});
+		});
+		store.open();
+		UUID earlier = UUID.randomUUID();
+		UUID later = UUID.randomUUID();
+		try (ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor()) {
+			Future<?> writeEarlier = exec.submit(() -> store.put(earlier, "earlier"));
+			Assert.assertTrue(forcing.await(5, TimeUnit.SECONDS));
+			// The earlier record is written, but not on disk yet
+			Future<?> writeLater = exec.submit(() -> store.put(later, "later"));
+			Future<?> writeEarlierAgain = exec.submit(() -> store.put(earlier, "earlier"));
+			Thread.sleep(200);
+			Assert.assertFalse(writeLater.isDone());
+			Assert.assertFalse(writeEarlierAgain.isDone());
+			release.countDown();
+			writeEarlier.get();
+			writeLater.get();
+			writeEarlierAgain.get();
+		}
+		// Forced from the start of the segment, with no gaps, up to the end of both records
+		int end = 0;
+		for (int[] range : forced) {
+			Assert.assertEquals(range[0], end);
+			end = range[1];
+		}
+		Assert.assertEquals(end, store.totalBytes());
+		store.close();
+	}
+}
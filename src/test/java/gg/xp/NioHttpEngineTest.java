@@ -0,0 +1,256 @@
+package gg.xp;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class NioHttpEngineTest {
+
+	private NioHttpEngine engine;
+	private int port;
+
+	private record Response(int status, Map<String, String> headers, String body) {
+	}
+
+	@BeforeClass
+	void setup() throws IOException {
+		engine = new NioHttpEngine(new InetSocketAddress("localhost", 0), 16, 4, 1000, 5, command -> Thread.ofVirtual().start(command));
+		engine.createContext("/", exchange -> exchange.sendResponseHeaders(404, -1));
+		engine.createContext("/echo/", exchange -> {
+			byte[] body = exchange.getRequestBody().readAllBytes();
+			byte[] response = "%s %s %s".formatted(exchange.getRequestMethod(), exchange.getRequestURI(), new String(body, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "text/plain");
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		});
+		engine.createContext("/chunked/", exchange -> {
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write("hello ".getBytes(StandardCharsets.UTF_8));
+				out.flush();
+				// Bigger than the response buffer
+				out.write("x".repeat(40_000).getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		engine.createContext("/nothing/", exchange -> {
+		});
+		engine.start();
+		port = engine.getAddress().getPort();
+	}
+
+	@AfterClass
+	void shutdown() {
+		engine.stop(1);
+	}
+
+	@Test
+	void keepAliveAndPipelining() throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			// Three requests in one go, which must be answered in order, on the same connection
+			socket.getOutputStream().write(("GET /echo/a HTTP/1.1\r\nHost: x\r\n\r\n"
+					+ "POST /echo/b?c=d HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello"
+					+ "GET /missing HTTP/1.1\r\nHost: x\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Response first = readResponse(in);
+			Assert.assertEquals(first.status, 200);
+			Assert.assertEquals(first.body, "GET /echo/a ");
+			Assert.assertEquals(first.headers.get("content-type"), "text/plain");
+			Response second = readResponse(in);
+			Assert.assertEquals(second.body, "POST /echo/b?c=d hello");
+			Response third = readResponse(in);
+			Assert.assertEquals(third.status, 404);
+			// Still usable afterwards
+			socket.getOutputStream().write("GET /echo/again HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			Assert.assertEquals(readResponse(in).body, "GET /echo/again ");
+		}
+	}
+
+	@Test
+	void chunked() throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.getOutputStream().write(("POST /echo/ HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n"
+					+ "3\r\nabc\r\n4;ext=1\r\ndefg\r\n0\r\nTrailer: x\r\n\r\n"
+					+ "GET /chunked/ HTTP/1.1\r\nHost: x\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Assert.assertEquals(readResponse(in).body, "POST /echo/ abcdefg");
+			Response chunked = readResponse(in);
+			Assert.assertEquals(chunked.headers.get("transfer-encoding"), "chunked");
+			Assert.assertEquals(chunked.body, "hello " + "x".repeat(40_000));
+		}
+	}
+
+	@Test
+	void closing() throws IOException {
+		// HTTP/1.0 closes unless asked not to
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.getOutputStream().write("GET /echo/ HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Response response = readResponse(in);
+			Assert.assertEquals(response.headers.get("connection"), "close");
+			Assert.assertEquals(in.read(), -1);
+		}
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.getOutputStream().write("GET /echo/ HTTP/1.1\r\nConnection: close\r\n\r\nGET /echo/ HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Assert.assertEquals(readResponse(in).status, 200);
+			Assert.assertEquals(in.read(), -1);
+		}
+		// A handler which does not respond gets a 500, and the connection is closed
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.getOutputStream().write("GET /nothing/ HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Assert.assertEquals(readResponse(in).status, 500);
+			Assert.assertEquals(in.read(), -1);
+		}
+	}
+
+	@Test
+	void badRequests() throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.getOutputStream().write("POST /echo/ HTTP/1.1\r\nContent-Length: 1001\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Assert.assertEquals(readResponse(in).status, 413);
+			Assert.assertEquals(in.read(), -1);
+		}
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.getOutputStream().write("nonsense\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Assert.assertEquals(readResponse(in).status, 400);
+		}
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.getOutputStream().write("GET / HTTP/2.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Assert.assertEquals(readResponse(in).status, 505);
+		}
+		// Chunk sizes which would overflow an int once added up
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.getOutputStream().write("POST /echo/ HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n1\r\na\r\n7fffffff\r\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Assert.assertEquals(readResponse(in).status, 413);
+			Assert.assertEquals(in.read(), -1);
+		}
+	}
+
+	/**
+	 * Test that a client can't hold a connection open by sending its request one byte at a time
+	 */
+	@Test
+	void slowSender() throws Exception {
+		NioHttpEngine slowEngine = new NioHttpEngine(new InetSocketAddress("localhost", 0), 16, 4, 1000, 1, command -> Thread.ofVirtual().start(command));
+		slowEngine.start();
+		try (Socket socket = new Socket("localhost", slowEngine.getAddress().getPort())) {
+			socket.setSoTimeout(10_000);
+			OutputStream out = socket.getOutputStream();
+			Thread trickle = Thread.ofVirtual().start(() -> {
+				try {
+					for (byte b : "GET /echo/ HTTP/1.1\r\nX-Slow: ".getBytes(StandardCharsets.US_ASCII)) {
+						out.write(b);
+						out.flush();
+						Thread.sleep(200);
+					}
+				}
+				catch (IOException | InterruptedException ignored) {
+					// Closed by the server, as expected
+				}
+			});
+			long start = System.nanoTime();
+			try {
+				Assert.assertEquals(socket.getInputStream().read(), -1);
+			}
+			catch (SocketException ignored) {
+				// Reset, also fine
+			}
+			long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+			// The whole request would take about 6 seconds to send
+			Assert.assertTrue(seconds < 4, "Closed after " + seconds + "s");
+			trickle.interrupt();
+			trickle.join();
+		}
+		finally {
+			slowEngine.stop(0);
+		}
+	}
+
+	@Test
+	void expectContinue() throws IOException {
+		try (Socket socket = new Socket("localhost", port)) {
+			OutputStream out = socket.getOutputStream();
+			out.write("POST /echo/ HTTP/1.1\r\nContent-Length: 2\r\nExpect: 100-continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			InputStream in = socket.getInputStream();
+			Assert.assertEquals(readResponse(in).status, 100);
+			out.write("hi".getBytes(StandardCharsets.US_ASCII));
+			Assert.assertEquals(readResponse(in).body, "POST /echo/ hi");
+		}
+	}
+
+	@Test
+	void httpClient() throws Exception {
+		HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		for (int i = 0; i < 10; i++) {
+			var response = http.send(HttpRequest.newBuilder(new URI("http://localhost:%d/echo/%d".formatted(port, i))).POST(HttpRequest.BodyPublishers.ofString("body")).build(), HttpResponse.BodyHandlers.ofString());
+			Assert.assertEquals(response.statusCode(), 200);
+			Assert.assertEquals(response.body(), "POST /echo/%d body".formatted(i));
+		}
+		var head = http.send(HttpRequest.newBuilder(new URI("http://localhost:%d/echo/".formatted(port))).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(head.statusCode(), 200);
+		Assert.assertEquals(head.body(), "");
+	}
+
+	private static Response readResponse(InputStream in) throws IOException {
+		String statusLine = readLine(in);
+		int status = Integer.parseInt(statusLine.split(" ")[1]);
+		Map<String, String> headers = new LinkedHashMap<>();
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			headers.put(line.substring(0, colon).toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if ("chunked".equals(headers.get("transfer-encoding"))) {
+			int size;
+			while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+				body.write(in.readNBytes(size));
+				readLine(in);
+			}
+			readLine(in);
+		}
+		else if (headers.containsKey("content-length")) {
+			body.write(in.readNBytes(Integer.parseInt(headers.get("content-length"))));
+		}
+		return new Response(status, headers, body.toString(StandardCharsets.UTF_8));
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new IOException("Connection closed");
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+}
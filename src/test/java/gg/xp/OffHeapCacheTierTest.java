@@ -0,0 +1,87 @@
+package gg.xp;
+
+import org.apache.commons.lang3.StringUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class OffHeapCacheTierTest {
+
+	/**
+	 * Test that both compressed and uncompressed values come back out the same
+	 */
+	@Test
+	void testRoundTrip() {
+		OffHeapCacheTier tier = new OffHeapCacheTier(1024 * 1024);
+		String compressible = StringUtils.repeat("foo bar ", 1000);
+		String incompressible = UUID.randomUUID().toString();
+		CacheValue compressed = CacheValue.uncompressed(compressible).compress();
+		Assert.assertTrue(compressed.isCompressed());
+		tier.put(new UUID(0, 1), compressed);
+		tier.put(new UUID(0, 2), CacheValue.uncompressed(incompressible));
+
+		CacheValue out1 = tier.get(new UUID(0, 1));
+		Assert.assertNotNull(out1);
+		Assert.assertTrue(out1.isGzipped());
+		Assert.assertEquals(out1.getValue(), compressible);
+		CacheValue out2 = tier.get(new UUID(0, 2));
+		Assert.assertNotNull(out2);
+		Assert.assertFalse(out2.isCompressed());
+		Assert.assertEquals(out2.getValue(), incompressible);
+		Assert.assertNull(tier.get(new UUID(0, 3)));
+
+		Assert.assertEquals(tier.size(), 2);
+		Assert.assertEquals(tier.hitCount(), 2);
+		Assert.assertEquals(tier.missCount(), 1);
+		Assert.assertEquals(tier.evictionCount(), 0);
+	}
+
+	/**
+	 * Test that the oldest entries are evicted once the tier is full, and that the memory used stays bounded
+	 */
+	@Test
+	void testEviction() {
+		// Two segments of 4000 bytes, each record is 21 + 36 bytes, so 70 per segment
+		OffHeapCacheTier tier = new OffHeapCacheTier(8000);
+		for (int i = 0; i < 1000; i++) {
+			tier.put(new UUID(0, i), CacheValue.uncompressed(new UUID(i, i).toString()));
+		}
+		Assert.assertTrue(tier.size() <= 140, "Too many entries: " + tier.size());
+		Assert.assertTrue(tier.size() >= 70, "Too few entries: " + tier.size());
+		Assert.assertEquals(tier.evictionCount(), 1000 - tier.size());
+		Assert.assertEquals(tier.allocatedBytes(), 8000);
+		// Newest is still there, oldest is gone
+		Assert.assertEquals(tier.get(new UUID(0, 999)).getValue(), new UUID(999, 999).toString());
+		Assert.assertNull(tier.get(new UUID(0, 0)));
+	}
+
+	/**
+	 * Test that entries evicted from the on-heap tier are served from the off-heap tier without hitting the database
+	 */
+	@Test
+	void testTieredFallback() {
+		TinyLfuCacheImpl hot = new TinyLfuCacheImpl(2_000, 50, Runnable::run);
+		OffHeapCacheTier cold = new OffHeapCacheTier(1024 * 1024);
+		TieredCache cache = new TieredCache(hot, cold);
+		AtomicInteger counter = new AtomicInteger();
+		Function<UUID, String> conv = uuid -> {
+			counter.incrementAndGet();
+			return uuid.toString();
+		};
+		for (int i = 0; i < 500; i++) {
+			cache.computeIfAbsent(new UUID(0, i), conv);
+		}
+		Assert.assertEquals(counter.get(), 500);
+		Assert.assertTrue(hot.evictionCount() > 400, "Expected most entries to be evicted from the hot tier");
+		Assert.assertEquals(cold.size(), hot.evictionCount());
+
+		for (int i = 0; i < 500; i++) {
+			Assert.assertEquals(cache.computeIfAbsent(new UUID(0, i), conv), new UUID(0, i).toString());
+		}
+		Assert.assertEquals(counter.get(), 500);
+		Assert.assertTrue(cold.hitCount() > 400);
+	}
+}
@@ -0,0 +1,185 @@
+package gg.xp;
+
+import gg.xp.handlers.PeerCacheEndpoint;
+import gg.xp.handlers.SharePages;
+import gg.xp.handlers.Shortlink;
+import org.jetbrains.annotations.Nullable;
+import org.picocontainer.MutablePicoContainer;
+import org.picocontainer.PicoBuilder;
+import org.picocontainer.lifecycle.StartableLifecycleStrategy;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_OK;
+
+/**
+ * Two servers sharing a cache, plus a third peer which is never up. Single threaded, since the tests count database
+ * reads on shared servers.
+ */
+@Test(singleThreaded = true)
+public class PeerCacheTest {
+
+	private static final String A = "http://localhost:8186";
+	private static final String B = "http://localhost:8187";
+	private static final String DEAD = "http://localhost:8188";
+	private static final String SECRET = "test-secret";
+
+	private final Map<UUID, String> backing = new ConcurrentHashMap<>();
+	private final HttpClient http = HttpClient.newHttpClient();
+	private Node nodeA;
+	private Node nodeB;
+
+	private record Node(MutablePicoContainer pico, TinyLfuCacheImpl cache, PeerCache peers, AtomicInteger dbReads) {
+	}
+
+	@BeforeClass
+	void setup() {
+		nodeA = startNode(A, 8186);
+		nodeB = startNode(B, 8187);
+	}
+
+	@AfterClass
+	void shutdown() {
+		nodeA.pico.stop();
+		nodeB.pico.stop();
+	}
+
+	private Node startNode(String self, int port) {
+		MutablePicoContainer pico = new PicoBuilder().withCaching().withLifecycle(StartableLifecycleStrategy.class).withAutomatic().build();
+		pico.addComponent(new Config() {
+			@Override
+			public <X> X getRequired(Class<X> type, String key) {
+				return key.equals("port") ? type.cast(port) : super.getRequired(type, key);
+			}
+		});
+		pico.addComponent(Server.class);
+		pico.addComponent(Metrics.class);
+		TinyLfuCacheImpl cache = new TinyLfuCacheImpl(1_000_000);
+		pico.addComponent(cache);
+		AtomicInteger dbReads = new AtomicInteger();
+		pico.addComponent(new Database() {
+			@Override
+			public @Nullable String getShortlink(UUID uuid) {
+				dbReads.incrementAndGet();
+				return backing.get(uuid);
+			}
+
+			@Override
+			public void putShortLink(UUID uuid, String payload) {
+				backing.put(uuid, payload);
+			}
+		});
+		PeerCache peers = new PeerCache(cache, List.of(A, B, DEAD), self, SECRET, Duration.ofMillis(500), 60_000);
+		pico.addComponent(peers);
+		pico.addComponent(PeerCacheEndpoint.class);
+		pico.addComponent(BlockingDatabaseAdapter.class);
+		pico.addComponent(DedupIndex.class);
+		pico.addComponent(SharePages.class);
+		pico.addComponent(Shortlink.class);
+		pico.addComponent(Stats.class);
+		pico.getComponents();
+		pico.start();
+		return new Node(pico, cache, peers, dbReads);
+	}
+
+	private UUID ownedBy(String owner) {
+		while (true) {
+			UUID uuid = UUID.randomUUID();
+			if (nodeA.peers.ownerOf(uuid).equals(owner)) {
+				return uuid;
+			}
+		}
+	}
+
+	private HttpResponse<String> get(String node, UUID uuid) throws IOException, InterruptedException {
+		return http.send(HttpRequest.newBuilder(URI.create(node + "/shortlink/" + uuid)).GET().build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	@Test
+	void testSameRing() {
+		for (int i = 0; i < 1000; i++) {
+			UUID uuid = UUID.randomUUID();
+			Assert.assertEquals(nodeB.peers.ownerOf(uuid), nodeA.peers.ownerOf(uuid));
+		}
+	}
+
+	/**
+	 * Test that a link created on one server is pushed to its owner
+	 */
+	@Test
+	void testPush() throws IOException, InterruptedException {
+		// Not in the database at all, so the owner can only have it from the push
+		UUID uuid = ownedBy(A);
+		nodeB.peers.set(uuid, "{\"pushed\":true}");
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (!nodeA.cache.contains(uuid)) {
+			Assert.assertTrue(System.currentTimeMillis() < deadline, "Not pushed to owner");
+			Thread.sleep(5);
+		}
+		var response = get(A, uuid);
+		Assert.assertEquals(response.statusCode(), HTTP_OK);
+		Assert.assertEquals(response.body(), "{\"pushed\":true}");
+	}
+
+	/**
+	 * Test that a miss is loaded from the database by the owner, not by the server which was asked
+	 */
+	@Test
+	void testOwnerLoads() throws IOException, InterruptedException {
+		UUID uuid = ownedBy(A);
+		backing.put(uuid, "{\"owner\":\"a\"}");
+		int readsA = nodeA.dbReads.get();
+		int readsB = nodeB.dbReads.get();
+		var response = get(B, uuid);
+		Assert.assertEquals(response.statusCode(), HTTP_OK);
+		Assert.assertEquals(response.body(), "{\"owner\":\"a\"}");
+		Assert.assertTrue(nodeA.cache.contains(uuid));
+		Assert.assertTrue(nodeB.cache.contains(uuid));
+		Assert.assertEquals(nodeA.dbReads.get(), readsA + 1);
+		Assert.assertEquals(nodeB.dbReads.get(), readsB);
+		// The owner already checked the database for this one
+		UUID missing = ownedBy(A);
+		Assert.assertEquals(get(B, missing).statusCode(), HTTP_NOT_FOUND);
+		Assert.assertEquals(nodeB.dbReads.get(), readsB);
+	}
+
+	/**
+	 * Test that the database is used directly if the owner is down
+	 */
+	@Test
+	void testOwnerDown() throws IOException, InterruptedException {
+		UUID uuid = ownedBy(DEAD);
+		backing.put(uuid, "{\"owner\":\"dead\"}");
+		var response = get(B, uuid);
+		Assert.assertEquals(response.statusCode(), HTTP_OK);
+		Assert.assertEquals(response.body(), "{\"owner\":\"dead\"}");
+	}
+
+	@Test
+	void testNeedsSecret() throws IOException, InterruptedException {
+		UUID uuid = ownedBy(A);
+		backing.put(uuid, "{}");
+		var response = http.send(HttpRequest.newBuilder(URI.create(A + PeerCache.PATH + uuid)).GET().build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(response.statusCode(), HTTP_FORBIDDEN);
+		var wrong = http.send(HttpRequest.newBuilder(URI.create(A + PeerCache.PATH + uuid)).header(PeerCache.SECRET_HEADER, "nope").GET().build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(wrong.statusCode(), HTTP_FORBIDDEN);
+		var right = http.send(HttpRequest.newBuilder(URI.create(A + PeerCache.PATH + uuid)).header(PeerCache.SECRET_HEADER, SECRET).GET().build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(right.statusCode(), HTTP_OK);
+	}
+}
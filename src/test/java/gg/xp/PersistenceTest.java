@@ -1,8 +1,11 @@
 package gg.xp;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import gg.xp.handlers.PrometheusMetrics;
 import gg.xp.handlers.Share;
+import gg.xp.handlers.SharePages;
 import gg.xp.handlers.Shortlink;
+import gg.xp.handlers.ShortlinkBatch;
 import org.hamcrest.MatcherAssert;
 import org.hamcrest.Matchers;
 import org.jetbrains.annotations.Nullable;
@@ -14,23 +17,36 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_CREATED;
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 public class PersistenceTest {
 
 	private MutablePicoContainer pico;
+	private Map<UUID, String> backing;
 
 	@BeforeClass
 	void setup() {
@@ -39,8 +55,10 @@ public class PersistenceTest {
 		Config config = new Config();
 		pico.addComponent(config);
 		pico.addComponent(Server.class);
-		pico.addComponent(new GzipCacheImpl(5000, 10_000));
-		Map<UUID, String> backing = new ConcurrentHashMap<>();
+		pico.addComponent(Metrics.class);
+		pico.addComponent(PrometheusMetrics.class);
+		pico.addComponent(new TinyLfuCacheImpl(64L * 1024 * 1024, command -> Thread.ofVirtual().start(command)));
+		backing = new ConcurrentHashMap<>();
 		pico.addComponent(new Database() {
 			@Override
 			public @Nullable String getShortlink(UUID uuid) {
@@ -52,7 +70,12 @@ public class PersistenceTest {
 				backing.put(uuid, payload);
 			}
 		});
+		pico.addComponent(DedupIndex.class);
+		pico.addComponent(SharePages.class);
+		pico.addComponent(AsyncCacheAdapter.class);
+		pico.addComponent(BlockingDatabaseAdapter.class);
 		pico.addComponent(Shortlink.class);
+		pico.addComponent(ShortlinkBatch.class);
 		pico.addComponent(Share.class);
 		pico.addComponent(Stats.class);
 		pico.addComponent(new ObjectMapper());
@@ -86,7 +109,7 @@ public class PersistenceTest {
 			Assert.assertEquals(getBody, sheetJson);
 		}
 		// Clear cache and try again. Also test trailing slash.
-		pico.getComponent(GzipCacheImpl.class).clear();
+		pico.getComponent(TinyLfuCacheImpl.class).clear();
 		{
 			var getResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/" + setUuid + '/')).GET().build(), HttpResponse.BodyHandlers.ofString());
 			Assert.assertEquals(getResponse.statusCode(), HTTP_OK);
@@ -101,8 +124,9 @@ public class PersistenceTest {
 			MatcherAssert.assertThat(getBody, Matchers.containsString("<meta property=\"og:description\" content=\"Sage BiS sheet for Dragonsong's Reprise, updated for 6.5\n\nXivGear is an advanced and easy-to-use FFXIV gear planner/set builder with built-in simulation support.\"/>"));
 			MatcherAssert.assertThat(getBody, Matchers.containsString("<meta http-equiv=\"Refresh\" content=\"0; url='https://xivgear.app/#/sl/%s'\" />".formatted(setUuid)));
 		}
-		// Clear cache and try again
-		pico.getComponent(GzipCacheImpl.class).clear();
+		// Clear caches and try again
+		pico.getComponent(TinyLfuCacheImpl.class).clear();
+		pico.getComponent(SharePages.class).clear();
 		{
 			var shareResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/share/" + setUuid)).GET().build(), HttpResponse.BodyHandlers.ofString());
 			Assert.assertEquals(shareResponse.statusCode(), HTTP_OK);
@@ -130,7 +154,7 @@ public class PersistenceTest {
 			Assert.assertEquals(getBody, sheetJson);
 		}
 		// Clear cache and try again. Also test trailing slash.
-		pico.getComponent(GzipCacheImpl.class).clear();
+		pico.getComponent(TinyLfuCacheImpl.class).clear();
 		{
 			var getResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/" + setUuid + '/')).GET().build(), HttpResponse.BodyHandlers.ofString());
 			Assert.assertEquals(getResponse.statusCode(), HTTP_OK);
@@ -145,8 +169,9 @@ public class PersistenceTest {
 			MatcherAssert.assertThat(getBody, Matchers.containsString("<meta property=\"og:description\" content=\"This set is intended for you to be doing the 611 strat as it saves a lot of mana requiring little to none. If you want to lose extra Piety you can replace your piety ring with a 660 augmented tome ri&hellip;\n\nXivGear is an advanced and easy-to-use FFXIV gear planner/set builder with built-in simulation support.\"/>"));
 			MatcherAssert.assertThat(getBody, Matchers.containsString("<meta http-equiv=\"Refresh\" content=\"0; url='https://xivgear.app/#/sl/%s'\" />".formatted(setUuid)));
 		}
-		// Clear cache and try again
-		pico.getComponent(GzipCacheImpl.class).clear();
+		// Clear caches and try again
+		pico.getComponent(TinyLfuCacheImpl.class).clear();
+		pico.getComponent(SharePages.class).clear();
 		{
 			var shareResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/share/" + setUuid)).GET().build(), HttpResponse.BodyHandlers.ofString());
 			Assert.assertEquals(shareResponse.statusCode(), HTTP_OK);
@@ -158,4 +183,185 @@ public class PersistenceTest {
 
 
 	}
+
+	@Test
+	void gzipPassthroughTest() throws URISyntaxException, IOException, InterruptedException {
+		HttpClient http = pico.getComponent(HttpClient.class);
+		String sheetJson = new String(Objects.requireNonNull(PersistenceTest.class.getResourceAsStream("/test_sheet.json")).readAllBytes());
+		var putResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/")).POST(HttpRequest.BodyPublishers.ofString(sheetJson)).build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(putResponse.statusCode(), HTTP_CREATED);
+		String setUuid = putResponse.body();
+		{
+			var getResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/" + setUuid)).header("Accept-Encoding", "br, gzip;q=0.8").GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+			Assert.assertEquals(getResponse.statusCode(), HTTP_OK);
+			Assert.assertEquals(getResponse.headers().firstValue("Content-Encoding").orElse(null), "gzip");
+			String getBody = new String(new GZIPInputStream(new ByteArrayInputStream(getResponse.body())).readAllBytes(), StandardCharsets.UTF_8);
+			Assert.assertEquals(getBody, sheetJson);
+		}
+		{
+			// Explicitly refused
+			var getResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/" + setUuid)).header("Accept-Encoding", "gzip;q=0").GET().build(), HttpResponse.BodyHandlers.ofString());
+			Assert.assertEquals(getResponse.statusCode(), HTTP_OK);
+			Assert.assertTrue(getResponse.headers().firstValue("Content-Encoding").isEmpty());
+			Assert.assertEquals(getResponse.body(), sheetJson);
+		}
+	}
+
+	@Test
+	void dedupTest() throws URISyntaxException, IOException, InterruptedException {
+		HttpClient http = pico.getComponent(HttpClient.class);
+		// Unique content, so that other tests posting at the same time can't interfere
+		String setJson = "{\"name\":\"%s\",\"sets\":[{\"a\":1,\"b\":[true,null,2.5]}]}".formatted(UUID.randomUUID());
+		// Same content, different formatting and field order, should still be considered a duplicate
+		String reformatted = setJson.replace(",", ", ").replace("{\"a\":1, \"b\":[true, null, 2.5]}", "{\"b\":[true, null, 2.5], \"a\":1}");
+		// Every POST gets a new link by default
+		var first = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/")).POST(HttpRequest.BodyPublishers.ofString(setJson)).build(), HttpResponse.BodyHandlers.ofString());
+		var second = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/")).POST(HttpRequest.BodyPublishers.ofString(setJson)).build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(first.statusCode(), HTTP_CREATED);
+		Assert.assertEquals(second.statusCode(), HTTP_CREATED);
+		Assert.assertNotEquals(second.body(), first.body());
+		Assert.assertEquals(backing.get(UUID.fromString(second.body())), backing.get(UUID.fromString(first.body())));
+		// Unless the client asks to reuse an existing one
+		var reused = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/?reuse=true")).POST(HttpRequest.BodyPublishers.ofString(reformatted)).build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(reused.statusCode(), HTTP_CREATED);
+		Assert.assertEquals(reused.body(), second.body());
+	}
+
+	@Test
+	void batchTest() throws URISyntaxException, IOException, InterruptedException {
+		HttpClient http = pico.getComponent(HttpClient.class);
+		ObjectMapper mapper = pico.getComponent(ObjectMapper.class);
+		String sheetJson = new String(Objects.requireNonNull(PersistenceTest.class.getResourceAsStream("/test_sheet.json")).readAllBytes());
+		String setJson = new String(Objects.requireNonNull(PersistenceTest.class.getResourceAsStream("/test_set.json")).readAllBytes());
+		String sheetUuid = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/")).POST(HttpRequest.BodyPublishers.ofString(sheetJson)).build(), HttpResponse.BodyHandlers.ofString()).body();
+		String setUuid = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/")).POST(HttpRequest.BodyPublishers.ofString(setJson)).build(), HttpResponse.BodyHandlers.ofString()).body();
+		String missing = UUID.randomUUID().toString();
+		// One from the cache, one from the database, and one which does not exist. Duplicates are only sent once.
+		pico.getComponent(TinyLfuCacheImpl.class).clear();
+		http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/" + sheetUuid)).GET().build(), HttpResponse.BodyHandlers.discarding());
+		{
+			var response = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlinks/?ids=%s,%s,%s,%s".formatted(sheetUuid, setUuid, missing, sheetUuid))).GET().build(), HttpResponse.BodyHandlers.ofString());
+			Assert.assertEquals(response.statusCode(), HTTP_OK);
+			var body = mapper.readTree(response.body());
+			Assert.assertEquals(body.size(), 3);
+			Assert.assertEquals(body.get(sheetUuid), mapper.readTree(sheetJson));
+			Assert.assertEquals(body.get(setUuid), mapper.readTree(setJson));
+			Assert.assertTrue(body.get(missing).isNull());
+		}
+		// POST, compressed
+		{
+			String ids = "[\"%s\",\"%s\"]".formatted(setUuid, missing);
+			var response = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlinks/")).header("Accept-Encoding", "gzip").POST(HttpRequest.BodyPublishers.ofString(ids)).build(), HttpResponse.BodyHandlers.ofByteArray());
+			Assert.assertEquals(response.statusCode(), HTTP_OK);
+			Assert.assertEquals(response.headers().firstValue("Content-Encoding").orElse(null), "gzip");
+			var body = mapper.readTree(new GZIPInputStream(new ByteArrayInputStream(response.body())));
+			Assert.assertEquals(body.size(), 2);
+			Assert.assertEquals(body.get(setUuid), mapper.readTree(setJson));
+			Assert.assertTrue(body.get(missing).isNull());
+		}
+		// Bad requests
+		{
+			var response = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlinks/?ids=%s,nope".formatted(setUuid))).GET().build(), HttpResponse.BodyHandlers.discarding());
+			Assert.assertEquals(response.statusCode(), HTTP_BAD_REQUEST);
+		}
+		{
+			var response = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlinks/")).POST(HttpRequest.BodyPublishers.ofString("{\"ids\":[]}")).build(), HttpResponse.BodyHandlers.discarding());
+			Assert.assertEquals(response.statusCode(), HTTP_BAD_REQUEST);
+		}
+		{
+			String tooMany = IntStream.range(0, 101).mapToObj(i -> UUID.randomUUID().toString()).collect(Collectors.joining(","));
+			var response = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlinks/?ids=" + tooMany)).GET().build(), HttpResponse.BodyHandlers.discarding());
+			Assert.assertEquals(response.statusCode(), HTTP_ENTITY_TOO_LARGE);
+		}
+	}
+
+	@Test
+	void sharePageTest() throws URISyntaxException, IOException, InterruptedException {
+		HttpClient http = pico.getComponent(HttpClient.class);
+		String sheetJson = new String(Objects.requireNonNull(PersistenceTest.class.getResourceAsStream("/test_sheet.json")).readAllBytes());
+		var putResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/")).POST(HttpRequest.BodyPublishers.ofString(sheetJson)).build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(putResponse.statusCode(), HTTP_CREATED);
+		UUID uuid = UUID.fromString(putResponse.body());
+		// Rendered when the link was created, so neither the cache nor the database are needed for it
+		Assert.assertTrue(pico.getComponent(SharePages.class).contains(uuid));
+		pico.getComponent(TinyLfuCacheImpl.class).clear();
+		String payload = backing.remove(uuid);
+		String etag;
+		try {
+			var shareResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/share/" + uuid)).GET().build(), HttpResponse.BodyHandlers.ofString());
+			Assert.assertEquals(shareResponse.statusCode(), HTTP_OK);
+			MatcherAssert.assertThat(shareResponse.body(), Matchers.containsString("<meta property=\"og:title\" content=\"6.5 Sage DSR Sets copy - XivGear - FFXIV Gear Planner\"/>"));
+			etag = shareResponse.headers().firstValue("ETag").orElseThrow();
+		}
+		finally {
+			backing.put(uuid, payload);
+		}
+		{
+			var shareResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/share/" + uuid)).header("If-None-Match", etag).GET().build(), HttpResponse.BodyHandlers.ofString());
+			Assert.assertEquals(shareResponse.statusCode(), HTTP_NOT_MODIFIED);
+			Assert.assertEquals(shareResponse.body(), "");
+		}
+		{
+			var shareResponse = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/share/" + UUID.randomUUID())).GET().build(), HttpResponse.BodyHandlers.ofString());
+			Assert.assertEquals(shareResponse.statusCode(), HTTP_NOT_FOUND);
+			Assert.assertTrue(shareResponse.headers().firstValue("ETag").isEmpty());
+		}
+	}
+
+	/**
+	 * Test that requests over a route's concurrency limit are turned away quickly, and exempt ones are not
+	 */
+	@Test
+	void loadSheddingTest() throws URISyntaxException, IOException, InterruptedException {
+		HttpClient http = pico.getComponent(HttpClient.class);
+		Server server = pico.getComponent(Server.class);
+		System.setProperty("slowtestConcurrencyLimitInitial", "1");
+		System.setProperty("slowtestConcurrencyLimitMin", "1");
+		System.setProperty("slowtestConcurrencyLimitMax", "1");
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		server.registerHandler("/slowtest/", exchange -> {
+			entered.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			exchange.sendResponseHeaders(HTTP_OK, -1);
+			exchange.close();
+		}, exchange -> exchange.getRequestURI().getQuery() != null);
+		Assert.assertEquals(server.getConcurrencyLimit("/slowtest/"), 1);
+
+		URI uri = new URI("http://localhost:8085/slowtest/");
+		var slow = http.sendAsync(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.discarding());
+		Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+		int shedBefore = server.getShedCount();
+		var rejected = http.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.discarding());
+		Assert.assertEquals(rejected.statusCode(), HTTP_UNAVAILABLE);
+		Assert.assertEquals(rejected.headers().firstValue("Retry-After").orElse(null), "1");
+		Assert.assertEquals(server.getShedCount(), shedBefore + 1);
+		// Exempt, so it waits its turn instead
+		var exempt = http.sendAsync(HttpRequest.newBuilder(new URI("http://localhost:8085/slowtest/?exempt")).GET().build(), HttpResponse.BodyHandlers.discarding());
+		release.countDown();
+		Assert.assertEquals(slow.join().statusCode(), HTTP_OK);
+		Assert.assertEquals(exempt.join().statusCode(), HTTP_OK);
+	}
+
+	/**
+	 * Test that requests and cache activity show up on the metrics endpoint
+	 */
+	@Test
+	void metricsTest() throws URISyntaxException, IOException, InterruptedException {
+		HttpClient http = pico.getComponent(HttpClient.class);
+		var missing = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/shortlink/" + UUID.randomUUID())).GET().build(), HttpResponse.BodyHandlers.discarding());
+		Assert.assertEquals(missing.statusCode(), HTTP_NOT_FOUND);
+		var response = http.send(HttpRequest.newBuilder(new URI("http://localhost:8085/metrics")).GET().build(), HttpResponse.BodyHandlers.ofString());
+		Assert.assertEquals(response.statusCode(), HTTP_OK);
+		String body = response.body();
+		MatcherAssert.assertThat(body, Matchers.containsString("# TYPE http_request_duration_seconds histogram\n"));
+		MatcherAssert.assertThat(body, Matchers.containsString("http_request_duration_seconds_count{route=\"/shortlink/\",status=\"404\"} "));
+		MatcherAssert.assertThat(body, Matchers.containsString("# TYPE cache_misses_total counter\n"));
+		MatcherAssert.assertThat(body, Matchers.containsString("shortlink_gets_total "));
+	}
 }
@@ -0,0 +1,126 @@
+package gg.xp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import oracle.nosql.driver.values.MapValue;
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class RestoreTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static class FakeTable implements Restore.RowWriter, Backup.RowScanner {
+		final Map<String, MapValue> rows = new ConcurrentHashMap<>();
+		// Fail this many batches before succeeding
+		final AtomicInteger failures = new AtomicInteger();
+		final AtomicInteger batches = new AtomicInteger();
+
+		@Override
+		public void putRows(List<MapValue> batch) {
+			if (failures.getAndDecrement() > 0) {
+				throw new RuntimeException("Simulated failure");
+			}
+			batches.incrementAndGet();
+			for (MapValue row : batch) {
+				rows.put(row.getString("linkuuid"), row);
+			}
+		}
+
+		@Override
+		public long countRows() {
+			return rows.size();
+		}
+
+		@Override
+		public @Nullable Long getHash(UUID uuid) {
+			MapValue row = rows.get(uuid.toString());
+			return row == null ? null : row.get("hash").getLong();
+		}
+
+		@Override
+		public void scan(@Nullable String after, @Nullable String before, @Nullable Long modifiedSince, Consumer<MapValue> consumer) {
+			rows.values().stream()
+					.filter(row -> after == null || row.getString("linkuuid").compareTo(after) > 0)
+					.filter(row -> before == null || row.getString("linkuuid").compareTo(before) < 0)
+					.sorted((a, b) -> a.getString("linkuuid").compareTo(b.getString("linkuuid")))
+					.forEach(row -> consumer.accept(new MapValue().addAll(row.entrySet().stream()).put("modified", 0L)));
+		}
+	}
+
+	private static Path makeBackup(int rows) throws IOException {
+		FakeTable source = new FakeTable();
+		for (int i = 0; i < rows; i++) {
+			String uuid = UUID.randomUUID().toString();
+			source.rows.put(uuid, new MapValue()
+					.put("linkuuid", uuid)
+					.put("hash", (long) uuid.hashCode())
+					.putFromJson("datavalue", "{\"foo\":" + i + "}", null));
+		}
+		Path dir = Files.createTempDirectory("restore-test");
+		new Backup(source, mapper, 16, 4, 50).doBackup(dir);
+		return dir;
+	}
+
+	/**
+	 * Test that a backup is restored completely, in batches, with hashes intact
+	 */
+	@Test
+	void testRestore() throws IOException {
+		Path dir = makeBackup(500);
+		FakeTable target = new FakeTable();
+		long written = new Restore(target, mapper, 4, 25, 50, 1).doRestore(dir);
+		Assert.assertEquals(written, 500);
+		Assert.assertEquals(target.rows.size(), 500);
+		Assert.assertTrue(target.batches.get() >= 20, "Batches: " + target.batches.get());
+		target.rows.values().forEach(row -> {
+			Assert.assertFalse(row.contains("modified"));
+			Assert.assertEquals(row.get("hash").getLong(), row.getString("linkuuid").hashCode());
+		});
+	}
+
+	/**
+	 * Test that a failed restore can be resumed without writing the finished chunks again
+	 */
+	@Test
+	void testResume() throws IOException {
+		Path dir = makeBackup(500);
+		FakeTable target = new FakeTable();
+		// Enough failures that the retries run out for at least one batch
+		target.failures.set(1_000_000);
+		Assert.assertThrows(RuntimeException.class, () -> new Restore(target, mapper, 1, 25, 50, 1).doRestore(dir));
+		Assert.assertEquals(target.rows.size(), 0);
+
+		target.failures.set(0);
+		long written = new Restore(target, mapper, 4, 25, 50, 1).doRestore(dir);
+		Assert.assertEquals(written, 500);
+		Assert.assertEquals(target.rows.size(), 500);
+		// Everything is done now, so nothing more to write
+		Assert.assertEquals(new Restore(target, mapper, 4, 25, 50, 1).doRestore(dir), 0);
+	}
+
+	/**
+	 * Test that verification notices rows which did not make it into the table
+	 */
+	@Test
+	void testVerifyCatchesMissingRows() throws IOException {
+		Path dir = makeBackup(100);
+		FakeTable target = new FakeTable() {
+			@Override
+			public long countRows() {
+				return rows.size() - 1;
+			}
+		};
+		Assert.assertThrows(IllegalStateException.class, () -> new Restore(target, mapper, 4, 25, 50, 1).doRestore(dir));
+	}
+}
@@ -0,0 +1,80 @@
+package gg.xp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gg.xp.util.JsonUtils;
+import gg.xp.util.JsonUtils.ScannedPayload;
+import gg.xp.util.JsonUtils.ShareMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON handling done by the shortlink and share handlers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShortlinkJsonBenchmark {
+
+	@Param({"/test_sheet.json", "/test_set.json"})
+	public String payload;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private byte[] bodyBytes;
+	private String stored;
+
+	@Setup
+	public void setup() throws IOException {
+		stored = BenchmarkData.load(payload);
+		bodyBytes = stored.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * What POST used to do with the request body before storing it, for comparison
+	 */
+	@Benchmark
+	public String postRoundTrip() throws IOException {
+		return mapper.readTree(bodyBytes).toString();
+	}
+
+	/**
+	 * What POST does with the request body before storing it, including the dedup digest and share metadata
+	 */
+	@Benchmark
+	public ScannedPayload postScan() throws IOException {
+		return JsonUtils.scan(bodyBytes);
+	}
+
+	/**
+	 * What a share page used to do to get its metadata, for comparison
+	 */
+	@Benchmark
+	public String shareMetadataTree() throws IOException {
+		JsonNode json = mapper.readTree(stored);
+		return json.at("/name").textValue() + json.at("/description").textValue();
+	}
+
+	/**
+	 * What a share page does to get its metadata, when it is not cached
+	 */
+	@Benchmark
+	public ShareMetadata shareMetadata() throws IOException {
+		return JsonUtils.readShareMetadata(stored);
+	}
+}
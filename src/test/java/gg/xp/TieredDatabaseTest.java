@@ -0,0 +1,155 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TieredDatabaseTest {
+
+	private static final Executor virtualThreads = command -> Thread.ofVirtual().start(command);
+
+	private static class FakeDb implements Database {
+		final Map<UUID, String> backing = new ConcurrentHashMap<>();
+		final AtomicInteger reads = new AtomicInteger();
+		final AtomicBoolean failing = new AtomicBoolean();
+
+		@Override
+		public @Nullable String getShortlink(UUID uuid) {
+			reads.incrementAndGet();
+			if (failing.get()) {
+				throw new RuntimeException("Simulated failure");
+			}
+			return backing.get(uuid);
+		}
+
+		@Override
+		public void putShortLink(UUID uuid, String payload) {
+			if (failing.get()) {
+				throw new RuntimeException("Simulated failure");
+			}
+			backing.put(uuid, payload);
+		}
+	}
+
+	/**
+	 * Test that reads fall through to the last tier, and copy what they find into the earlier tiers
+	 */
+	@Test
+	void testReadThrough() throws InterruptedException {
+		FakeDb local = new FakeDb();
+		FakeDb remote = new FakeDb();
+		TieredDatabase db = new TieredDatabase(List.of(local, remote), virtualThreads, 0.95, 1000);
+		UUID uuid = UUID.randomUUID();
+		remote.backing.put(uuid, "foo");
+
+		Assert.assertEquals(db.getShortlink(uuid), "foo");
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (db.backfillCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(local.backing.get(uuid), "foo");
+		Assert.assertEquals(db.getShortlink(uuid), "foo");
+		Assert.assertEquals(remote.reads.get(), 1);
+		Assert.assertNull(db.getShortlink(UUID.randomUUID()));
+		Assert.assertEquals(db.hedgeCount(), 0);
+	}
+
+	/**
+	 * Test that writes go to every tier, and only fail if the last one fails
+	 */
+	@Test
+	void testWriteThrough() {
+		FakeDb local = new FakeDb();
+		FakeDb remote = new FakeDb();
+		TieredDatabase db = new TieredDatabase(List.of(local, remote), virtualThreads, 0.95, 1000);
+		UUID uuid = UUID.randomUUID();
+		db.putShortLink(uuid, "foo");
+		Assert.assertEquals(local.backing.get(uuid), "foo");
+		Assert.assertEquals(remote.backing.get(uuid), "foo");
+
+		local.failing.set(true);
+		UUID second = UUID.randomUUID();
+		db.putShortLink(second, "bar");
+		Assert.assertEquals(remote.backing.get(second), "bar");
+
+		remote.failing.set(true);
+		Assert.assertThrows(RuntimeException.class, () -> db.putShortLink(UUID.randomUUID(), "baz"));
+		// Local tier failed, and the remote one has not got it, but could not be asked either
+		Assert.assertThrows(RuntimeException.class, () -> db.getShortlink(second));
+	}
+
+	/**
+	 * Test that a missing link is reported as missing even if an earlier tier failed, since the last tier is
+	 * authoritative
+	 */
+	@Test
+	void testMissingAfterReplicaFailure() {
+		FakeDb local = new FakeDb();
+		FakeDb remote = new FakeDb();
+		TieredDatabase db = new TieredDatabase(List.of(local, remote), virtualThreads, 0.95, 1000);
+		UUID uuid = UUID.randomUUID();
+		remote.backing.put(uuid, "foo");
+		local.failing.set(true);
+
+		Assert.assertNull(db.getShortlink(UUID.randomUUID()));
+		Assert.assertEquals(db.getShortlink(uuid), "foo");
+	}
+
+	/**
+	 * Test that a slow read is hedged to the next tier, which answers first
+	 */
+	@Test
+	void testHedgedRead() {
+		CountDownLatch release = new CountDownLatch(1);
+		FakeDb slow = new FakeDb() {
+			@Override
+			public @Nullable String getShortlink(UUID uuid) {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return super.getShortlink(uuid);
+			}
+		};
+		FakeDb remote = new FakeDb();
+		TieredDatabase db = new TieredDatabase(List.of(slow, remote), virtualThreads, 0.95, 10);
+		UUID uuid = UUID.randomUUID();
+		slow.backing.put(uuid, "foo");
+		remote.backing.put(uuid, "foo");
+
+		long start = System.nanoTime();
+		Assert.assertEquals(db.getShortlink(uuid), "foo");
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		release.countDown();
+		Assert.assertTrue(elapsedMs < 2_000, "Took " + elapsedMs + "ms");
+		Assert.assertEquals(db.hedgeCount(), 1);
+		Assert.assertEquals(remote.reads.get(), 1);
+	}
+
+	@Test
+	void testLatencyTracker() {
+		TieredDatabase.LatencyTracker tracker = new TieredDatabase.LatencyTracker(0.9, 5);
+		Assert.assertEquals(tracker.hedgeDelayNanos(), 5);
+		for (int i = 1; i <= 100; i++) {
+			tracker.record(i * 1000L);
+		}
+		// Computed from the first 64 samples
+		Assert.assertEquals(tracker.hedgeDelayNanos(), 58_000);
+		for (int i = 0; i < 1024; i++) {
+			tracker.record(1);
+		}
+		Assert.assertEquals(tracker.hedgeDelayNanos(), 5);
+	}
+}
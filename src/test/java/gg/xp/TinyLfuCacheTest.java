@@ -0,0 +1,110 @@
+package gg.xp;
+
+import org.apache.commons.lang3.StringUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class TinyLfuCacheTest extends AbstractCacheTest {
+
+	@Override
+	protected Cache newCache() {
+		return new TinyLfuCacheImpl(1_000_000);
+	}
+
+	/**
+	 * Test that the cache never holds more than its byte budget
+	 */
+	@Test
+	void testByteBudget() {
+		TinyLfuCacheImpl cache = new TinyLfuCacheImpl(10_000);
+		for (int i = 0; i < 1000; i++) {
+			// 36 chars, not compressible, so each entry weighs 36
+			cache.set(new UUID(0, i), new UUID(i, i).toString());
+			Assert.assertTrue(cache.weightedSize() <= 10_000, "Over budget: " + cache.weightedSize());
+		}
+		// 10_000 / 36 = 277 entries max
+		Assert.assertTrue(cache.cacheSize() <= 277, "Too many entries: " + cache.cacheSize());
+		Assert.assertTrue(cache.cacheSize() > 200, "Too few entries: " + cache.cacheSize());
+		Assert.assertEquals(cache.evictionCount(), 1000 - cache.cacheSize());
+	}
+
+	/**
+	 * Test that popular entries are not flushed out by a scan of entries which are only used once
+	 */
+	@Test
+	void testScanResistance() {
+		// Entries here are much smaller than a real sheet, so tell it how many to expect
+		TinyLfuCacheImpl cache = new TinyLfuCacheImpl(10_000, 300, Runnable::run);
+		AtomicInteger counter = new AtomicInteger();
+		Function<UUID, String> conv = uuid -> {
+			counter.incrementAndGet();
+			return uuid.toString();
+		};
+		// 50 hot entries, used 10 times each
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 50; i++) {
+				cache.computeIfAbsent(new UUID(0, i), conv);
+			}
+		}
+		Assert.assertEquals(counter.get(), 50);
+		// Scan through 5000 entries which are used once
+		for (int i = 0; i < 5000; i++) {
+			cache.computeIfAbsent(new UUID(1, i), conv);
+		}
+		Assert.assertEquals(counter.get(), 5050);
+		// Hot entries should all still be there
+		for (int i = 0; i < 50; i++) {
+			cache.computeIfAbsent(new UUID(0, i), conv);
+		}
+		Assert.assertEquals(counter.get(), 5050);
+	}
+
+	/**
+	 * Test that an entry is weighed by its compressed size
+	 */
+	@Test
+	void testWeighsCompressedSize() {
+		String input = StringUtils.repeat('a', 20_000);
+		TinyLfuCacheImpl cache = new TinyLfuCacheImpl(1_000);
+		UUID uuid = new UUID(0, 0);
+		AtomicInteger counter = new AtomicInteger();
+		Function<UUID, String> func = ignored -> {
+			counter.incrementAndGet();
+			return input;
+		};
+		cache.computeIfAbsent(uuid, func);
+		String result = cache.computeIfAbsent(uuid, func);
+		Assert.assertEquals(counter.get(), 1);
+		Assert.assertEquals(result, input);
+		Assert.assertTrue(cache.weightedSize() < 1_000);
+	}
+
+	/**
+	 * Test that an entry bigger than the whole cache is not cached at all
+	 */
+	@Test
+	void testOversizedEntry() {
+		TinyLfuCacheImpl cache = new TinyLfuCacheImpl(10);
+		String out = cache.computeIfAbsent(new UUID(0, 0), uuid -> uuid.toString());
+		Assert.assertEquals(out, new UUID(0, 0).toString());
+		Assert.assertEquals(cache.cacheSize(), 0);
+		Assert.assertEquals(cache.weightedSize(), 0);
+	}
+
+	@Test
+	void testCacheAfterActiveSet() {
+		TinyLfuCacheImpl cache = new TinyLfuCacheImpl(10_000);
+		AtomicInteger counter = new AtomicInteger();
+		cache.set(new UUID(0, 0), "foo");
+		String out = cache.computeIfAbsent(new UUID(0, 0), uuid -> {
+			counter.incrementAndGet();
+			return uuid.toString();
+		});
+		Assert.assertEquals(counter.get(), 0);
+		Assert.assertEquals(out, "foo");
+	}
+}
@@ -0,0 +1,186 @@
+package gg.xp;
+
+import org.jetbrains.annotations.Nullable;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteBehindDatabaseTest {
+
+	private static final class FakeDb implements Database {
+		final Map<UUID, String> backing = new ConcurrentHashMap<>();
+		final AtomicBoolean failing = new AtomicBoolean();
+		final AtomicInteger batches = new AtomicInteger();
+
+		@Override
+		public @Nullable String getShortlink(UUID uuid) {
+			return backing.get(uuid);
+		}
+
+		@Override
+		public void putShortLink(UUID uuid, String payload) {
+			if (failing.get()) {
+				throw new RuntimeException("Simulated failure");
+			}
+			backing.put(uuid, payload);
+		}
+
+		@Override
+		public void putShortLinks(Map<UUID, String> payloads) {
+			batches.incrementAndGet();
+			Database.super.putShortLinks(payloads);
+		}
+	}
+
+	private static void waitFor(WriteBehindDatabase db) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (db.pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(db.pendingCount(), 0);
+	}
+
+	/**
+	 * Test that writes end up in the real database, and are readable before then
+	 */
+	@Test
+	void testWritesFlushed() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("wal-test");
+		FakeDb fake = new FakeDb();
+		fake.failing.set(true);
+		WriteBehindDatabase db = new WriteBehindDatabase(fake, dir, 100, 10);
+		db.start();
+		for (int i = 0; i < 50; i++) {
+			db.putShortLink(new UUID(0, i), "{\"i\":" + i + "}");
+		}
+		// Not in the real database yet, but still readable
+		Assert.assertTrue(fake.backing.isEmpty());
+		Assert.assertEquals(db.getShortlink(new UUID(0, 7)), "{\"i\":7}");
+		fake.failing.set(false);
+		waitFor(db);
+		Assert.assertEquals(fake.backing.size(), 50);
+		Assert.assertEquals(fake.backing.get(new UUID(0, 7)), "{\"i\":7}");
+		db.stop();
+		// Everything acknowledged, so nothing should be left to replay
+		FakeDb fake2 = new FakeDb();
+		WriteBehindDatabase db2 = new WriteBehindDatabase(fake2, dir, 100, 10);
+		db2.start();
+		Assert.assertEquals(db2.pendingCount(), 0);
+		db2.stop();
+		Assert.assertTrue(fake2.backing.isEmpty());
+	}
+
+	/**
+	 * Test that writes which never made it to the real database are replayed on the next start
+	 */
+	@Test
+	void testReplay() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("wal-test");
+		FakeDb fake = new FakeDb();
+		fake.failing.set(true);
+		WriteBehindDatabase db = new WriteBehindDatabase(fake, dir, 100, 10);
+		db.start();
+		for (int i = 0; i < 20; i++) {
+			db.putShortLink(new UUID(1, i), "{\"i\":" + i + "}");
+		}
+		db.stop();
+		Assert.assertTrue(fake.backing.isEmpty());
+
+		FakeDb fake2 = new FakeDb();
+		WriteBehindDatabase db2 = new WriteBehindDatabase(fake2, dir, 100, 10);
+		db2.start();
+		waitFor(db2);
+		db2.stop();
+		Assert.assertEquals(fake2.backing.size(), 20);
+		Assert.assertEquals(fake2.backing.get(new UUID(1, 19)), "{\"i\":19}");
+		Assert.assertTrue(fake2.batches.get() >= 2);
+	}
+
+	/**
+	 * Test that writes fall back to being synchronous when too many are pending
+	 */
+	@Test
+	void testBackpressure() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("wal-test");
+		FakeDb fake = new FakeDb();
+		fake.failing.set(true);
+		WriteBehindDatabase db = new WriteBehindDatabase(fake, dir, 5, 10);
+		db.start();
+		for (int i = 0; i < 5; i++) {
+			db.putShortLink(new UUID(2, i), "{}");
+		}
+		Assert.assertEquals(db.pendingCount(), 5);
+		fake.failing.set(false);
+		waitFor(db);
+		fake.failing.set(true);
+		for (int i = 5; i < 10; i++) {
+			db.putShortLink(new UUID(2, i), "{}");
+		}
+		// Queue is full and the database is down, so this has to fail rather than being silently accepted
+		Assert.assertThrows(RuntimeException.class, () -> db.putShortLink(new UUID(2, 10), "{}"));
+		fake.failing.set(false);
+		waitFor(db);
+		db.stop();
+		Assert.assertEquals(fake.backing.size(), 10);
+	}
+
+	/**
+	 * Test that appends which arrive while a force is in progress all share the next one
+	 */
+	@Test
+	void testGroupCommit() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("wal-test");
+		CountDownLatch forcing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger forces = new AtomicInteger();
+		WriteAheadLog wal = new WriteAheadLog(dir, 1024 * 1024, channel -> {
+			forcing.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			forces.incrementAndGet();
+			channel.force(false);
+		});
+		wal.replay((segment, uuid, payload) -> Assert.fail("Nothing to replay"));
+		List<Thread> threads = new ArrayList<>();
+		threads.add(Thread.ofVirtual().start(() -> wal.append(new UUID(3, 0), "{}")));
+		Assert.assertTrue(forcing.await(5, TimeUnit.SECONDS));
+		for (int i = 1; i < 8; i++) {
+			UUID uuid = new UUID(3, i);
+			threads.add(Thread.ofVirtual().start(() -> wal.append(uuid, "{}")));
+		}
+		// Wait for all of them to be written, so that they are all waiting on the first force
+		Path segment = dir.resolve("wal-0.log");
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (Files.size(segment) < 8 * (4 + 16 + 2 + 4) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join(5_000);
+		}
+		Assert.assertEquals(forces.get(), 2);
+		wal.close();
+
+		WriteAheadLog reopened = new WriteAheadLog(dir, 1024 * 1024);
+		AtomicInteger replayed = new AtomicInteger();
+		reopened.replay((seg, uuid, payload) -> replayed.incrementAndGet());
+		reopened.close();
+		Assert.assertEquals(replayed.get(), 8);
+	}
+}
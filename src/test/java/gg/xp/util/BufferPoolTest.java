@@ -0,0 +1,77 @@
+package gg.xp.util;
+
+import gg.xp.util.BufferPool.PooledBytes;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BufferPoolTest {
+
+	@Test
+	void sizeClasses() {
+		BufferPool pool = new BufferPool(2, 16, 64);
+		byte[] small = pool.acquire(1);
+		Assert.assertEquals(small.length, 16);
+		Assert.assertEquals(pool.acquire(17).length, 64);
+		Assert.assertEquals(pool.acquire(100).length, 100);
+		pool.release(small);
+		Assert.assertSame(pool.acquire(16), small);
+		// Bounded, and arrays not of a size class are not kept
+		pool.release(new byte[16]);
+		pool.release(new byte[16]);
+		pool.release(new byte[16]);
+		pool.release(new byte[100]);
+		Assert.assertEquals(pool.freeCount(16), 2);
+		Assert.assertThrows(IllegalArgumentException.class, () -> new BufferPool(1, 64, 16));
+	}
+
+	@Test
+	void read() throws IOException {
+		BufferPool pool = new BufferPool(2, 16, 64, 256);
+		byte[] data = new byte[200];
+		new Random(1).nextBytes(data);
+		// Content-Length not known, so has to go through the size classes
+		try (PooledBytes read = pool.read(new TrickleStream(data), -1, 1000)) {
+			Assert.assertEquals(read.length(), 200);
+			Assert.assertEquals(read.buffer().length, 256);
+			Assert.assertEquals(Arrays.copyOf(read.buffer(), read.length()), data);
+		}
+		Assert.assertEquals(pool.freeCount(16), 1);
+		Assert.assertEquals(pool.freeCount(64), 1);
+		Assert.assertEquals(pool.freeCount(256), 1);
+		// Known length
+		try (PooledBytes read = pool.read(new ByteArrayInputStream(data, 0, 50), 50, 1000)) {
+			Assert.assertEquals(read.length(), 50);
+			Assert.assertEquals(read.buffer().length, 64);
+		}
+		// Over the limit, stops after one more byte than allowed
+		InputStream in = new ByteArrayInputStream(data);
+		try (PooledBytes read = pool.read(in, -1, 100)) {
+			Assert.assertEquals(read.length(), 101);
+		}
+		Assert.assertEquals(in.available(), 99);
+		// Empty
+		try (PooledBytes read = pool.read(InputStream.nullInputStream(), 0, 100)) {
+			Assert.assertEquals(read.length(), 0);
+		}
+	}
+
+	/**
+	 * Hands out a few bytes at a time, like a slow connection
+	 */
+	private static final class TrickleStream extends ByteArrayInputStream {
+		TrickleStream(byte[] data) {
+			super(data);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, 7));
+		}
+	}
+}